@@ -18,7 +18,6 @@
 package loi.cp.analytics
 
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.databind.node.ObjectNode
 import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.learningobjects.cpxp.ServiceMeta
 import com.learningobjects.cpxp.component.ComponentService
@@ -36,11 +35,14 @@ import com.learningobjects.cpxp.service.item.ItemService
 import com.learningobjects.cpxp.service.overlord.OverlordWebService
 import com.learningobjects.cpxp.service.query.*
 import com.learningobjects.cpxp.util.*
+import io.prometheus.client.Collector.MetricFamilySamples
+import io.prometheus.client.{Collector, CollectorRegistry, GaugeMetricFamily}
 import loi.cp.analytics.bus.{AnalyticBus, AnalyticBusFacade, AnalyticBusState, AnalyticsBusSettings}
 import loi.cp.analytics.event.Event
 import loi.cp.bus.{Bus, BusFailureNotificationService, IntervalStatistics}
 import loi.cp.config.ConfigurationKey.*
 import loi.cp.config.ConfigurationService
+import org.hibernate.Session
 import scalaz.syntax.std.boolean.*
 import scalaz.syntax.std.option.*
 import scalaz.{Tags, \/}
@@ -51,20 +53,27 @@ import scaloi.syntax.boolean.*
 import scaloi.syntax.date.*
 import scaloi.syntax.disjunction.*
 
-import java.util.concurrent.{Executors, ScheduledExecutorService, TimeUnit}
+import java.nio.charset.StandardCharsets.UTF_8
+import java.sql.Timestamp
+import java.util as ju
+import java.util.concurrent.{ConcurrentHashMap, ExecutorService, Executors, ScheduledExecutorService, TimeUnit}
 import java.util.{Date, UUID}
 import scala.concurrent.duration.*
 import scala.jdk.CollectionConverters.*
 import scala.math.Ordering.Implicits.infixOrderingOps
-import scala.util.Try
+import scala.util.{Try, Using}
+import scala.util.control.NonFatal
 
-/** Polls the various analytic buses for events and delivers them. This operates with a single dedicated executor
-  * thread.
+/** Polls the various analytic buses for events and delivers them. A single dedicated executor thread polls for buses
+  * that are due and hands each one to a bounded pool of workers, so that one slow domain does not delay delivery for
+  * every other domain. At most one bus per domain is processed at a time and due buses are dispatched in schedule
+  * order, so a domain with a large backlog cannot monopolise the workers.
   */
-class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
+class AnalyticsPoller(executor: ScheduledExecutorService, workers: ExecutorService)(implicit
   configurationService: ConfigurationService,
   dws: DomainWebService,
   emailService: EmailService,
+  fs: FacadeService,
   is: ItemService,
   mapper: ObjectMapper,
   ows: OverlordWebService,
@@ -75,13 +84,44 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
 ) extends Runnable:
   import AnalyticsPoller.*
 
+  /** Decodes analytic events. */
+  private val eventReader = mapper.readerFor(classOf[Event])
+
   /** The monitor. We wait on this object to sleep between pollings. */
   private object monitor
 
+  /** Whether the poller has been pumped since the current polling began. Guarded by monitor. */
+  private var pumped = false
+
+  /** The buses currently being processed by a worker, mapped to their domain. */
+  private val inflight = new ConcurrentHashMap[Long, Long]
+
+  /** The oldest undelivered event on each bus, as of when the bus was last processed. */
+  private val backlogs = new ConcurrentHashMap[Long, Backlog]
+
+  /** When buses that no longer exist were last pruned from the backlogs. Only accessed by the polling thread. */
+  private var backlogsPruned = new Date(0L)
+
+  /** Exposes the delivery lag of each bus. */
+  private val lagCollector = new Collector:
+    override def collect(): ju.List[MetricFamilySamples] =
+      val lag     = new GaugeMetricFamily(
+        "analytics_bus_lag_seconds",
+        "The age of the oldest undelivered event on an analytic bus",
+        ju.List.of("bus", "domain")
+      )
+      val current = now
+      backlogs forEach { (id, backlog) =>
+        val seconds = backlog.oldest.cata(oldest => (current.getTime - oldest.getTime) / 1000.0, 0.0)
+        lag.addMetric(ju.List.of(id.toString, backlog.domain.toString), seconds max 0.0)
+      }
+      ju.List.of(lag)
+
   /** Start this analytics poller.
     */
   private def start(): Unit =
     logger.info("Starting analytics poller")
+    CollectorRegistry.defaultRegistry.register(lagCollector)
     // start the polling loop with automatic restart on error
     executor.scheduleWithFixedDelay(this, 0, FailureRetryDelay.toSeconds, TimeUnit.SECONDS)
 
@@ -90,8 +130,11 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
   def shutdown(): Unit =
     logger.info("Stopping analytics poller")
     executor.shutdownNow()
+    workers.shutdownNow()
     val terminated =
-      executor.awaitTermination(ShutdownWaitTime.toSeconds, TimeUnit.SECONDS)
+      executor.awaitTermination(ShutdownWaitTime.toSeconds, TimeUnit.SECONDS) &&
+        workers.awaitTermination(ShutdownWaitTime.toSeconds, TimeUnit.SECONDS)
+    CollectorRegistry.defaultRegistry.unregister(lagCollector)
     logger.info(s"Stopped analytics poller: $terminated")
 
   /** Process analytics messages.
@@ -101,13 +144,16 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
       logger.debug("Analytics poller started")
       while !executor.isShutdown do
         logger.debug("Polling buses")
+        monitor.synchronized {
+          pumped = false
+        }
         val delta = if sm.isDas then
-          // poll the buses, return the time the next bus is scheduled
+          // dispatch the buses, return the time the next bus is scheduled
           val next = ManagedUtils.perform(
             new DispatcherOperation[Date](
-              () => processAllBuses(),
+              () => dispatchBuses(),
               "AnalyticsPoller",
-              classOf[AnalyticsPoller].getName + "/processAllBuses"
+              classOf[AnalyticsPoller].getName + "/dispatchBuses"
             )
           )
           // sleep until the next bus is scheduled
@@ -117,7 +163,7 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
           logger.debug(s"Waiting $delta")
           try
             monitor.synchronized {
-              monitor `wait` delta.toMillis
+              if !pumped then monitor `wait` delta.toMillis
             }
           catch ignoring[InterruptedException]
       end while
@@ -129,20 +175,75 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
   /** Force the analytics poller to check for new events.
     */
   private[analytics] def pump(): Unit = monitor.synchronized {
+    pumped = true
     monitor.notifyAll()
   }
 
-  /** Poll all buses for events to be processed.
+  /** Hand the buses that are due for processing to the workers. Buses that are already being processed, or whose
+    * domain already has a bus being processed, are left for a subsequent polling, as are any for which there is no
+    * free worker.
     * @return
     *   when the buses should next be polled; the earliest scheduled date
     */
-  private def processAllBuses(): Date =
+  private def dispatchBuses(): Date =
     ows.asOverlord(() =>
-      val pi = AnalyticsBusSettings.Key.getDomain.pollRate.seconds
-      for bus <- availableBuses do processBus(bus, pi)
-      Option(nextBusScheduled).getOrElse(now + pi)
+      val pi         = AnalyticsBusSettings.Key.getDomain.pollRate.seconds
+      val candidates = availableBuses.filterNot(bus => inflight.containsKey(bus.getId.longValue))
+      val domains    = inflight.values.asScala.toSet
+      // longest waiting first, at most one per domain, no more than there are free workers
+      val dispatched = candidates
+        .sortBy(_.getScheduled.getTime)
+        .distinctBy(_.getRootId.longValue)
+        .filterNot(bus => domains.contains(bus.getRootId.longValue))
+        .take(MaxConcurrency - inflight.size)
+      for bus <- dispatched do dispatchBus(bus.getId, bus.getRootId, pi)
+      pruneBacklogs()
+      // a worker pumps the poller when it completes, so anything left behind will be picked up then
+      if dispatched.size < candidates.size then now + pi
+      else Option(nextBusScheduled(inflight.keySet.asScala.toSeq)).getOrElse(now + pi)
     )
 
+  /** Forget the backlogs of buses that have since been deleted, at most once per [[PruneInterval]]. */
+  private def pruneBacklogs(): Unit =
+    if backlogsPruned < now - PruneInterval then
+      backlogs.keySet.retainAll(busIds.toSet.asJava)
+      backlogsPruned = now
+
+  /** Process a bus on a worker thread.
+    * @param id
+    *   the bus id
+    * @param domain
+    *   the bus domain
+    * @param pollInterval
+    *   the poll interval
+    */
+  private def dispatchBus(id: Long, domain: Long, pollInterval: Duration): Unit =
+    inflight.put(id, domain)
+    try workers.execute { () =>
+      try
+        ManagedUtils.perform(
+          new DispatcherOperation[Unit](
+            () =>
+              ows.asOverlord(() =>
+                Option(fs.getFacade(Long.box(id), classOf[AnalyticBusFacade])).foreach(processBus(_, pollInterval))
+              ),
+            "AnalyticsPoller",
+            classOf[AnalyticsPoller].getName + "/processBus"
+          )
+        )
+      catch
+        case NonFatal(e) =>
+          logger.warn(e)(s"Bus processing error: $id")
+      finally
+        inflight.remove(id)
+        pump()
+    }
+    catch
+      case NonFatal(e) =>
+        inflight.remove(id) // never ran, so it won't remove itself
+        throw e
+  end dispatchBus
+
   /** Attempt to lock a bus and then process its events.
     * @param bus
     *   the bus to process
@@ -206,6 +307,13 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
       else deliverEvents(bus, analytics)
     }
 
+    // the backlog is judged from this batch rather than queried afresh; a full batch that was delivered leaves
+    // more events no older than its last
+    val oldest = result match
+      case DeliverySuccess(_) => (analyticIds.size >= bus.getConfiguration.maxEvents).option(analytics.last.date)
+      case _                  => analytics.headOption.map(_.date)
+    backlogs.put(bus.getId, Backlog(bus.getRootId, oldest))
+
     // update the bus state at the end
     val level = if analyticIds.isEmpty then org.log4s.Debug else org.log4s.Info
     logger(level)(
@@ -260,6 +368,9 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
     * to the lookback window. An analytic is considered processed if it occurred before the lookback window or is in the
     * set of lookback Ids. We use this lookback mechanism allow for delayed insertion of events (e.g. a transaction
     * taken a minute to commit).
+    *
+    * The rows are read through a forward-only cursor a few at a time and each event is decoded directly from the raw
+    * JSON bytes, so neither the full result set nor an intermediate JSON tree or string is ever held in memory.
     * @note
     *   while this returns `Analytics`, they are backed by a case class and completely detached from the hibernate
     *   session, and thus safe for use without a transaction
@@ -271,50 +382,38 @@ class AnalyticsPoller(executor: ScheduledExecutorService)(implicit
   private def getAnalytics(bus: AnalyticBusFacade): Seq[AnalyticDto] =
     val window    = new Date(bus.getWindowTime)
     val windowIds = bus.getWindowIds
+    val maxEvents = bus.getConfiguration.maxEvents
     logger.debug(s"Polling bus ${bus.getId}, ${bus.getScheduled}, $window, ${windowIds.size}")
-    val analytics = queryService
-      .queryRoot(bus.getRootId, AnalyticConstants.ITEM_TYPE_ANALYTIC)
-      .addCondition(AnalyticConstants.DATA_TYPE_ANALYTIC_TIME, Comparison.ge, window)
-      .addCondition(AnalyticConstants.DATA_TYPE_ANALYTIC_TIME, Comparison.lt, now)
-      .addCondition(
-        BaseCondition.ofIterable(DataTypes.META_DATA_TYPE_ID, Comparison.unequalAll, windowIds)
-      ) // unequalAll generates less inefficient hibernate sql
-      .setOrder(AnalyticConstants.DATA_TYPE_ANALYTIC_TIME, Direction.ASC)
-      .setOrder(DataTypes.META_DATA_TYPE_ID, Direction.ASC)
-      .setLimit(bus.getConfiguration.maxEvents)
-      .setDataProjection(
-        BaseDataProjection.ofData(
-          DataTypes.META_DATA_TYPE_ID,
-          AnalyticConstants.DATA_TYPE_ANALYTIC_GUID,
-          AnalyticConstants.DATA_TYPE_ANALYTIC_TIME,
-          AnalyticConstants.DATA_TYPE_ANALYTIC_DATA_JSON
-        )
-      )
-      .getValues[Array[AnyRef]]
-    logger.debug(s"Found ${analytics.size} events")
-
-    def toDto(id: Number, guid: String, time: Date, ev: => Event): Try[AnalyticDto] =
-      Try(ev) map { data =>
-        AnalyticDto(
-          id = id.longValue,
-          guid = UUID `fromString` guid,
-          date = time,
-          eventData = data
-        )
+    val analytics = Vector.newBuilder[AnalyticDto]
+    val session   = ManagedUtils.getEntityContext.getEntityManager.unwrap(classOf[Session])
+    session.doWork { con =>
+      Using.resource(con.prepareStatement(AnalyticsQuery)) { stmt =>
+        stmt.setFetchSize(FetchSize min maxEvents)
+        stmt.setLong(1, bus.getRootId)
+        stmt.setTimestamp(2, new Timestamp(window.getTime))
+        stmt.setTimestamp(3, new Timestamp(now.getTime))
+        stmt.setArray(4, con.createArrayOf("bigint", windowIds.map(Long.box).toArray[AnyRef]))
+        stmt.setInt(5, maxEvents)
+        Using.resource(stmt.executeQuery()) { rs =>
+          while rs.next() do
+            val guid = rs.getString(2)
+            val data = rs.getBytes(4)
+            // so the bus doesn't pause before we implement proper event versioning
+            Try(
+              AnalyticDto(
+                id = rs.getLong(1),
+                guid = UUID `fromString` guid,
+                date = new Date(rs.getTimestamp(3).getTime),
+                eventData = eventReader.readValue[Event](data)
+              )
+            ).tapFailure(e => logger.warn(e)(s"DROPPED EVENT event[$guid], data:${new String(data, UTF_8)}"))
+              .foreach(analytics += _)
+          end while
+        }
       }
-
-    // so the bus doesn't pause before we implement proper event versioning
-    analytics.flatMap {
-      // This is what Hibernate should and used to return based on the column definition
-      case Array(id: Number, guid: String, time: Date, ev: ObjectNode) =>
-        toDto(id, guid, time, mapper.treeToValue(ev, classOf[Event]))
-          .tapFailure(e => logger.warn(e)(s"DROPPED EVENT event[$guid], data:${mapper.writeValueAsString(ev)}"))
-          .toOption
-      // This is what Hibernate 5.4 and its grand fsckulence has started returning instead
-      case Array(id: Number, guid: String, time: Date, ev: String)     =>
-        toDto(id, guid, time, mapper.readValue(ev, classOf[Event]))
-          .tapFailure(e => logger.warn(e)(s"DROPPED EVENT event[$guid], data:$ev"))
-          .toOption
+    }
+    analytics.result() <| { result =>
+      logger.debug(s"Found ${result.size} events")
     }
   end getAnalytics
 
@@ -459,7 +558,10 @@ object AnalyticsPoller:
     fns: BusFailureNotificationService,
     cs: ComponentService
   ): AnalyticsPoller =
-    new AnalyticsPoller(Executors.newSingleThreadScheduledExecutor(threadFactory)) <| {
+    new AnalyticsPoller(
+      Executors.newSingleThreadScheduledExecutor(threadFactory),
+      Executors.newFixedThreadPool(MaxConcurrency, workerThreadFactory)
+    ) <| {
       _.start()
     }
 
@@ -467,6 +569,18 @@ object AnalyticsPoller:
   private def threadFactory =
     new ThreadFactoryBuilder().setNameFormat("AnalyticsPoller-%d").build()
 
+  /** A worker thread factory with a nice name. */
+  private def workerThreadFactory =
+    new ThreadFactoryBuilder().setNameFormat("AnalyticsWorker-%d").build()
+
+  /** The oldest undelivered event on a bus.
+    * @param domain
+    *   the bus domain
+    * @param oldest
+    *   the date of the oldest undelivered event, if any
+    */
+  private final case class Backlog(domain: Long, oldest: Option[Date])
+
   private def normalDomains(implicit qs: QueryService): QueryBuilder = qs
     .queryAllDomains(DomainConstants.ITEM_TYPE_DOMAIN)
     .addCondition(DomainConstants.DATA_TYPE_DOMAIN_STATE, Comparison.eq, DomainState.Normal)
@@ -481,16 +595,24 @@ object AnalyticsPoller:
       .asScala
       .toSeq
 
-  /** Get the next active bus scheduled date. */
-  private def nextBusScheduled(implicit ows: OverlordWebService, qs: QueryService): Date =
+  /** Get the next active bus scheduled date, ignoring buses that are currently being processed. */
+  private def nextBusScheduled(excluded: Seq[Long])(implicit ows: OverlordWebService, qs: QueryService): Date =
     queryBuses
       .addJoinQuery(DataTypes.META_DATA_TYPE_ROOT_ID, normalDomains)
+      .addCondition(BaseCondition.ofIterable(DataTypes.META_DATA_TYPE_ID, Comparison.unequalAll, excluded))
       .addCondition(AnalyticConstants.DATA_TYPE_ANALYTIC_BUS_STATE, Comparison.eq, AnalyticBusState.Active)
       .setDataProjection(
         BaseDataProjection.ofAggregateData(AnalyticConstants.DATA_TYPE_ANALYTIC_BUS_SCHEDULED, Function.MIN)
       )
       .getResult[Date]
 
+  /** Get the ids of all buses in normal domains, whatever their state. */
+  private def busIds(implicit ows: OverlordWebService, qs: QueryService): Seq[Long] =
+    queryBuses
+      .addJoinQuery(DataTypes.META_DATA_TYPE_ROOT_ID, normalDomains)
+      .setDataProjection(DataTypes.META_DATA_TYPE_ID)
+      .getValues[Long]
+
   /** Get the furthest back lookback window of any bus on this domain, whether active or suspended. */
   private def minimumWindow(domain: Long)(implicit qs: QueryService): Long =
     qs.queryRoot(domain, AnalyticConstants.ITEM_TYPE_ANALYTIC_BUS)
@@ -521,6 +643,9 @@ object AnalyticsPoller:
   /** The logger. */
   private val logger = org.log4s.getLogger
 
+  /** How often the backlogs of deleted buses are pruned. */
+  private val PruneInterval = 5.minutes
+
   /** Delay before retry on polling failure. */
   private val FailureRetryDelay = 15.seconds
 
@@ -529,6 +654,9 @@ object AnalyticsPoller:
   /** Shutdown wait time. */
   private val ShutdownWaitTime = 20.seconds
 
+  /** Maximum number of buses to process concurrently. */
+  private val MaxConcurrency = 4
+
   /** Bus lock timeout. */
   private val LockTimeout = 1.second
 
@@ -543,4 +671,14 @@ object AnalyticsPoller:
 
   /** Maximum number of events to count. */
   private val MaxCount = 10000
+
+  /** Number of analytic rows to fetch from the database at a time. */
+  private val FetchSize = 250
+
+  /** Select the next chunk of analytics after a lookback window, excluding those in the lookback Ids. */
+  private val AnalyticsQuery =
+    """SELECT id, guid, time, datajson FROM AnalyticFinder
+      | WHERE root_id = ? AND time >= ? AND time < ? AND id <> ALL (?)
+      | ORDER BY time ASC, id ASC
+      | LIMIT ?""".stripMargin
 end AnalyticsPoller
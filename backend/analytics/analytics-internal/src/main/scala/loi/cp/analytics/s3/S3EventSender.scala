@@ -33,7 +33,7 @@ import scalaz.std.option.*
 import software.amazon.awssdk.core.sync.RequestBody
 import software.amazon.awssdk.services.s3.model.PutObjectRequest
 
-import java.nio.charset.StandardCharsets
+import java.io.ByteArrayOutputStream
 import java.text.SimpleDateFormat
 import java.time.Instant
 import java.util.{Calendar, Date}
@@ -44,10 +44,13 @@ class S3EventSender(
   sm: ServiceMeta
 ) extends AnalyticsSender:
 
-  import S3EventSender.log
+  import S3EventSender.{EstimatedEventSize, log}
 
   val format = new SimpleDateFormat("yyyy/MM/dd")
 
+  /** Writes each event as a single line of JSON. */
+  private val writer = JacksonUtils.getMapper.writer().without(SerializationFeature.INDENT_OUTPUT)
+
   override def sendAnalytics(
     events: Seq[Analytic],
     busConfig: AnalyticBusConfiguration,
@@ -56,13 +59,15 @@ class S3EventSender(
     \/.attempt({
       val analyticsConfig = AnalyticsConfig.fromRootConfig(cfg)
 
-      val s3     = analyticsConfig.events.s3.getClient(analyticsConfig.region)
-      val mapper = JacksonUtils.getMapper.copy().disable(SerializationFeature.INDENT_OUTPUT)
+      val s3 = analyticsConfig.events.s3.getClient(analyticsConfig.region)
 
-      val jsonLines = events.to(LazyList).map { event =>
-        mapper.writeValueAsString(event) + "\n"
+      // serialize straight into one buffer rather than via a string per event
+      val out   = new ByteArrayOutputStream(events.size * EstimatedEventSize)
+      events foreach { event =>
+        writer.writeValue(out, event)
+        out.write('\n')
       }
-      val bytes     = jsonLines.flatMap(_.getBytes(StandardCharsets.UTF_8)).toArray
+      val bytes = out.toByteArray
 
       log.info(s"Writing event Stream to s3 w/ byte length: ${bytes.length}")
 
@@ -87,3 +92,6 @@ object S3EventSender:
   final val log: Logger = org.log4s.getLogger
 
   final val S3EventSenderIdentifier = "S3EventSender"
+
+  /** A rough guess at the serialized size of an event, used to size the upload buffer. */
+  private final val EstimatedEventSize = 512
@@ -18,10 +18,10 @@
 package loi.authoring.exchange.exprt
 
 import com.fasterxml.jackson.databind.{JsonNode, ObjectMapper}
-import com.google.common.io.ByteStreams
 import com.learningobjects.cpxp.component.annotation.Service
 import com.learningobjects.cpxp.component.web.util.JacksonUtils
 import com.learningobjects.cpxp.operation.Operations
+import com.learningobjects.cpxp.scala.util.Stopwatch
 import com.learningobjects.cpxp.service.domain.DomainDTO
 import com.learningobjects.cpxp.service.user.UserDTO
 import com.learningobjects.cpxp.util.*
@@ -39,15 +39,19 @@ import loi.authoring.exchange.model.{
 import loi.authoring.node.AssetNodeService
 import loi.authoring.workspace.WorkspaceService
 import loi.cp.asset.exchange.impl.AssetExchangeRequestStatus
-import loi.cp.i18n.AuthoringBundle
+import loi.cp.i18n.{AuthoringBundle, BundleMessage}
+import org.apache.commons.compress.archivers.zip.{ParallelScatterZipCreator, ZipArchiveEntry, ZipArchiveOutputStream}
+import org.apache.commons.io.FilenameUtils
 import org.apache.commons.lang3.StringUtils.trimToNull
 import org.hibernate.Session
 import scalaz.Validation
 
-import java.io.{BufferedOutputStream, IOException, InputStream}
+import java.io.{ByteArrayInputStream, FilterInputStream, IOException, InputStream}
 import java.nio.file.{Files, Path, Paths}
-import java.util.zip.{ZipEntry, ZipOutputStream}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentLinkedQueue, ExecutionException, Executors, Semaphore}
 import java.util.{Date, UUID}
+import scala.util.control.NonFatal
 
 @Service
 class BaseExportService(
@@ -124,17 +128,24 @@ class BaseExportService(
     val entity = exportReceiptDao.loadReference(receipt)
     exportReceiptDao.delete(entity)
 
+  /** Zip the attachments and manifest. Entries are added to a scatter zip whose workers fetch the attachments
+    * concurrently and compress each into a temporary file. Only a few entries are outstanding at once, so the open
+    * blob fetches and memory use are bounded however large the export. The scattered entries are then stitched into
+    * the archive.
+    */
   private def createZipPath(manifest: ExportableExchangeManifest, report: TaskReport, guid: String): Path =
     val zipPath = Files.createTempFile(s"export-$guid", ".zip") // todo: name of file?
     zipPath.toFile.deleteOnExit()
 
-    var zip: ZipOutputStream = null
+    val stopwatch = new Stopwatch
+    val executor  = Executors.newFixedThreadPool(ZipParallelism)
     try
-      zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zipPath)))
+      val zip           = new ParallelScatterZipCreator(executor)
+      val entries       = new AttachmentEntries(zip, report)
       val batches       = manifest.nodes.filter(_.hasAttachment).grouped(1000).toSeq
       val filenameState = batches.foldLeft(EmptyFilenameState)((batchesAcc, batch) =>
         val nextAcc = batch.foldLeft(batchesAcc)({ case (batchAcc, node) =>
-          writeAttachment(node, zip, batchAcc, report)
+          writeAttachment(node, entries, batchAcc, report)
         })
         EntityContext.flushClearAndCommit()
         // `writeAttachment` adds to `batchAcc` which adds to `batchesAcc`, so we have
@@ -143,9 +154,17 @@ class BaseExportService(
       )
 
       val manifest2 = replaceAttachmentFilenames(manifest.jsonManifest, filenameState)
-      ZipUtils.writeJsonZipEntry(zip, "manifest.json", manifest2)
+      val json      = JacksonUtils.getMapper.writeValueAsBytes(manifest2)
+      zip.addArchiveEntry(zipEntry("manifest.json", ZipArchiveEntry.DEFLATED), () => new ByteArrayInputStream(json))
+
+      val out = new ZipArchiveOutputStream(zipPath)
+      try zip.writeTo(out)
+      catch case ex: ExecutionException => throw ex.getCause
+      finally out.close()
+      entries.drain()
+      logger.info(s"Export zip: ${zip.getStatisticsMessage}, ${stopwatch.elapsed.toMillis} ms")
       zipPath
-    finally if zip != null then zip.close()
+    finally executor.shutdownNow()
     end try
   end createZipPath
 
@@ -157,58 +176,53 @@ class BaseExportService(
     val path: Path = createZipPath(manifest, report, guid)
     file2BlobService.putBlob(path.toFile)
 
+  /** Add an attachment entry to the zip. The blob is only fetched when a zip worker opens the entry, and progress is
+    * marked once the entry has been written.
+    */
   private def writeAttachment(
     node: ExportableNode,
-    zip: ZipOutputStream,
+    entries: AttachmentEntries,
     filenameState: FilenameState,
     report: TaskReport,
   ): FilenameState =
 
-    val blobInfo          = getBlobInfo(node, report)
-    val nextFilenameState = blobInfo.foldLeft(filenameState)((_, blob) =>
+    val blobRef           = getBlobRef(node)
+    val nextFilenameState = blobRef.fold({
+      report.markProgress()
+      filenameState
+    })(ref =>
+      val provider = blobService.getProvider(ref.provider)
 
       def putZipEntry(filename: String): Unit =
-        var attachment: InputStream = null
-        try
-          attachment = blob.openInputStream()
-          val path = Paths.get("attachments").resolve(filename).toString
-          zip.putNextEntry(new ZipEntry(path))
-          ByteStreams.copy(attachment, zip)
-          zip.closeEntry()
-        catch
-          case ex: IOException =>
-            report.addWarning(
-              AuthoringBundle
-                .message("export.attachmentIoException", ex.getMessage, blob.getNiceName, node.id)
-            )
-        finally if attachment != null then attachment.close()
-        end try
+        val path = Paths.get("attachments").resolve(filename).toString
+        entries.add(
+          path,
+          () => provider.getBlob(ref.name).getPayload.openStream(),
+          ex => AuthoringBundle.message("export.attachmentIoException", ex.getMessage, ref.filename, node.id)
+        )
       end putZipEntry
 
-      val (nextFnState, filename) = uniqueFilename(node.id, blob, filenameState)
+      val (nextFnState, filename) = uniqueFilename(node.id, ref.filename, filenameState)
       filename match
         case Some(fname) =>
           putZipEntry(fname)
         case None        =>
           report.addWarning(AuthoringBundle.message("export.attachment.missingFilename", node.id))
+          report.markProgress()
       nextFnState
     )
 
-    report.markProgress()
     nextFilenameState
   end writeAttachment
 
-  private def getBlobInfo(node: ExportableNode, report: TaskReport): Option[BlobInfo] =
-    val source = Option(node.data.get("source"))
-    if source.isDefined then source.map(s => blobService.ref2Info(Mapper.convertValue(s, classOf[BlobRef])))
-    else None
+  private def getBlobRef(node: ExportableNode): Option[BlobRef] =
+    Option(node.data.get("source")).map(s => Mapper.convertValue(s, classOf[BlobRef]))
 
   private def uniqueFilename(
     nodeImportId: String,
-    info: BlobInfo,
+    fileName: String,
     filenameState: FilenameState,
   ): (FilenameState, Option[String]) =
-    val fileName             = info.getNiceName
     val nextStateAndFilename = Option(trimToNull(fileName)).map(trimmedName =>
 
       /** when bypass is on, we want to add a replacement unconditionally so that when [[replaceAttachmentFilenames]] is
@@ -239,9 +253,104 @@ class BaseExportService(
 end BaseExportService
 
 private object BaseExportService:
+  private final val logger = org.log4s.getLogger
+
   val EmptyFilenameState: FilenameState = FilenameState(Set.empty, Map.empty)
   val Mapper: ObjectMapper              = JacksonUtils.getFinatraMapper
 
+  /** The number of attachments to fetch and compress at once. */
+  final val ZipParallelism = 8
+
+  /** The number of attachment entries that may be waiting for or held by the zip workers. */
+  final val MaxPendingEntries = ZipParallelism * 4
+
+  /** Extensions of attachment types that are already compressed. */
+  final val CompressedExtensions = Set(
+    "7z", "aac", "avi", "docx", "gif", "gz", "jpeg", "jpg", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "mpeg", "mpg",
+    "oga", "ogg", "ogv", "pdf", "png", "pptx", "webm", "webp", "woff", "woff2", "xlsx", "zip"
+  )
+
+  def isCompressed(filename: String): Boolean =
+    CompressedExtensions.contains(FilenameUtils.getExtension(filename).toLowerCase)
+
+  def zipEntry(path: String, method: Int): ZipArchiveEntry =
+    val entry = new ZipArchiveEntry(path)
+    entry.setMethod(method)
+    entry
+
+  /** Attachment entries handed to the zip workers. Adding an entry blocks while [[MaxPendingEntries]] are
+    * outstanding, so the export thread can't run ahead of the workers. Entries are opened on the workers, and their
+    * warnings and progress are handed back to the export thread because task reports are not thread safe.
+    */
+  final class AttachmentEntries(zip: ParallelScatterZipCreator, report: TaskReport):
+    private val permits   = new Semaphore(MaxPendingEntries)
+    private val completed = new AtomicInteger
+    private val warnings  = new ConcurrentLinkedQueue[BundleMessage]
+
+    /** Add an entry. A failure to read the attachment is reported as a warning and ends its entry rather than failing
+      * the whole export.
+      */
+    def add(path: String, open: () => InputStream, warning: IOException => BundleMessage): Unit =
+      permits.acquire()
+      drain()
+      // already compressed media gains nothing from deflating again
+      val method = if isCompressed(path) then ZipArchiveEntry.STORED else ZipArchiveEntry.DEFLATED
+      zip.addArchiveEntry(
+        zipEntry(path, method),
+        () =>
+          try new LenientInputStream(open(), ex => warnings.add(warning(ex)), () => complete())
+          catch
+            case ex: IOException =>
+              warnings.add(warning(ex))
+              complete()
+              InputStream.nullInputStream()
+            case NonFatal(ex)    =>
+              complete()
+              throw ex
+      )
+    end add
+
+    /** Report the warnings and progress of the entries completed so far. */
+    def drain(): Unit =
+      Iterator.continually(warnings.poll()).takeWhile(_ != null).foreach(report.addWarning)
+      val count = completed.getAndSet(0)
+      if count > 0 then report.markProgress(count)
+
+    private def complete(): Unit =
+      completed.incrementAndGet()
+      permits.release()
+  end AttachmentEntries
+
+  /** An input stream that ends at the first read failure, reporting the failure instead of throwing it, and notifies
+    * when it is closed.
+    */
+  final class LenientInputStream(in: InputStream, warn: IOException => Unit, closed: () => Unit)
+      extends FilterInputStream(in):
+    private var failed    = false
+    private var completed = false
+
+    override def close(): Unit =
+      try super.close()
+      finally
+        if !completed then
+          completed = true
+          closed()
+
+    override def read(): Int = lenient(super.read())
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int = lenient(super.read(b, off, len))
+
+    private def lenient(read: => Int): Int =
+      if failed then -1
+      else
+        try read
+        catch
+          case ex: IOException =>
+            failed = true
+            warn(ex)
+            -1
+  end LenientInputStream
+
   /** @param replacements
     *   filenames that had to be changed to prevent filename collision in the zip directory. Map of import id to new
     *   filename
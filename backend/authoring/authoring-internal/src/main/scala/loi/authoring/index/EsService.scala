@@ -25,8 +25,9 @@ import com.learningobjects.cpxp.service.domain.DomainDTO
 import com.sksamuel.elastic4s.*
 import com.sksamuel.elastic4s.analysis.{Analysis, CustomAnalyzer}
 import com.sksamuel.elastic4s.http.{JavaClient, NoOpRequestConfigCallback}
+import com.sksamuel.elastic4s.requests.bulk.{BulkCompatibleRequest, BulkResponseItem}
 import com.sksamuel.elastic4s.requests.script.Script
-import com.sksamuel.elastic4s.requests.searches.HighlightField
+import com.sksamuel.elastic4s.requests.searches.{HighlightField, SearchHit, SearchResponse}
 import com.sksamuel.elastic4s.requests.searches.aggs.TermsAggregation
 import com.sksamuel.elastic4s.requests.searches.sort.{FieldSort, SortOrder}
 import com.typesafe.config.Config
@@ -46,9 +47,12 @@ import cats.implicits.catsStdInstancesForFuture
 import scala.concurrent.ExecutionContext.Implicits.global
 
 import java.nio.charset.StandardCharsets
+import java.nio.file.Paths
 import java.util.{Base64, UUID}
+import scala.annotation.tailrec
 import scala.collection.mutable
 import scala.concurrent.duration.*
+import scala.concurrent.{Future, blocking}
 import scala.util.control.NonFatal
 
 /** Elastic search service. */
@@ -58,9 +62,7 @@ trait EsService extends EsSearch:
   def indexExists: Boolean
   def createIndex(): Unit
   def deleteIndex(): Unit
-  def indexDocument(document: AssetNodeDocument): Unit
-  def updateDocument(branch: Long, offering: Long, name: UUID, fields: (String, Any)*): Unit
-  def deleteDocument(branch: Long, offering: Long, name: UUID): Unit
+  def bulkWrite(writes: Seq[EsWrite]): Future[Seq[EsWriteFailure]]
   def updateByQuery(query: EsQuery, fields: (String, String)*): Unit
   def deleteByQuery(query: EsQuery): Unit
 end EsService
@@ -70,13 +72,36 @@ class EsSearchImpl(esService: EsService) extends EsSearch:
   override def search(query: EsQuery): EsResults      = esService.search(query)
   override def searchAll(query: EsQuery): List[EsHit] = esService.searchAll(query)
 
+/** Search service that uses an embedded Lucene index if `opensearch.directory` is configured, else the cluster. */
 @Service
 class EsServiceImpl(
   config: Config,
   domain: => DomainDTO,
   serviceMeta: ServiceMeta,
 ) extends EsService:
-  import EsServiceImpl.*
+  private lazy val delegate: EsService =
+    config.getOptionString("opensearch.directory").filter(_.nonEmpty) match
+      case Some(directory) => new LuceneEsService(Paths.get(directory), domain, serviceMeta)
+      case None            => new OpenSearchEsService(config, domain, serviceMeta)
+
+  override def isConfigured: Boolean                                          = delegate.isConfigured
+  override def indexExists: Boolean                                           = delegate.indexExists
+  override def createIndex(): Unit                                            = delegate.createIndex()
+  override def deleteIndex(): Unit                                            = delegate.deleteIndex()
+  override def bulkWrite(writes: Seq[EsWrite]): Future[Seq[EsWriteFailure]]   = delegate.bulkWrite(writes)
+  override def updateByQuery(query: EsQuery, fields: (String, String)*): Unit = delegate.updateByQuery(query, fields*)
+  override def deleteByQuery(query: EsQuery): Unit                            = delegate.deleteByQuery(query)
+  override def search(query: EsQuery): EsResults                              = delegate.search(query)
+  override def searchAll(query: EsQuery): List[EsHit]                         = delegate.searchAll(query)
+end EsServiceImpl
+
+/** Search service backed by an OpenSearch cluster. */
+class OpenSearchEsService(
+  config: Config,
+  domain: => DomainDTO,
+  serviceMeta: ServiceMeta,
+) extends EsService:
+  import OpenSearchEsService.*
   import com.sksamuel.elastic4s.ElasticDsl.{
     createIndex as esCreateIndex,
     deleteByQuery as esDeleteByQuery,
@@ -119,25 +144,50 @@ class EsServiceImpl(
     val success = execute(esDeleteIndex(indexName))
     logger.info(s"Delete index: $success")
 
-  /** Index a document into the elastic search index. */
-  override def indexDocument(document: AssetNodeDocument): Unit =
-    ensureIndex()
-    val success = execute(
-      indexInto(indexName).doc(document).id(documentId(document.branch, document.offering, document.name))
-    )
-    logger.info(s"Index document: $success")
-
-  /** Update a document into the elastic search index. */
-  override def updateDocument(branch: Long, offering: Long, name: UUID, fields: (String, Any)*): Unit =
+  /** Perform document writes in a single bulk request. The request is built on the calling thread, which knows the
+    * domain, and executed asynchronously. Writes that the cluster rejects as too many requests are retried, other
+    * failures are returned.
+    */
+  override def bulkWrite(writes: Seq[EsWrite]): Future[Seq[EsWriteFailure]] =
     ensureIndex()
-    val success = execute(updateById(indexName, documentId(branch, offering, name)).doc(fields))
-    logger.info(s"Index document: $success")
-
-  /** Delete a specific document in the elastic search index. */
-  override def deleteDocument(branch: Long, offering: Long, name: UUID): Unit =
-    ensureIndex()
-    val success = execute(deleteById(indexName, documentId(branch, offering, name)))
-    logger.info(s"Delete documents: $success")
+    val index    = indexName
+    val requests = writes.toVector.map(bulkRequest(index, _))
+    Future(blocking(bulkWrite0(writes.toVector, requests)))
+
+  private def bulkWrite0(writes: Vector[EsWrite], requests: Vector[BulkCompatibleRequest]): Seq[EsWriteFailure] =
+    val ts = new Stopwatch
+
+    def failure(item: BulkResponseItem, pending: Vector[Int]): EsWriteFailure =
+      EsWriteFailure(writes(pending(item.itemId)), item.status, item.error.fold("")(_.reason))
+
+    @tailrec def loop(pending: Vector[Int], count: Int, failed: List[EsWriteFailure]): List[EsWriteFailure] =
+      val response             = execute(bulk(pending.map(requests)))
+      // deleting a missing document is not an error
+      val (rejected, failures) = response.items.filter(_.error.isDefined).partition(_.status == TooManyRequests)
+      val failed1              = failures.map(failure(_, pending)) ++: failed
+      if rejected.isEmpty then failed1
+      else if (count >= MaxAttempts) || (ts.elapsed >= AttemptTimeout) then rejected.map(failure(_, pending)) ++: failed1
+      else
+        logger.warn(s"ElasticSearch bulk rejected ${rejected.size} documents, retry: $count")
+        Thread.sleep(count.seconds.toMillis)
+        loop(rejected.map(item => pending(item.itemId)).toVector, count + 1, failed1)
+    end loop
+
+    val failed = loop(writes.indices.toVector, 1, Nil)
+    logger.info(s"Bulk write: ${writes.size} documents, ${failed.size} failed, ${ts.elapsed.toMillis} ms")
+    failed
+  end bulkWrite0
+
+  private def bulkRequest(index: String, write: EsWrite): BulkCompatibleRequest = write match
+    case indexWrite: EsWrite.Index                      =>
+      val document = indexWrite.document
+      indexInto(index)
+        .doc(indexWrite.source)(SourceIndexable)
+        .id(EsWrite.documentId(document.branch, document.offering, document.name))
+    case EsWrite.Update(branch, offering, name, fields) =>
+      updateById(index, EsWrite.documentId(branch, offering, name)).doc(fields)
+    case EsWrite.Delete(branch, offering, name)         =>
+      deleteById(index, EsWrite.documentId(branch, offering, name))
 
   /** Update all documents matching a query. */
   override def updateByQuery(query: EsQuery, fields: (String, String)*): Unit =
@@ -160,48 +210,66 @@ class EsServiceImpl(
     val success = execute(esDeleteByQuery(indexName, query.elastically))
     logger.info(s"Delete documents: $success")
 
-  /** Perform a search against the elastic search index, page through all results and return all matches. */
+  /** Perform a search against the elastic search index, page through all results and return all matches. Each page
+    * searches after the sort values of the last hit of the previous, with the document identity breaking ties, so
+    * every page costs the same and there is no limit on the result window.
+    */
   override def searchAll(query: EsQuery): List[EsHit] =
-    def loop(hits: List[EsHit]): List[EsHit] =
-      val results  = search(query.copy(from = hits.size.some))
-      val combined = hits ::: results.hits
-      if combined.size >= results.total then combined else loop(combined)
+    val pageSize  = query.size | SearchAllPageSize
+    val pageQuery = query.copy(from = None, size = pageSize.some, aggregate = None)
+    val hits      = List.newBuilder[EsHit]
+    @tailrec def loop(after: Seq[Any]): Unit =
+      val page = executeSearch(pageQuery, TiebreakSorts, after).hits.hits
+      hits ++= page.map(esHit)
+      page.lastOption.flatMap(_.sort) match
+        case Some(values) if page.length == pageSize => loop(values)
+        case _                                       =>
     loop(Nil)
+    hits.result()
+  end searchAll
 
   /** Perform a search against the elastic search index. */
   override def search(query: EsQuery): EsResults =
+    val response = executeSearch(query, Nil, Nil)
+    // Map the results
+    val results  = EsResults(
+      total = response.totalHits,
+      hits = response.hits.hits.toList.map(esHit),
+      aggregates = query.aggregate.foldZ(field =>
+        response.aggregations.filters(field).aggResults.map(f => f.dataAsMap("key") -> f.docCount).toMap
+      )
+    )
+    logger.debug(s"Search results: $response -> $results")
+    results
+  end search
+
+  private def executeSearch(query: EsQuery, tiebreaks: List[FieldSort], after: Seq[Any]): SearchResponse =
     // Convert the query model into an elastic search command
-    val command  =
+    val sorted  =
       esSearch(indexName)
         .query(query.elastically)
         .copy(from = query.from)
         .copy(size = query.size)
-        .copy(sorts = query.sortBy.map(t => FieldSort(t._1).order(t._2.fold(SortOrder.ASC, SortOrder.DESC))))
+        .copy(sorts =
+          query.sortBy.map(t => FieldSort(t._1).order(t._2.fold(SortOrder.ASC, SortOrder.DESC))) ::: tiebreaks
+        )
         .sourceInclude("project", "branch", "name", "archived")
         .highlighting(HighlightField(field = "*", preTags = "{{{" :: Nil, postTags = "}}}" :: Nil))
         .copy(aggs = query.aggregate.map(field => TermsAggregation(field, field = Some(field))).toList)
+    val command = if after.isEmpty then sorted else sorted.searchAfter(after)
     logger.debug(s"Search request: $query -> $command")
     // Execute the command
-    val response = execute(command)
-    // Map the results
-    val results  = EsResults(
-      total = response.totalHits,
-      hits = response.hits.hits.toList.map(hit =>
-        EsHit(
-          project = hit.sourceField("project").asInstanceOf[Number].longValue,
-          branch = hit.sourceField("branch").asInstanceOf[Number].longValue,
-          name = UUID.fromString(hit.sourceField("name").asInstanceOf[String]),
-          highlights = hit.highlight.view.filterKeys(_ != "typeId").toMap,
-          archived = hit.sourceField("archived").asInstanceOf[Boolean].booleanValue,
-        )
-      ),
-      aggregates = query.aggregate.foldZ(field =>
-        response.aggregations.filters(field).aggResults.map(f => f.dataAsMap("key") -> f.docCount).toMap
-      )
+    execute(command)
+  end executeSearch
+
+  private def esHit(hit: SearchHit): EsHit =
+    EsHit(
+      project = hit.sourceField("project").asInstanceOf[Number].longValue,
+      branch = hit.sourceField("branch").asInstanceOf[Number].longValue,
+      name = UUID.fromString(hit.sourceField("name").asInstanceOf[String]),
+      highlights = hit.highlight.view.filterKeys(_ != "typeId").toMap,
+      archived = hit.sourceField("archived").asInstanceOf[Boolean].booleanValue,
     )
-    logger.debug(s"Search results: $response -> $results")
-    results
-  end search
 
   /** Execute an elastic search command and await a successful response value. */
   def execute[T, U](t: T)(implicit handler: Handler[T, U], javaTypeable: JavaTypeable[U]): U =
@@ -244,10 +312,6 @@ class EsServiceImpl(
   /** The index name for the current domain. */
   private def indexName = s"${serviceMeta.getCluster.toLowerCase}_${domain.id}"
 
-  /** The identifier of a document. */
-  private def documentId(branch: Long, offering: Long, name: UUID): String =
-    s"${if offering == 0L then branch else offering}:$name"
-
   /** The maybe elastic client. */
   private lazy val client =
     for
@@ -284,9 +348,9 @@ class EsServiceImpl(
     val identity   = config.getString("opensearch.identity")
     val credential = config.getString("opensearch.credential")
     StaticCredentialsProvider.create(AwsBasicCredentials.create(identity, credential))
-end EsServiceImpl
+end OpenSearchEsService
 
-object EsServiceImpl:
+object OpenSearchEsService:
   private final val logger = org.log4s.getLogger
 
   private final val knownIndices = mutable.Set.empty[String]
@@ -295,11 +359,53 @@ object EsServiceImpl:
   private final val AttemptTimeout = 30.seconds
   private final val RequestTimeout = 20.seconds
 
+  /** Bulk item status of a write rejected because the cluster is overloaded. */
+  private final val TooManyRequests = 429
+
+  private final val SearchAllPageSize = 1000
+
+  /** Sorts that together identify a document, so search after a hit can't skip or repeat any. */
+  private final val TiebreakSorts =
+    List("offering", "branch", "name").map(field => FieldSort(field).order(SortOrder.ASC))
+
+  /** Index a document from its precomputed source. */
+  private final val SourceIndexable: Indexable[String] = source => source
+
   private implicit val commonRequestOptions: CommonRequestOptions = CommonRequestOptions(
     timeout = RequestTimeout,
     masterNodeTimeout = 0.seconds // unsupported by some commands..
   )
-end EsServiceImpl
+end OpenSearchEsService
 
 /** An error occurred talking to the elastic search servec. */
 final case class EsFailure(request: Any) extends Exception
+
+/** A document write that can be performed in bulk. */
+sealed trait EsWrite:
+
+  /** The asset name of the document. */
+  def name: UUID
+
+  /** Approximately how much this write adds to a bulk request body. */
+  def size: Int
+
+object EsWrite:
+
+  /** The identifier of a document. */
+  def documentId(branch: Long, offering: Long, name: UUID): String =
+    s"${if offering == 0L then branch else offering}:$name"
+
+  final case class Index(document: AssetNodeDocument) extends EsWrite:
+    lazy val source: String = AssetNodeDocument.nodeDocumentIndexable.json(document)
+    override def name: UUID = document.name
+    override def size: Int  = source.length + 128
+
+  final case class Update(branch: Long, offering: Long, name: UUID, fields: Seq[(String, Any)]) extends EsWrite:
+    override def size: Int = 256
+
+  final case class Delete(branch: Long, offering: Long, name: UUID) extends EsWrite:
+    override def size: Int = 128
+end EsWrite
+
+/** A document write that failed. */
+final case class EsWriteFailure(write: EsWrite, status: Int, reason: String)
@@ -18,6 +18,7 @@
 package loi.authoring.index
 
 import com.learningobjects.cpxp.component.annotation.Service
+import com.learningobjects.cpxp.scala.util.Stopwatch
 import com.learningobjects.cpxp.service.mime.MimeWebService
 import loi.asset.util.Assex.asshatOps
 import loi.authoring.asset.Asset
@@ -41,6 +42,8 @@ import scaloi.syntax.set.*
 
 import java.util.UUID
 import scala.collection.mutable
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future}
 
 /** Proof-of-concept index service that demonstrates how to index a branch. */
 @Service
@@ -74,24 +77,28 @@ class IndexServiceImpl(
   import IndexServiceImpl.*
 
   override def indexAll(delete: Boolean): Unit =
-    indexAllCommands(delete) `foldMapU` execute
+    profiled("all branches")(execute(indexAllCommands(delete), BulkParallelism))
 
   override def indexBranch(branchId: Long, delete: Boolean): Unit =
     val workspace = workspaceService.requireReadWorkspace(branchId, AccessRestriction.none)
-    indexBranchCommands(workspace, delete) `foldMapU` execute
+    profiled(s"branch $branchId")(execute(indexBranchCommands(workspace, delete), BulkParallelism))
 
   override def indexOffering(offeringId: Long, branchId: Long, commitId: Long, delete: Boolean): Unit =
     val workspace = workspaceService.requireReadWorkspaceAtCommit(branchId, commitId, AccessRestriction.none)
-    indexBranchCommands(workspace, delete, Some(offeringId)) `foldMapU` execute
+    profiled(s"offering $offeringId")(
+      execute(indexBranchCommands(workspace, delete, Some(offeringId)), BulkParallelism)
+    )
 
   override def indexAsset(branchId: Long, assetId: Long): Unit =
     val workspace    = workspaceService.requireReadWorkspace(branchId, AccessRestriction.none)
     val usedAssetIds = subtree(workspace, workspace.requireNodeId(workspace.homeName).get)
 
-    if workspace.containsNode(assetId) then execute(indexAssetCommand(workspace, assetId, usedAssetIds))
+    if workspace.containsNode(assetId) then
+      execute(IStream.Strict(indexAssetCommand(workspace, assetId, usedAssetIds)), parallelism = 1)
 
+  // commits may index then update the same document so their writes must stay in order
   override def indexCommit(commit: CommitInfo): Unit =
-    indexCommitCommands(commit) `foldMapU` execute
+    execute(indexCommitCommands(commit), parallelism = 1)
 
   private def indexAllCommands(delete: Boolean): IStream[IndexCommand] =
     val projects = projectService.loadProjects(excludeArchived = false)
@@ -236,18 +243,29 @@ class IndexServiceImpl(
 
   private def loadNode(ws: ReadWorkspace, id: Long): Asset[?] = assetNodeService.load(ws).byId(id).get
 
-  private def execute(command: IndexCommand): Unit =
-    logger.debug(s"Index: $command")
-    command match
-      case IndexDocument(document)                         =>
-        esService.indexDocument(document)
-      case UpdateDocument(branch, offering, name, fields*) =>
-        esService.updateDocument(branch, offering | 0L, name, fields*)
-      case DeleteDocument(branch, offering, name)          =>
-        esService.deleteDocument(branch, offering | 0L, name)
-      case DeleteBranch(branch, offering)                  =>
-        esService.deleteByQuery(EsQuery(branch = Some(branch), offering = offering || Some(0L)))
+  /** Execute index commands, grouping document writes into bulk requests. Returns the number of documents written. */
+  private def execute(commands: IStream[IndexCommand], parallelism: Int): Int =
+    val writer = new BulkWriter(esService, parallelism)
+    commands `foldMapU` { command =>
+      logger.debug(s"Index: $command")
+      command match
+        case IndexDocument(document)                         =>
+          writer.add(EsWrite.Index(document))
+        case UpdateDocument(branch, offering, name, fields*) =>
+          writer.add(EsWrite.Update(branch, offering | 0L, name, fields))
+        case DeleteDocument(branch, offering, name)          =>
+          writer.add(EsWrite.Delete(branch, offering | 0L, name))
+        case DeleteBranch(branch, offering)                  =>
+          writer.drain() // so the deletion can't overtake earlier writes
+          esService.deleteByQuery(EsQuery(branch = Some(branch), offering = offering || Some(0L)))
+    }
+    writer.close()
   end execute
+
+  private def profiled(what: String)(f: => Int): Unit =
+    val (count, elapsed) = Stopwatch.profiled(f)
+    val rate             = count * 1000L / elapsed.toMillis.max(1L)
+    logger.info(s"Indexed $what: $count documents in ${elapsed.toSeconds}s, $rate documents/s")
 end IndexServiceImpl
 
 object IndexServiceImpl:
@@ -259,6 +277,62 @@ object IndexServiceImpl:
       AssetTypeId.Lesson + AssetTypeId.Module + AssetTypeId.Course + AssetTypeId.Rubric ++
       AssetTypeId.SurveyQuestionTypes + AssetTypeId.Survey1
 
+  /** The most writes in a bulk request. */
+  private final val BulkCount = 500
+
+  /** The approximate most bytes in a bulk request. */
+  private final val BulkBytes = 5 * 1024 * 1024
+
+  /** The most bulk requests in flight when indexing a branch. */
+  private final val BulkParallelism = 4
+
+  /** The most failed writes to log. */
+  private final val LoggedFailures = 10
+
+  /** Groups document writes into bulk requests bounded by count and size, with a bounded number in flight. Requests
+    * run asynchronously on the global execution context and the calling thread waits only when too many are in
+    * flight; with a parallelism of one, each request waits for the previous one to complete before it is sent, so
+    * they complete in order.
+    */
+  private final class BulkWriter(esService: EsService, parallelism: Int):
+    private val batch    = mutable.ArrayBuffer.empty[EsWrite]
+    private var bytes    = 0
+    private var count    = 0
+    private val inFlight = mutable.Queue.empty[Future[Seq[EsWriteFailure]]]
+    private val failures = mutable.ListBuffer.empty[EsWriteFailure]
+
+    def add(write: EsWrite): Unit =
+      batch += write
+      bytes += write.size
+      count += 1
+      if (batch.size >= BulkCount) || (bytes >= BulkBytes) then send()
+
+    /** Wait for all writes so far to complete. */
+    def drain(): Unit =
+      send()
+      while inFlight.nonEmpty do await()
+
+    /** Wait for all writes to complete, failing if any did, and return the number of writes. */
+    def close(): Int =
+      drain()
+      if failures.nonEmpty then
+        failures.take(LoggedFailures) foreach { failure =>
+          logger.warn(s"Index failure: ${failure.write.name}: ${failure.status} ${failure.reason}")
+        }
+        throw EsFailure(s"${failures.size} of $count writes failed")
+      count
+
+    private def send(): Unit =
+      if batch.nonEmpty then
+        while inFlight.size >= parallelism do await()
+        inFlight.enqueue(esService.bulkWrite(batch.toList))
+        batch.clear()
+        bytes = 0
+
+    private def await(): Unit =
+      failures ++= Await.result(inFlight.dequeue(), Duration.Inf)
+  end BulkWriter
+
   /** A simple algebra for indexing commands. */
   sealed trait IndexCommand:
     def widen: IndexCommand = this // IStream invariance...
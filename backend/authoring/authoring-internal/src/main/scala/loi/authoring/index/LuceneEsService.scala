@@ -0,0 +1,515 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.authoring.index
+
+import argonaut.*
+import argonaut.Argonaut.*
+import com.learningobjects.cpxp.ServiceMeta
+import com.learningobjects.cpxp.scala.util.Stopwatch
+import com.learningobjects.cpxp.service.domain.DomainDTO
+import com.sksamuel.elastic4s.fields.{
+  BooleanField as EsBooleanField,
+  DateField as EsDateField,
+  ElasticField,
+  KeywordField as EsKeywordField,
+  LongField as EsLongField,
+  ObjectField as EsObjectField,
+  TextField as EsTextField
+}
+import org.apache.lucene.analysis.Analyzer
+import org.apache.lucene.analysis.core.{KeywordAnalyzer, SimpleAnalyzer}
+import org.apache.lucene.analysis.custom.CustomAnalyzer
+import org.apache.lucene.analysis.en.EnglishAnalyzer
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper
+import org.apache.lucene.analysis.standard.StandardAnalyzer
+import org.apache.lucene.document.*
+import org.apache.lucene.index.*
+import org.apache.lucene.queryparser.simple.SimpleQueryParser
+import org.apache.lucene.search.*
+import org.apache.lucene.search.uhighlight.{DefaultPassageFormatter, Passage, PassageFormatter, UnifiedHighlighter}
+import org.apache.lucene.store.MMapDirectory
+import org.apache.lucene.util.{BytesRef, IOUtils}
+import scalaz.syntax.std.boolean.*
+import scalaz.syntax.std.option.*
+
+import java.nio.file.{Files, Path}
+import java.time.Instant
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import scala.annotation.tailrec
+import scala.collection.mutable
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.{Future, blocking}
+import scala.jdk.CollectionConverters.*
+import scala.util.Try
+
+/** Search service backed by an embedded Lucene index in a local directory, for deployments without a search cluster.
+  * Each domain has its own index beneath the directory. Documents follow the [[AssetNodeDocument]] mapping, so
+  * queries, sorts, highlights and aggregates behave as they do against the cluster. Writes are committed and the
+  * near-real-time reader refreshed before they return, so a search that follows an index commit sees it.
+  */
+class LuceneEsService(
+  directory: Path,
+  domain: => DomainDTO,
+  serviceMeta: ServiceMeta,
+) extends EsService:
+  import LuceneEsService.*
+
+  override def isConfigured: Boolean = true
+
+  override def indexExists: Boolean = LuceneIndex.exists(indexPath)
+
+  override def createIndex(): Unit =
+    LuceneIndex(indexPath)
+    logger.info(s"Create index: $indexPath")
+
+  override def deleteIndex(): Unit =
+    LuceneIndex.delete(indexPath)
+    logger.info(s"Delete index: $indexPath")
+
+  /** Perform document writes against the index. The index is resolved on the calling thread, which knows the domain,
+    * and the writes are performed asynchronously.
+    */
+  override def bulkWrite(writes: Seq[EsWrite]): Future[Seq[EsWriteFailure]] =
+    val index = LuceneIndex(indexPath)
+    Future(blocking(index.write(writes)))
+
+  override def updateByQuery(query: EsQuery, fields: (String, String)*): Unit =
+    val values = fields.map(t => t._1 -> (Parse.parseOption(t._2) | jString(t._2)))
+    val count  = LuceneIndex(indexPath).updateByQuery(query, values)
+    logger.info(s"Update documents: $count")
+
+  override def deleteByQuery(query: EsQuery): Unit =
+    LuceneIndex(indexPath).deleteByQuery(query)
+    logger.info(s"Delete documents: $query")
+
+  override def search(query: EsQuery): EsResults =
+    val results = LuceneIndex(indexPath).search(query)
+    logger.debug(s"Search results: $query -> $results")
+    results
+
+  override def searchAll(query: EsQuery): List[EsHit] = LuceneIndex(indexPath).searchAll(query)
+
+  /** The index directory for the current domain. */
+  private def indexPath: Path = directory.resolve(s"${serviceMeta.getCluster.toLowerCase}_${domain.id}")
+end LuceneEsService
+
+object LuceneEsService:
+  private final val logger = org.log4s.getLogger
+
+/** A Lucene index of asset node documents in a directory, with a single writer and near-real-time searchers. */
+private[index] final class LuceneIndex(path: Path):
+  import LuceneIndex.*
+
+  private val directory = new MMapDirectory(Files.createDirectories(path))
+
+  private val writer = new IndexWriter(
+    directory,
+    new IndexWriterConfig(Analyzers).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+  )
+
+  private val searchers = new SearcherManager(writer, new SearcherFactory)
+
+  // a new index exists once it has a commit
+  if !DirectoryReader.indexExists(directory) then writer.commit()
+
+  /** Perform document writes in order. Updates read the current document source so any earlier writes in the same
+    * batch are first made visible.
+    */
+  def write(writes: Seq[EsWrite]): Seq[EsWriteFailure] =
+    val ts       = new Stopwatch
+    var pending  = false
+    val failures = writes flatMap {
+      case write: EsWrite.Index                                   =>
+        val document = write.document
+        val id       = idTerm(document.branch, document.offering, document.name)
+        writer.updateDocument(id, luceneDocument(id.text, write.source))
+        pending = true
+        None
+      case write @ EsWrite.Update(branch, offering, name, fields) =>
+        if pending then searchers.maybeRefreshBlocking()
+        val id      = idTerm(branch, offering, name)
+        val updated = update(new TermQuery(id), fields.map(t => t._1 -> jsonValue(t._2)))
+        // the update is itself a write that a later update of the same document must see
+        pending = updated > 0
+        // updating a missing document is an error, as it is for the cluster
+        (updated == 0).option(EsWriteFailure(write, NotFound, s"document missing: ${id.text}"))
+      case EsWrite.Delete(branch, offering, name)                 =>
+        writer.deleteDocuments(idTerm(branch, offering, name))
+        pending = true
+        None
+    }
+    commit()
+    logger.info(s"Bulk write: ${writes.size} documents, ${failures.size} failed, ${ts.elapsed.toMillis} ms")
+    failures
+  end write
+
+  /** Update fields of all documents matching a query, returning the number updated. */
+  def updateByQuery(query: EsQuery, fields: Seq[(String, Json)]): Int =
+    searchers.maybeRefreshBlocking()
+    val count = update(luceneQuery(query), fields)
+    commit()
+    count
+
+  def deleteByQuery(query: EsQuery): Unit =
+    writer.deleteDocuments(luceneQuery(query))
+    commit()
+
+  def search(query: EsQuery): EsResults = withSearcher { searcher =>
+    val lucene = luceneQuery(query)
+    val from   = query.from | 0
+    val size   = query.size | DefaultSize
+    val docs   =
+      if size <= 0 then Nil
+      else searcher.search(lucene, from + size, sort(query), true).scoreDocs.toList.drop(from)
+    EsResults(
+      total = searcher.count(lucene),
+      hits = esHits(searcher, query, docs),
+      aggregates = query.aggregate.fold(Map.empty[Any, Long])(terms(searcher, lucene, _))
+    )
+  }
+
+  /** Page through all matches. Every page searches after the last hit of the previous against the same searcher, so
+    * no hit can be skipped or repeated.
+    */
+  def searchAll(query: EsQuery): List[EsHit] = withSearcher { searcher =>
+    val lucene   = luceneQuery(query)
+    val order    = sort(query)
+    val pageSize = query.size | SearchAllPageSize
+    val hits     = List.newBuilder[EsHit]
+    @tailrec def loop(after: ScoreDoc): Unit =
+      val page = searcher.searchAfter(after, lucene, pageSize, order, true).scoreDocs
+      hits ++= esHits(searcher, query, page.toList)
+      if page.length == pageSize then loop(page.last)
+    loop(null)
+    hits.result()
+  }
+
+  def close(): Unit =
+    searchers.close()
+    writer.close()
+    directory.close()
+
+  /** Rewrite the stored source of matching documents with new field values. */
+  private def update(query: Query, fields: Seq[(String, Json)]): Int = synchronized {
+    withSearcher { searcher =>
+      val stored = searcher.storedFields
+      val docs   = searcher.search(query, searcher.count(query) max 1).scoreDocs
+      docs foreach { doc =>
+        val document = stored.document(doc.doc, UpdateFields)
+        val id       = document.get(IdField)
+        val source   = Parse.parseOption(document.get(SourceField)).flatMap(_.obj) | JsonObject.empty
+        val updated  = fields.foldLeft(source)((o, t) => o + (t._1, t._2))
+        writer.updateDocument(new Term(IdField, id), luceneDocument(id, jObject(updated).nospaces))
+      }
+      docs.length
+    }
+  }
+
+  private def commit(): Unit =
+    writer.commit()
+    searchers.maybeRefreshBlocking()
+
+  private def withSearcher[A](f: IndexSearcher => A): A =
+    val searcher = searchers.acquire()
+    try f(searcher)
+    finally searchers.release(searcher)
+
+  private def esHits(searcher: IndexSearcher, query: EsQuery, docs: List[ScoreDoc]): List[EsHit] =
+    val stored     = searcher.storedFields
+    val highlights = highlight(searcher, query, docs.map(_.doc))
+    docs map { doc =>
+      val document = stored.document(doc.doc, HitFields)
+      EsHit(
+        project = document.getField("project").numericValue.longValue,
+        branch = document.getField("branch").numericValue.longValue,
+        name = UUID.fromString(document.get("name")),
+        highlights = highlights.getOrElse(doc.doc, Map.empty),
+        archived = document.get("archived") == "true",
+      )
+    }
+  end esHits
+
+  /** Highlight the text fields that the search matches in some documents. */
+  private def highlight(searcher: IndexSearcher, query: EsQuery, docs: List[Int]): Map[Int, Map[String, Seq[String]]] =
+    val fields = searchFields(query).filter(TextFields.contains)
+    // highlight phrases against the text fields themselves rather than their exact subfields
+    val highlightQuery = query.search
+      .filterNot(search => docs.isEmpty || fields.isEmpty || NameRegex.matches(search))
+      .flatMap(search => Option(new SimpleQueryParser(Analyzers, fieldWeights(fields)).parse(search)))
+    highlightQuery.fold(Map.empty[Int, Map[String, Seq[String]]]) { hq =>
+      val highlighter = UnifiedHighlighter
+        .builder(searcher, Analyzers)
+        .withFormatter(FragmentFormatter)
+        .withMaxNoHighlightPassages(0) // like the cluster, omit fields without matches
+        .build()
+      val highlights  = highlighter
+        .highlightFieldsAsObjects(fields.toArray, hq, docs.toArray, Array.fill(fields.size)(MaxFragments))
+        .asScala
+        .toMap
+      docs.zipWithIndex.map({ case (doc, i) =>
+        doc -> highlights.flatMap({ case (field, fragments) =>
+          Option(fragments(i).asInstanceOf[Seq[String]]).filter(_.nonEmpty).map(field -> _)
+        })
+      }).toMap
+    }
+
+  /** Count the values of a field among the matching documents, returning the most frequent as a terms aggregation
+    * does.
+    */
+  private def terms(searcher: IndexSearcher, query: Query, field: String): Map[Any, Long] =
+    val counts = searcher.search(query, new TermsCollectorManager(field, Schema.get(field)))
+    counts.toList.sortBy(t => (-t._2, t._1.toString)).take(AggregateSize).toMap
+end LuceneIndex
+
+private[index] object LuceneIndex:
+  private final val logger = org.log4s.getLogger
+
+  private final val indices = new ConcurrentHashMap[Path, LuceneIndex]
+
+  /** Get the open index in a directory, creating it if necessary. */
+  def apply(path: Path): LuceneIndex = indices.computeIfAbsent(path, new LuceneIndex(_))
+
+  def exists(path: Path): Boolean =
+    indices.containsKey(path) || Files.isDirectory(path) && {
+      val directory = new MMapDirectory(path)
+      try DirectoryReader.indexExists(directory)
+      finally directory.close()
+    }
+
+  def delete(path: Path): Unit =
+    Option(indices.remove(path)).foreach(_.close())
+    if Files.exists(path) then IOUtils.rm(path)
+
+  private final val NotFound          = 404
+  private final val DefaultSize       = 10
+  private final val SearchAllPageSize = 1000
+  private final val AggregateSize     = 10
+  private final val MaxFragments      = 5
+
+  private final val IdField     = "_id"
+  private final val SourceField = "_source"
+
+  private final val UpdateFields = Set(IdField, SourceField).asJava
+  private final val HitFields    = Set("project", "branch", "name", "archived").asJava
+
+  private final val NameRegex = "(?:[0-9a-f]+-){4}[0-9a-f]+".r
+
+  /** How a document field is indexed. */
+  private sealed trait FieldKind
+  private case object LongKind                       extends FieldKind
+  private case object DateKind                       extends FieldKind
+  private case object KeywordKind                    extends FieldKind
+  private final case class TextKind(analyzer: String) extends FieldKind
+
+  /** The kinds of the flattened document fields, from the [[AssetNodeDocument]] mapping. */
+  private final val Schema: Map[String, FieldKind] =
+    def kinds(prefix: String, fields: Seq[ElasticField]): Seq[(String, FieldKind)] = fields flatMap {
+      case field: EsObjectField  => kinds(s"$prefix${field.name}.", field.properties)
+      case field: EsTextField    =>
+        (s"$prefix${field.name}" -> TextKind(field.analyzer | "standard")) +: kinds(s"$prefix${field.name}.", field.fields)
+      case field: EsLongField    => Seq(s"$prefix${field.name}" -> LongKind)
+      case field: EsDateField    => Seq(s"$prefix${field.name}" -> DateKind)
+      case field: EsKeywordField => Seq(s"$prefix${field.name}" -> KeywordKind)
+      case field: EsBooleanField => Seq(s"$prefix${field.name}" -> KeywordKind)
+      case _                     => Nil
+    }
+    kinds("", AssetNodeDocument.mappingDefinition.properties).toMap
+
+  /** Text subfields, such as `.exact`, indexed from the value of their parent field. */
+  private final val Subfields: Map[String, List[String]] =
+    Schema.keys.toList.flatMap(field => Schema.keySet.find(p => field.startsWith(s"$p.")).map(_ -> field)).groupMap(_._1)(_._2)
+
+  private final val TextFields: Set[String] =
+    Schema.collect({ case (field, _: TextKind) if !Subfields.values.exists(_.contains(field)) => field }).toSet
+
+  /** Lucene equivalents of the analyzers that the mapping names. */
+  private final val NamedAnalyzers: Map[String, Analyzer] = Map(
+    "standard"      -> new StandardAnalyzer,
+    "simple"        -> new SimpleAnalyzer,
+    "english"       -> new EnglishAnalyzer,
+    "english_exact" -> CustomAnalyzer.builder().withTokenizer("standard").addTokenFilter("lowercase").build(),
+  )
+
+  private final val Analyzers: Analyzer = new PerFieldAnalyzerWrapper(
+    new KeywordAnalyzer,
+    Schema.collect({ case (field, TextKind(name)) => field -> NamedAnalyzers.getOrElse(name, NamedAnalyzers("standard")) }).asJava
+  )
+
+  private def idTerm(branch: Long, offering: Long, name: UUID): Term =
+    new Term(IdField, EsWrite.documentId(branch, offering, name))
+
+  /** Build a document from its flattened JSON source. */
+  private def luceneDocument(id: String, source: String): Document =
+    val document = new Document
+    document.add(new StringField(IdField, id, Field.Store.YES))
+    document.add(new StoredField(SourceField, source))
+    for
+      (field, value) <- (Parse.parseOption(source).flatMap(_.obj) | JsonObject.empty).toList
+      kind           <- Schema.get(field)
+    do addField(document, field, kind, value)
+    document
+  end luceneDocument
+
+  private def addField(document: Document, field: String, kind: FieldKind, value: Json): Unit = kind match
+    case LongKind        =>
+      value.number.flatMap(_.toLong) foreach { long =>
+        document.add(new LongPoint(field, long))
+        document.add(new SortedNumericDocValuesField(field, long))
+        document.add(new StoredField(field, long))
+      }
+    case DateKind        =>
+      value.string.flatMap(s => Try(Instant.parse(s).toEpochMilli).toOption) foreach { millis =>
+        document.add(new LongPoint(field, millis))
+        document.add(new SortedNumericDocValuesField(field, millis))
+      }
+    case KeywordKind     =>
+      keyword(value) foreach { string =>
+        document.add(new StringField(field, string, Field.Store.YES))
+        document.add(new SortedSetDocValuesField(field, new BytesRef(string)))
+      }
+    case TextKind(_)     =>
+      value.string foreach { string =>
+        document.add(new TextField(field, string, Field.Store.YES))
+        Subfields.getOrElse(field, Nil) foreach { subfield =>
+          document.add(new TextField(subfield, string, Field.Store.NO))
+        }
+      }
+
+  private def keyword(value: Json): Option[String] = value.string orElse (!value.isNull).option(value.nospaces)
+
+  private def jsonValue(value: Any): Json = value match
+    case json: Json       => json
+    case boolean: Boolean => jBool(boolean)
+    case long: Long       => jNumber(long)
+    case int: Int         => jNumber(int)
+    case other            => jString(other.toString)
+
+  /** Convert a query to Lucene, as [[EsQuery.elastically]] does for the cluster. */
+  private def luceneQuery(query: EsQuery): Query =
+    val builder = new BooleanQuery.Builder
+    query.search match
+      case Some(search) if NameRegex.matches(search) =>
+        builder.add(new TermQuery(new Term("name", search)), BooleanClause.Occur.MUST)
+      case Some(search)                              =>
+        val parsed = new ExactPhraseQueryParser(fieldWeights(searchFields(query))).parse(search)
+        builder.add(Option(parsed) | new MatchNoDocsQuery, BooleanClause.Occur.MUST)
+      case None                                      =>
+        builder.add(new MatchAllDocsQuery, BooleanClause.Occur.MUST)
+    List(
+      query.project.map(termQuery("project", _)),
+      query.projectRetired.map(termQuery("projectRetired", _)),
+      query.branch.map(termQuery("branch", _)),
+      query.branchArchived.map(termQuery("branchArchived", _)),
+      query.commit.map(termQuery("commit", _)),
+      query.offering.map(termQuery("offering", _)),
+      query.archived.map(termQuery("archived", _)),
+      query.used.map(termQuery("used", _)),
+      termsQuery("typeId", query.typeIds.map(_.entryName)),
+      termsQuery("name", query.includeNames.map(_.toString)),
+    ).flatten foreach { filter =>
+      builder.add(filter, BooleanClause.Occur.FILTER)
+    }
+    termsQuery("name", query.excludeNames.map(_.toString)) foreach { exclude =>
+      builder.add(exclude, BooleanClause.Occur.MUST_NOT)
+    }
+    builder.build()
+  end luceneQuery
+
+  private def termQuery(field: String, value: Any): Query = Schema.get(field) match
+    case Some(LongKind | DateKind) => LongPoint.newExactQuery(field, value.toString.toLong)
+    case _                         => new TermQuery(new Term(field, value.toString))
+
+  private def termsQuery(field: String, values: List[String]): Option[Query] =
+    values.nonEmpty.option(new TermInSetQuery(field, values.map(new BytesRef(_)).asJava))
+
+  /** The fields to search, being the data fields unless explicit. */
+  private def searchFields(query: EsQuery): List[String] =
+    if query.fields.nonEmpty then query.fields
+    else AssetDataDocument.mappingDefinition.properties.map(p => s"data.${p.name}").toList
+
+  private def fieldWeights(fields: List[String]): java.util.Map[String, java.lang.Float] =
+    fields.map(_ -> java.lang.Float.valueOf(1f)).toMap.asJava
+
+  private def sort(query: EsQuery): Sort =
+    if query.sortBy.isEmpty then Sort.RELEVANCE // lucene rejects a sort without fields
+    else new Sort(query.sortBy.map((field, ascending) => sortField(field, ascending))*)
+
+  private def sortField(field: String, ascending: Boolean): SortField =
+    if field == "_score" then new SortField(null, SortField.Type.SCORE, ascending) // scores sort descending by default
+    else
+      Schema.get(field) match
+        case Some(LongKind | DateKind) => new SortedNumericSortField(field, SortField.Type.LONG, !ascending)
+        case Some(KeywordKind)         => new SortedSetSortField(field, !ascending)
+        case _                         => throw new IllegalArgumentException(s"Unsortable field: $field")
+
+  /** Parses a simple query string, running quoted phrases against the `.exact` subfields where there are any, as the
+    * cluster does with a quote field suffix.
+    */
+  private final class ExactPhraseQueryParser(boosts: java.util.Map[String, java.lang.Float])
+      extends SimpleQueryParser(Analyzers, boosts):
+    override protected def newPhraseQuery(text: String, slop: Int): Query =
+      val builder = new BooleanQuery.Builder
+      for (field, weight) <- boosts.asScala do
+        val exact = Subfields.getOrElse(field, Nil).find(_.endsWith(".exact")) | field
+        Option(createPhraseQuery(exact, text, slop)) foreach { phrase =>
+          builder.add(new BoostQuery(phrase, weight.floatValue), BooleanClause.Occur.SHOULD)
+        }
+      builder.build()
+  end ExactPhraseQueryParser
+
+  /** Formats each highlighted passage as a separate fragment. */
+  private object FragmentFormatter extends PassageFormatter:
+    private val formatter = new DefaultPassageFormatter("{{{", "}}}", "", false)
+
+    override def format(passages: Array[Passage], content: String): AnyRef =
+      passages.toSeq.map(passage => formatter.format(Array(passage), content))
+
+  /** Counts the values of a long or keyword field in the collected documents. */
+  private final class TermsCollectorManager(field: String, kind: Option[FieldKind])
+      extends CollectorManager[TermsCollector, Map[Any, Long]]:
+    override def newCollector(): TermsCollector = new TermsCollector(field, kind)
+
+    override def reduce(collectors: java.util.Collection[TermsCollector]): Map[Any, Long] =
+      collectors.asScala.foldLeft(Map.empty[Any, Long]) { (counts, collector) =>
+        collector.counts.foldLeft(counts)((acc, t) => acc.updated(t._1, acc.getOrElse(t._1, 0L) + t._2))
+      }
+
+  private final class TermsCollector(field: String, kind: Option[FieldKind]) extends SimpleCollector:
+    val counts = mutable.Map.empty[Any, Long]
+
+    private var numeric: SortedNumericDocValues = scala.compiletime.uninitialized
+    private var sorted: SortedSetDocValues      = scala.compiletime.uninitialized
+
+    override def scoreMode(): ScoreMode = ScoreMode.COMPLETE_NO_SCORES
+
+    override protected def doSetNextReader(context: LeafReaderContext): Unit = kind match
+      case Some(LongKind | DateKind) => numeric = DocValues.getSortedNumeric(context.reader, field)
+      case _                         => sorted = DocValues.getSortedSet(context.reader, field)
+
+    override def collect(doc: Int): Unit = kind match
+      case Some(LongKind | DateKind) =>
+        if numeric.advanceExact(doc) then
+          for _ <- 0 until numeric.docValueCount do count(numeric.nextValue)
+      case _                         =>
+        if sorted.advanceExact(doc) then
+          for _ <- 0 until sorted.docValueCount do count(sorted.lookupOrd(sorted.nextOrd).utf8ToString)
+
+    private def count(value: Any): Unit = counts.update(value, counts.getOrElse(value, 0L) + 1L)
+  end TermsCollector
+end LuceneIndex
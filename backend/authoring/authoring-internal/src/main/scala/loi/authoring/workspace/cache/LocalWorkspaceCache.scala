@@ -22,13 +22,12 @@ import java.lang as jl
 
 import com.learningobjects.cpxp.util.cache
 import scalaz.syntax.std.option.*
-import scaloi.syntax.AnyOps.*
 
 import scala.concurrent.duration.*
 import scala.ref.SoftReference
 
 class LocalWorkspaceCache
-    extends cache.BucketGenerationalCache[
+    extends cache.ConcurrentGenerationalCache[
       jl.Long,
       SoftReference[LocalWorkspaceData],
       LocalWorkspaceCache.Entry
@@ -36,13 +35,12 @@ class LocalWorkspaceCache
       itemAware = false,
       replicated = false,
       timeout = 5.minutes,
+      maxWeight = LocalWorkspaceCache.MaxEntries,
     ):
   import LocalWorkspaceCache.*
 
   def getOrLoad(commit: Long, load: () => LocalWorkspaceData): LocalWorkspaceData =
-    get(commit).flatMap(_.get) | load() <| { data =>
-      put(commit, data)
-    }
+    getValidOrLoad(commit, _.get.isDefined)(() => new Entry(commit, SoftReference(load()))).get | load()
 
   def get_?(commit: Long): Option[LocalWorkspaceData] =
     get(commit).flatMap(_.get)
@@ -52,5 +50,9 @@ class LocalWorkspaceCache
 end LocalWorkspaceCache
 
 object LocalWorkspaceCache:
+
+  /** The maximum number of cached workspaces. Each one holds a full commit graph, so keep this modest. */
+  final val MaxEntries = 1024L
+
   final class Entry(commitId: Long, data: SoftReference[LocalWorkspaceData])
       extends cache.Entry[jl.Long, SoftReference[LocalWorkspaceData]](commitId, data)
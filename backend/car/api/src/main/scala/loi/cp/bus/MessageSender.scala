@@ -39,6 +39,24 @@ trait MessageSender[S <: SystemComponent[?], M] extends ComponentInterface:
     */
   def sendMessage(system: S, message: M, yieldr: YieldTx): DeliveryResult
 
+  /** The most messages that should be sent in one call to [[sendMessages]]. Senders to systems that accept batches of
+    * messages should override this and [[sendMessages]].
+    */
+  def batchSize: Int = 1
+
+  /** Send a batch of messages to the specified system.
+    * @param system
+    *   the external system
+    * @param messages
+    *   the messages to send, no more than [[batchSize]]
+    * @param yieldr
+    *   yield the current database transaction to compute a result
+    * @return
+    *   the result of sending each message, in order
+    */
+  def sendMessages(system: S, messages: Seq[M], yieldr: YieldTx): Seq[DeliveryResult] =
+    messages.map(sendMessage(system, _, yieldr))
+
   /** Side effects in here *boom boom*
     * @param message
     */
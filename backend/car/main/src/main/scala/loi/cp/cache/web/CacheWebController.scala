@@ -181,6 +181,7 @@ case class AppCacheStats(
   name: String,
   hitCount: Int,
   missCount: Int,
+  coalescedCount: Int,
   size: Int,
   invalidationSize: (Int, Int)
 )
@@ -190,6 +191,7 @@ object AppCacheStats:
     cache.getName,
     cache.getHitCount,
     cache.getMissCount,
+    cache.getCoalescedCount,
     cache.getSize,
     cache.getInvalidationSize
   )
@@ -34,6 +34,7 @@ import com.learningobjects.cpxp.schedule.Scheduled;
 import com.learningobjects.cpxp.service.session.SessionService;
 import com.learningobjects.cpxp.util.*;
 import com.sun.management.UnixOperatingSystemMXBean;
+import de.mon.GlobalStatistics;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.io.output.NullWriter;
@@ -164,6 +165,8 @@ public class MStatusServlet extends AbstractComponentServlet {
 
         S3Statistics.updateStatus(status);
 
+        GlobalStatistics.updateStatus(status);
+
         /*
         Set<ObjectInstance> instances = _mbs.queryMBeans(null, null);
         Iterator<ObjectInstance> iterator = instances.iterator();
@@ -74,6 +74,9 @@ object IntervalStatistics:
   // Message dropped.
   val Dropped: IntervalStatistics = monoid.zero.copy(dropped = 1)
 
+  // Batch of messages sent.
+  val Execution: IntervalStatistics = monoid.zero.copy(executions = 1)
+
   // Interval of time elapsed.
   def elapsed(millis: Long): IntervalStatistics =
     monoid.zero.copy(millis = millis)
@@ -48,8 +48,10 @@ import scaloi.syntax.DateOps.*
 import scaloi.syntax.OptionOps.*
 
 import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
 import scala.concurrent.duration.*
 import scala.jdk.CollectionConverters.*
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success, Try}
 
 /** Worker for delivering message bus messages.
@@ -78,7 +80,12 @@ class MessageBusWorker(implicit
   /** How long after which to consider messages abandoned. */
   override protected def abandonInterval = 15.minutes
 
-  /** Deliver a single bus message. */
+  /** Statistics of messages delivered by [[execute]] that are yet to be added to their bus, by bus id. */
+  private val pendingStatistics = new ConcurrentHashMap[Long, PendingStatistics]
+
+  /** Deliver a single bus message. Its statistics are added to the bus later, along with those of any other messages
+    * delivered in the meantime, so that a burst of messages does not lock the bus for each one.
+    */
   override protected def execute(id: Long): Unit =
     for
       msg <- id.facade_?[BusMessageFacade]
@@ -89,8 +96,35 @@ class MessageBusWorker(implicit
       logger.info(s"Delivering message $id for bus ${bus.getId}")
       dws.setupContext(bus.getRootId)
       val (result, stats) = processMessage(bus.getSystem, msg, ts.date)
-      bus.refresh(true)
-      bus.setStatistics(bus.getStatistics + stats + failureEmail(bus, msg -> result))
+      val pending         = pendingStatistics.merge(
+        bus.getId,
+        PendingStatistics(stats, emailableFailure(msg, result).toList, ts.date),
+        _ |+| _
+      )
+      if ts.date - pending.since >= StatisticsInterval then flushStatistics(bus.getId)
+
+  /** Add any pending statistics to their buses, including when the worker stops. */
+  override protected def drained(): Unit =
+    if !pendingStatistics.isEmpty then
+      ManagedUtils.perform(() => pendingStatistics.keySet.asScala.toList foreach flushStatistics)
+
+  /** Add the pending statistics of a bus to the bus. If that fails they are returned to pending, ahead of any that
+    * became pending meanwhile.
+    */
+  private def flushStatistics(busId: Long): Unit =
+    Option(pendingStatistics.remove(busId)) foreach { pending =>
+      try
+        busId.facade_?[MessageBusFacade] foreach { bus =>
+          dws.setupContext(bus.getRootId)
+          bus.refresh(true)
+          bus.setStatistics(bus.getStatistics + pending.stats + failureEmail(bus, pending.failures))
+        }
+        ManagedUtils.commit()
+      catch
+        case NonFatal(e) =>
+          pendingStatistics.merge(busId, pending, (newer, _) => pending |+| newer)
+          throw e
+    }
 
   /** Keep sequence of bus messages alive, owned by this appserver. */
   override protected def keepalive(ids: Seq[Long]): Unit =
@@ -136,9 +170,7 @@ class MessageBusWorker(implicit
     logger(level)(s"Delivering ${msgs.size} messages for bus ${bus.getId}")
 
     // If the bus is shut down then stop processing early
-    val (msgResults, msgStats) = msgs
-      .flatMap(m => isStopped.noption(processMessage(bus.getSystem, m, ts.date).mapElements(m -> _, identity)))
-      .unzip
+    val (failures, msgStats) = processMessages(bus.getSystem, msgs, ts.date).unzip
 
     LogMeta.remove(LogMeta.Event)
     val ready                 = queueLength(bus, BusMessageState.Ready)
@@ -151,7 +183,7 @@ class MessageBusWorker(implicit
 
     // Update bus statistics
     bus.refresh(true)
-    bus.setStatistics(bus.getStatistics + s + failureEmail(bus, msgResults*))
+    bus.setStatistics(bus.getStatistics + s + failureEmail(bus, failures.flatten))
     val delay =
       if ready > 0 then
         // if there's work, back off as long as it took to send this
@@ -171,18 +203,88 @@ class MessageBusWorker(implicit
   /** If there is a failure and a failure email has not recently been sent, send a failure email return the current
     * time.
     */
-  private def failureEmail(bus: MessageBusFacade, msgResults: (BusMessageFacade, DeliveryResult)*): Option[Date] =
+  private def failureEmail(bus: MessageBusFacade, failures: Seq[DeliveryFailure]): Option[Date] =
     bus.getStatistics.lastEmail.forall(ts.date - _ >= EmailInterval) flatOption {
-      msgResults.toSeq findMapf {
-        case (_, PermanentFailure(e))                                              =>
+      failures findMapf {
+        case PermanentFailure(e) =>
           fns.emailFailure(Bus(bus), repeated = false, Left(e))
           ts.date
-        case (msg, TransientFailure(f)) if msg.getState == BusMessageState.Dropped =>
+        case TransientFailure(f) =>
           fns.emailFailure(Bus(bus), repeated = true, f)
           ts.date
       }
     }
 
+  /** The failure of a delivery, if it merits a failure email: a permanent failure or a message dropped after too many
+    * transient failures.
+    */
+  private def emailableFailure(msg: BusMessageFacade, result: DeliveryResult): Option[DeliveryFailure] =
+    result match
+      case p: PermanentFailure                                            => Some(p)
+      case t: TransientFailure if msg.getState == BusMessageState.Dropped => Some(t)
+      case _                                                              => None
+
+  /** Process a sequence of messages, sending consecutive messages of the same type in batches to senders that accept
+    * batches, and return any emailable failure and the interval statistics of each message or batch. This commits the
+    * transaction after each message or batch, and stops early if the worker is stopped. Batches are sent one after
+    * another, so a bus never has more than one batch in flight.
+    */
+  private def processMessages(
+    system: SystemComponent[?],
+    msgs: List[BusMessageFacade],
+    start: Date
+  ): List[(List[DeliveryFailure], IntervalStatistics)] =
+    msgs match
+      case Nil            => Nil
+      case _ if isStopped => Nil
+      case msg :: _       =>
+        val (run, rest) = msgs.span(_.getType == msg.getType)
+        val batched     = for
+          msgClass <- Try(ComponentSupport.loadClass(msg.getType)).toOption
+          sender   <- getSender(system.getClass, msgClass)
+          if sender.batchSize > 1
+        yield run.grouped(sender.batchSize).toList.flatMap { batch =>
+          isStopped.noption(processBatch(system, sender, msgClass, batch, start))
+        }
+        batched.getOrElse {
+          run.flatMap { m =>
+            isStopped.noption(processMessage(system, m, start).mapElements(emailableFailure(m, _).toList, identity))
+          }
+        } ::: processMessages(system, rest, start)
+  end processMessages
+
+  /** Send a batch of messages of one type to a sender that accepts batches, and return any emailable failures and the
+    * interval statistics of the batch. This method commits the transaction upon completion.
+    */
+  private def processBatch(
+    system: SystemComponent[?],
+    sender: AnyMessageSender,
+    msgClass: Class[?],
+    batch: List[BusMessageFacade],
+    start: Date
+  ): (List[DeliveryFailure], IntervalStatistics) =
+    logger.debug(s"Delivering batch of ${batch.size} ${msgClass.getSimpleName} messages")
+    val timer    = new Stopwatch
+    val bodies   = batch.map(msg => msg -> Try(deserialize(msg.getBody, msgClass)))
+    val decoded  = bodies.collect { case (msg, Success(body)) => msg.getId -> body }
+    val sent     = Try(sender.sendMessages(system, decoded.map(_._2), yieldr)) flatMap { results =>
+      if results.size == decoded.size then Success(decoded.map(_._1).zip(results).toMap)
+      else Failure(DeliveryException(s"Sent ${decoded.size} messages but got ${results.size} results"))
+    }
+    val elapsed  = timer.elapsed
+    val outcomes = bodies map { case (msg, body) =>
+      LogMeta.domain(msg.getRootId)
+      LogMeta.event(msg.getId)
+      val result = body.flatMap(_ => sent.map(_(msg.getId))).fold[DeliveryResult](PermanentFailure(_), identity)
+      val stats  = recordResult(msg, result, body.toOption.map(sender -> _), elapsed, start)
+      emailableFailure(msg, result) -> stats
+    }
+    // Commit the transaction
+    ManagedUtils.commit()
+    val (failures, stats) = outcomes.unzip
+    failures.flatten -> (IntervalStatistics.elapsed(elapsed.toMillis) |+| stats.suml |+| IntervalStatistics.Execution)
+  end processBatch
+
   /** Process a message and return the interval statistics. This method commits the transaction upon completion.
     */
   private def processMessage(
@@ -200,7 +302,22 @@ class MessageBusWorker(implicit
       case Failure(t) => (PermanentFailure(t), None)
       case Success(d) => (d._1, Some((d._2, d._3)))
     val elapsed                = timer.elapsed
-    val stats                  = result match // just in case the sender does not log its own failures
+    val stats                  = recordResult(msg, result, senderAndMsg, elapsed, start)
+    // Commit the transaction
+    ManagedUtils.commit()
+    result -> (IntervalStatistics.elapsed(elapsed.toMillis) |+| stats)
+  end processMessage
+
+  /** Update the state of a message after an attempt to deliver it and return the interval statistics of the attempt.
+    */
+  private def recordResult(
+    msg: BusMessageFacade,
+    result: DeliveryResult,
+    senderAndMsg: Option[(AnyMessageSender, Any)],
+    elapsed: FiniteDuration,
+    start: Date
+  ): IntervalStatistics =
+    result match // just in case the sender does not log its own failures
       case Delivered                     =>
         LogMeta.let(
           "elapsedMillis" -> Json.jNumber(elapsed.toMillis),
@@ -252,10 +369,8 @@ class MessageBusWorker(implicit
         msg.setScheduled(ts.date) // for posterity
         senderAndMsg.foreach(sam => notifyDropped(p)(sam._1, sam._2))
         IntervalStatistics.Dropped
-    // Commit the transaction
-    ManagedUtils.commit()
-    result -> (IntervalStatistics.elapsed(elapsed.toMillis) |+| stats)
-  end processMessage
+    end match
+  end recordResult
 
   private def notifyDropped(failure: DeliveryFailure)(sender: AnyMessageSender, message: Any) =
     sender.onDropped(message, failure)
@@ -336,3 +451,18 @@ object MessageBusWorker:
   private final val MaxAttempts = 9L
 
   private final val EmailInterval = 5.minutes
+
+  // How long execution statistics may be pending before they are added to the bus
+  private final val StatisticsInterval = 10.seconds
+
+  /** Statistics of executed messages that are yet to be added to their bus.
+    * @param since
+    *   when the statistics first became pending
+    */
+  private final case class PendingStatistics(stats: IntervalStatistics, failures: List[DeliveryFailure], since: Date):
+    def |+|(other: PendingStatistics): PendingStatistics =
+      PendingStatistics(
+        IntervalStatistics.monoid.append(stats, other.stats),
+        failures ::: other.failures,
+        if since.before(other.since) then since else other.since
+      )
@@ -57,6 +57,10 @@ object DeMonRootApi:
     @Queryable @BeanProperty count: Int,
     @Queryable @BeanProperty rate: Double,
     @Queryable @BeanProperty duration: Long,
-    @Queryable @BeanProperty avgDuration: Double
+    @Queryable @BeanProperty avgDuration: Double,
+    @Queryable @BeanProperty p50Duration: Double,
+    @Queryable @BeanProperty p90Duration: Double,
+    @Queryable @BeanProperty p99Duration: Double,
+    @Queryable @BeanProperty maxDuration: Double
   )
 end DeMonRootApi
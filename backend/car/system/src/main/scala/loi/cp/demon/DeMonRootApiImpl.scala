@@ -41,14 +41,18 @@ class DeMonRootApiImpl(val componentInstance: ComponentInstance) extends DeMonRo
 
   /** Convert data to the Web POJO. */
   private def toStat(tuple: ((StatisticType, String), GlobalStatistic)): DeMonStat = tuple match
-    case ((statementType, tableName), GlobalStatistic(count, NsToMs(millis), rate)) =>
+    case ((statementType, tableName), GlobalStatistic(count, NsToMs(millis), rate, latency)) =>
       DeMonStat(
         statementType.toString,
         tableName,
         count,
         rate.toDouble / RateInterval,
         millis,
-        millis.toDouble / count.toDouble
+        millis.toDouble / count.toDouble,
+        toMillis(latency.percentile(0.5)),
+        toMillis(latency.percentile(0.9)),
+        toMillis(latency.percentile(0.99)),
+        toMillis(latency.max)
       )
 
   @Scheduled("5 minutes")
@@ -64,3 +68,6 @@ object DeMonRootApiImpl:
 
   /** Convert ns to ms. */
   private object NsToMs extends Timeogrify(NANOSECONDS, MILLISECONDS)
+
+  /** Convert ns to fractional ms. */
+  private def toMillis(nanos: Long): Double = nanos.toDouble / MILLISECONDS.toNanos(1)
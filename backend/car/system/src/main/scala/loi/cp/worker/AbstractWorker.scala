@@ -142,12 +142,18 @@ abstract class AbstractWorker(implicit
             logger.info(s"Did not find work in ${abandonInterval / 2}.")
         end match
         keepalive()
+        if queue.isEmpty then drained()
       } -<| { e =>
         logger.warn(e)("Executor error")
       }
       Current.clear()
       LogMeta.clear()
     end while
+    // the interrupt that stopped the worker must not fail the database work of this last drain
+    Thread.interrupted()
+    treither(drained()) -<| { e =>
+      logger.warn(e)("Executor error")
+    }
     logger.info("Executor shut down")
   end executor
 
@@ -201,6 +207,12 @@ abstract class AbstractWorker(implicit
     */
   protected def execute(id: Long): Unit
 
+  /** Called, outside of any transaction, whenever the in-memory queue has been emptied or the executor has waited for
+    * work in vain, and once more when the executor stops. Subclasses may override this to complete work deferred across
+    * executions.
+    */
+  protected def drained(): Unit = ()
+
   /** Keep these queued work items alive.
     * @param ids
     *   the ids of the work items
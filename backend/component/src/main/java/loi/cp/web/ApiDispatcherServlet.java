@@ -75,6 +75,9 @@ import static com.learningobjects.cpxp.util.SessionUtils.REQUEST_PARAMETER_BEARE
 public class ApiDispatcherServlet extends AbstractComponent implements ServletComponent {
     private static final Logger logger = Logger.getLogger(ApiDispatcherServlet.class.getName());
 
+    /** Request attribute holding the transaction name of the request mapping that handled the request. */
+    private static final String ROUTE_ATTRIBUTE = "srs:route";
+
     @Inject
     private ExceptionResolver _exceptionResolver;
 
@@ -135,7 +138,7 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
             if (Current.isAnonymous()) {
                 Option<HttpResponse> bearerResponse = ComponentSupport.lookupService(OAuthService.class).bearerAuthorize(request);
                 if (bearerResponse.isDefined()) {
-                    writeResponseWithMessageConverters(bearerResponse.get(), request, response, webRequest.getAcceptedMediaTypes(), null);
+                    writeResponseWithMessageConverters(bearerResponse.get(), request, response, webRequest.getAcceptedMediaTypes(), null, null);
                     return NoResponse.instance();
                 }
             }
@@ -152,7 +155,8 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
             }
 
             writeResponseWithMessageConverters(responseValue, request, response,
-              webRequest.getAcceptedMediaTypes(), webRequest.getOutValue(CacheOptions.class));
+              webRequest.getAcceptedMediaTypes(), webRequest.getOutValue(CacheOptions.class),
+              (String) request.getAttribute(ROUTE_ATTRIBUTE));
 
         } catch (Throwable ex) {
 
@@ -161,7 +165,7 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
             ManagedUtils.rollback();
 
             writeResponseWithMessageConverters(httpResponse, request, response,
-                    Collections.singletonList(MediaType.ALL), null);
+                    Collections.singletonList(MediaType.ALL), null, null);
         }
         return NoResponse.instance();
     }
@@ -169,7 +173,7 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
     private void writeResponseWithMessageConverters(
             final HttpResponse httpResponse, final HttpServletRequest request,
             final HttpServletResponse response, final List<MediaType> acceptedMediaTypes,
-            final CacheOptions cacheOptions) {
+            final CacheOptions cacheOptions, final String route) {
 
         // TODO: I don't like this but I'm having a hard time working out
         // the alternative.
@@ -191,7 +195,7 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
                 for (final HttpMessageConverter converter : ComponentSupport
                         .getComponents(HttpMessageConverter.class)) {
                     if (converter.canWrite(responseBody, acceptedMediaType)) { // TODO: this should just be a registry
-                        converter.write(responseBody, new ConvertOptions(acceptedMediaType, Optional.ofNullable(cacheOptions)), request, response);
+                        converter.write(responseBody, new ConvertOptions(acceptedMediaType, Optional.ofNullable(cacheOptions), Optional.ofNullable(route)), request, response);
                         return;
                     }
                 }
@@ -284,6 +288,7 @@ public class ApiDispatcherServlet extends AbstractComponent implements ServletCo
 
         if (response != null) {
             Apm.setTransactionName("srs", transactionName);
+            req.getRawRequest().setAttribute(ROUTE_ATTRIBUTE, transactionName);
             sequenceContext.getDeprecation().ifPresent(msg -> {
                 response.addHeader("X-Deprecation", msg);
             });
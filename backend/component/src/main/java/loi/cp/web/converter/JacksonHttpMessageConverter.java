@@ -34,11 +34,15 @@ import com.learningobjects.cpxp.component.web.exception.HttpMessageNotWriteableE
 import com.learningobjects.cpxp.component.web.util.JacksonUtils;
 import com.learningobjects.cpxp.service.Current;
 import com.learningobjects.cpxp.util.AugurySupport;
+import com.learningobjects.cpxp.util.HttpUtils;
 import com.learningobjects.cpxp.util.ManagedUtils;
 import com.learningobjects.cpxp.validation.DefaultHttpRequestGroupAssignmentStrategy;
 import com.learningobjects.de.web.MediaType;
+import de.mon.DeMonitor;
+import de.mon.StatisticType;
 import de.mon.ThreadStatistics;
 import loi.cp.datatype.SchemaService;
+import loi.cp.web.cache.CachedResponse;
 import loi.cp.web.cache.WebCache;
 import loi.cp.web.cache.WebEntry;
 import scala.Option;
@@ -61,6 +65,12 @@ import java.util.logging.Logger;
 public class JacksonHttpMessageConverter extends AbstractComponent implements HttpMessageConverter<Object> {
     private static final Logger logger = Logger.getLogger(JacksonHttpMessageConverter.class.getName());
 
+    /**
+     * The statistic name under which web cache outcomes are recorded when the route of a response
+     * is not known. Outcomes are otherwise recorded by route because request URIs are unbounded.
+     */
+    private static final String WEB_CACHE_STATISTIC = "jsonCache";
+
     private static final List<MediaType> SUPPORTED_MEDIA_TYPES = List.of(
       MediaType.APPLICATION_JSON, MediaType.APPLICATION_IMS_LINE_ITEM, MediaType.APPLICATION_IMS_RESULT);
 
@@ -156,48 +166,57 @@ public class JacksonHttpMessageConverter extends AbstractComponent implements Ht
             boolean prod = BaseServiceMeta.getServiceMeta().isProdLike();
 
             try {
-                // TODO: Ideally this would cache the gzip-compressed response and return the response using sendfile or
-                // other async I/O.
-                final byte[] rspData;
+                // TODO: Ideally this would return the response using sendfile or other async I/O.
                 if (options.getCacheOptions().isPresent()) {
                     // TODO: Arguably I should also support rm.mode == READ_ONLY if i could make the post body a part of the cache key
                     if (!"GET".equals(request.getMethod())) {
                         throw new RuntimeException("Invalid CacheOptions on non-GET request");
                     }
                     String uri = Current.getDomain() + ":" + request.getRequestURI();
-                    Option<byte[]> cached = cache.get(uri);
-                    rspData = cached.getOrElse(() -> {
-                        byte[] serialized = io.serialize(source);
+                    Option<CachedResponse> cached = cache.get(uri);
+                    final CachedResponse rsp = cached.getOrElse(() -> {
+                        CachedResponse serialized = CachedResponse.apply(io.serialize(source));
                         cache.put(new WebEntry(uri, serialized, options.getCacheOptions().get()));
                         return serialized;
                     });
+                    final boolean notModified = rsp.matches(request.getHeader(HttpUtils.HTTP_HEADER_IF_NONE_MATCH));
+                    // every lookup counts as a hit or a miss; a 304 is counted on top of that, so a miss whose
+                    // freshly generated response matches what the client holds still shows as a miss
+                    final String statistic = options.getRoute().orElse(WEB_CACHE_STATISTIC);
+                    DeMonitor.recordGlobalStatistic(cached.isEmpty() ? StatisticType.WebCacheMiss$.MODULE$
+                      : StatisticType.WebCacheHit$.MODULE$, statistic, 0L);
+                    if (notModified) {
+                        DeMonitor.recordGlobalStatistic(StatisticType.WebCacheNotModified$.MODULE$, statistic, 0L);
+                    }
                     if (!prod) {
                         response.addHeader("X-WebCache", (cached.isEmpty()) ? "Miss" : "Hit");
                     }
-                } else {
-                    rspData = io.serialize(source);
-                }
 
-                if (!prod) {
-                    ThreadStatistics.statistics().foreach(stats -> {
-                        response.addHeader("X-QueryCount", String.valueOf(stats.count()));
-                        return null;
-                      });
-                }
+                    addResponseHeaders(response, prod);
 
-                // uncomment if you're a fun-sucker
-                // if (!prod) {
-                    AugurySupport.augurize(response);
-                //}
+                    // This does not belong here, but... Release database connection before writing data.
+                    ManagedUtils.end();
 
-                // This does not belong here, but... Release database connection before writing data.
-                ManagedUtils.end();
-
-                /*
-                 * Now that there are no Jackson exceptions, commit to the HttpServletResponse.
-                 * This could be avoided if we had a "delayed" HttpServletResponseWrapper, see US7250
-                 */
-                io.write(rspData, request, response);
+                    writeCached(rsp, notModified, request, response);
+                } else {
+                    /*
+                     * Hold the response in recycled buffers, spilling large responses to disk, so a Jackson
+                     * exception does not commit a partial response to the HttpServletResponse and nothing
+                     * reaches the client before the transaction ends.
+                     */
+                    final SpillingResponseStream out = new SpillingResponseStream(request, response,
+                      () -> addResponseHeaders(response, prod));
+                    try {
+                        io.serialize(source, out);
+
+                        // This does not belong here, but... Release database connection before writing data.
+                        ManagedUtils.end();
+
+                        out.commit();
+                    } finally {
+                        out.release();
+                    }
+                }
 
             } catch (final Exception ex) {
                 throw new HttpMessageNotWriteableException("Could not write JSON: " + ex.getMessage(), ex);
@@ -205,4 +224,36 @@ public class JacksonHttpMessageConverter extends AbstractComponent implements Ht
         }
 
     }
+
+    private void writeCached(final CachedResponse rsp, final boolean notModified, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String encoding = HttpUtils.getGzipEncoding(request);
+        response.addHeader(HttpUtils.HTTP_HEADER_VARY, HttpUtils.HTTP_HEADER_ACCEPT_ENCODING);
+        response.setHeader(HttpUtils.HTTP_HEADER_ETAG, (encoding == null) ? rsp.etag() : rsp.gzippedEtag());
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        } else if (encoding == null) {
+            io.write(rsp.body(), request, response);
+        } else {
+            // serve the precompressed body as is
+            response.setHeader(HttpUtils.HTTP_HEADER_CONTENT_ENCODING, encoding);
+            response.setContentLength(rsp.gzipped().length);
+            if (!HttpUtils.HTTP_REQUEST_METHOD_HEAD.equals(request.getMethod())) {
+                response.getOutputStream().write(rsp.gzipped());
+            }
+        }
+    }
+
+    private static void addResponseHeaders(final HttpServletResponse response, final boolean prod) {
+        if (!prod) {
+            ThreadStatistics.statistics().foreach(stats -> {
+                response.addHeader("X-QueryCount", String.valueOf(stats.count()));
+                return null;
+              });
+        }
+
+        // uncomment if you're a fun-sucker
+        // if (!prod) {
+            AugurySupport.augurize(response);
+        //}
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.cp.web.converter;
+
+import com.learningobjects.cpxp.util.HttpUtils;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream that holds a response until it is committed, so that it can still be
+ * abandoned if serialization fails rather than committing a half-written response, and so
+ * that nothing reaches the client before the caller has finished its own work. The start of
+ * the response is held in recycled chunks; once it grows past a threshold the remainder is
+ * spilled to a temporary file rather than held in memory. Nothing is written to the client
+ * until the response is committed, so the caller can end its transaction and release its
+ * database connection before a large response is sent to a slow client.
+ *
+ * Closing this stream does nothing, because Jackson closes its target when it is done. The
+ * response must instead be explicitly committed and then released.
+ */
+final class SpillingResponseStream extends OutputStream {
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final int SPILL_THRESHOLD = 1024 * 1024;
+
+    /** Recycled chunks; at most 8MB are retained. */
+    private static final BlockingQueue<byte[]> __chunks = new ArrayBlockingQueue<>(256);
+
+    private final HttpServletRequest _request;
+    private final HttpServletResponse _response;
+    private final Runnable _beforeCommit;
+    private final List<byte[]> _chunks = new ArrayList<>();
+    private byte[] _chunk;
+    private int _position;
+    private int _size;
+    private File _file;
+    private OutputStream _spilled;
+
+    /**
+     * @param request the request
+     * @param response the response
+     * @param beforeCommit invoked just before the response is committed, to set any final headers
+     */
+    SpillingResponseStream(HttpServletRequest request, HttpServletResponse response, Runnable beforeCommit) {
+        _request = request;
+        _response = response;
+        _beforeCommit = beforeCommit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (_spilled != null) {
+            _spilled.write(b);
+        } else {
+            if ((_chunk == null) || (_position == CHUNK_SIZE)) {
+                nextChunk();
+            }
+            _chunk[_position++] = (byte) b;
+            if (++_size > SPILL_THRESHOLD) {
+                spill();
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (_spilled != null) {
+            _spilled.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if ((_chunk == null) || (_position == CHUNK_SIZE)) {
+                nextChunk();
+            }
+            final int n = Math.min(len, CHUNK_SIZE - _position);
+            System.arraycopy(b, off, _chunk, _position, n);
+            _position += n;
+            _size += n;
+            off += n;
+            len -= n;
+        }
+        if (_size > SPILL_THRESHOLD) {
+            spill();
+        }
+    }
+
+    @Override
+    public void flush() {
+        // the response is flushed when it is committed
+    }
+
+    @Override
+    public void close() {
+        // the response is closed when it is committed
+    }
+
+    /**
+     * Write the response to the client, compressed if the client accepts it.
+     */
+    void commit() throws IOException {
+        _beforeCommit.run();
+        final OutputStream out = HttpUtils.getOutputStream(_request, _response);
+        final int last = _chunks.size() - 1;
+        for (int i = 0; i <= last; ++i) {
+            out.write(_chunks.get(i), 0, (i == last) ? _position : CHUNK_SIZE);
+        }
+        if (_spilled != null) {
+            _spilled.close();
+            Files.copy(_file.toPath(), out);
+        }
+        out.close();
+    }
+
+    /**
+     * Return any held chunks for reuse and delete any spilled file. The response is abandoned
+     * if it was not committed.
+     */
+    void release() {
+        for (byte[] chunk : _chunks) {
+            __chunks.offer(chunk);
+        }
+        _chunks.clear();
+        _chunk = null;
+        if (_file != null) {
+            try {
+                _spilled.close();
+            } catch (IOException ignored) {
+                // the file is deleted regardless
+            }
+            _file.delete();
+            _file = null;
+            _spilled = null;
+        }
+    }
+
+    private void nextChunk() {
+        final byte[] chunk = __chunks.poll();
+        _chunk = (chunk == null) ? new byte[CHUNK_SIZE] : chunk;
+        _chunks.add(_chunk);
+        _position = 0;
+    }
+
+    private void spill() throws IOException {
+        _file = File.createTempFile("response", ".tmp");
+        _spilled = new BufferedOutputStream(new FileOutputStream(_file), CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.cp.web.cache
+
+import org.apache.commons.codec.digest.DigestUtils
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPOutputStream
+import scala.util.Using
+
+/** A cached Web response.
+  *
+  * @param body
+  *   the response body
+  * @param gzipped
+  *   the gzip-compressed response body
+  * @param etag
+  *   a strong entity tag for the response body
+  */
+final class CachedResponse(val body: Array[Byte], val gzipped: Array[Byte], val etag: String):
+
+  /** A strong entity tag for the gzip-compressed response body, which is a distinct representation. */
+  def gzippedEtag: String = etag.stripSuffix("\"") + "-gzip\""
+
+  /** Get whether a conditional request header matches this response.
+    *
+    * @param ifNoneMatch
+    *   the `If-None-Match` header value
+    * @return
+    *   whether the client already holds this response
+    */
+  def matches(ifNoneMatch: String): Boolean =
+    (ifNoneMatch ne null) && ifNoneMatch.split(',').exists { tag =>
+      val t = tag.trim.stripPrefix("W/")
+      t == "*" || t == etag || t == gzippedEtag
+    }
+end CachedResponse
+
+object CachedResponse:
+
+  /** Cache a response body, precomputing its compressed form and entity tag. */
+  def apply(body: Array[Byte]): CachedResponse =
+    new CachedResponse(body, gzip(body), s""""${DigestUtils.md5Hex(body)}"""")
+
+  private def gzip(body: Array[Byte]): Array[Byte] =
+    val out = new ByteArrayOutputStream(body.length / 4 + 32)
+    Using.resource(new GZIPOutputStream(out))(_.write(body))
+    out.toByteArray
+end CachedResponse
@@ -22,7 +22,7 @@ import com.learningobjects.cpxp.util.cache.BucketGenerationalCache
 import scala.concurrent.duration.*
 
 final class WebCache
-    extends BucketGenerationalCache[String, Array[Byte], WebEntry](
+    extends BucketGenerationalCache[String, CachedResponse, WebEntry](
       itemAware = true,
       replicated = true,
       timeout = 5.minutes
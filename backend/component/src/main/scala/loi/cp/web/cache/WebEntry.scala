@@ -20,5 +20,5 @@ package loi.cp.web.cache
 import com.learningobjects.cpxp.component.web.CacheOptions
 import com.learningobjects.cpxp.util.cache.Entry
 
-final class WebEntry(path: String, rsp: Array[Byte], opts: CacheOptions)
-    extends Entry[String, Array[Byte]](path, rsp, opts.invalidationKeys)
+final class WebEntry(path: String, rsp: CachedResponse, opts: CacheOptions)
+    extends Entry[String, CachedResponse](path, rsp, opts.invalidationKeys)
@@ -17,7 +17,7 @@
 
 package loi.cp.web.converter
 
-import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream, OutputStream}
 import java.util.function.Supplier
 
 import com.fasterxml.jackson.databind.util.TokenBuffer
@@ -51,6 +51,9 @@ trait JacksonHttpMessageIO:
   /** Serialize an object to JSON. */
   def serialize(o: AnyRef): Array[Byte]
 
+  /** Serialize an object to JSON on a stream. */
+  def serialize(o: AnyRef, out: OutputStream): Unit
+
   /** Serialize an object to JSON node. */
   def valueToTree(o: AnyRef): JsonNode
 
@@ -77,11 +80,18 @@ class JacksonHttpMessageIOImpl(mapper: ObjectMapper) extends JacksonHttpMessageI
     view.fold(mapper.reader)(mapper.readerWithView).forType(tpe).readValue(in)
 
   /** Serialize an object to JSON. */
-  override def serialize(o: AnyRef): Array[Byte] = o match
+  override def serialize(o: AnyRef): Array[Byte] =
+    mapper.writerWithView(classOf[Default]).writeValueAsBytes(unwrap(o))
+
+  /** Serialize an object to JSON on a stream. */
+  override def serialize(o: AnyRef, out: OutputStream): Unit =
+    mapper.writerWithView(classOf[Default]).writeValue(out, unwrap(o))
+
+  private def unwrap(o: AnyRef): AnyRef = o match
     // Work around bug in Jackson 2.12.0 where @JsonTypeInfo on an object inside @JsonValue does not get
     // its type info added...
-    case oe: ObjectEntity => mapper.writerWithView(classOf[Default]).writeValueAsBytes(oe.getObject)
-    case o                => mapper.writerWithView(classOf[Default]).writeValueAsBytes(o)
+    case oe: ObjectEntity => oe.getObject
+    case o                => o
 
   /** Serialize an object to JSON node. */
   override def valueToTree(o: AnyRef): JsonNode =
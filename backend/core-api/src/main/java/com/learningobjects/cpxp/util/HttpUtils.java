@@ -70,6 +70,8 @@ public class HttpUtils {
     public static final String HTTP_REQUEST_METHOD_DELETE = "DELETE";
     public static final String HTTP_HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
     public static final String HTTP_HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HTTP_HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HTTP_HEADER_ETAG = "ETag";
     public static final String HTTP_HEADER_CONTENT_DISPOSITION = "Content-Disposition";
     public static final String HTTP_HEADER_CONTENT_ENCODING = "Content-Encoding";
     public static final String HTTP_HEADER_CONTENT_TYPE = "Content-Type";
@@ -444,18 +446,32 @@ public class HttpUtils {
             return new NullOutputStream();
         }
         OutputStream out = response.getOutputStream();
-        if (gzipResponse()) {
-            String acceptEncoding = request.getHeader(HTTP_HEADER_ACCEPT_ENCODING);
-            if (StringUtils.containsIgnoreCase(acceptEncoding, ENCODING_GZIP)) {
-                String encoding = StringUtils.containsIgnoreCase(acceptEncoding, ENCODING_X_GZIP) ? ENCODING_X_GZIP : ENCODING_GZIP;
-                response.setHeader(HTTP_HEADER_CONTENT_ENCODING, encoding);
-                // response.addHeader(HTTP_HEADER_VARY, HTTP_HEADER_ACCEPT_ENCODING); // to be pedantic but we don't currently cache these responses
-                out = new GZIPOutputStream(out);
-            }
+        String encoding = getGzipEncoding(request);
+        if (encoding != null) {
+            response.setHeader(HTTP_HEADER_CONTENT_ENCODING, encoding);
+            // response.addHeader(HTTP_HEADER_VARY, HTTP_HEADER_ACCEPT_ENCODING); // to be pedantic but we don't currently cache these responses
+            out = new GZIPOutputStream(out);
         }
         return out;
     }
 
+    /**
+     * Get the gzip content encoding with which to respond to a request.
+     *
+     * @param request the request
+     * @return the gzip encoding accepted by the client, or null if responses should not be compressed
+     */
+    public static String getGzipEncoding(HttpServletRequest request) {
+        if (!gzipResponse()) {
+            return null;
+        }
+        String acceptEncoding = request.getHeader(HTTP_HEADER_ACCEPT_ENCODING);
+        if (!StringUtils.containsIgnoreCase(acceptEncoding, ENCODING_GZIP)) {
+            return null;
+        }
+        return StringUtils.containsIgnoreCase(acceptEncoding, ENCODING_X_GZIP) ? ENCODING_X_GZIP : ENCODING_GZIP;
+    }
+
     public static String getRemoteAddr(HttpServletRequest request, ServiceMeta serviceMeta) {
         String remoteAddr = null;
         // We allow integration tests to "spoof" an IP by specifying the IP in an HTTP Header.
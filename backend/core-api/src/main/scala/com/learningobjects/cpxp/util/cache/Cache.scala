@@ -32,6 +32,9 @@ trait Cache[K, V, E <: Entry[K, V]]:
 
   def getMissCount: Int
 
+  /** The number of callers that waited on a concurrent load rather than loading themselves. */
+  def getCoalescedCount: Int = loads.coalescedCount
+
   def getSize: Int
 
   def getInvalidationSize: (Int, Int)
@@ -59,6 +62,20 @@ trait Cache[K, V, E <: Entry[K, V]]:
   final def getValidOrCompute(compute: () => E, valid: V => Boolean, key: K): V =
     get(key).filter(valid).getOrElse(compute().tap(put).value)
 
+  /** Return the cached value for `key` if it is valid, or else load one with the supplied provider and store it. One is
+    * expected to return an entry keyed on `key`. Concurrent loads of the same key are coalesced so that one caller loads
+    * while the others wait for and share its result or its failure. A shared result that is not valid for a waiter,
+    * such as one loaded for an earlier generation, is loaded afresh.
+    */
+  final def getValidOrLoad(key: K, valid: V => Boolean)(load: () => E): V =
+    get(key).filter(valid) getOrElse {
+      val loaded = loads(key)(load().tap(put).value)
+      if valid(loaded) then loaded else load().tap(put).value
+    }
+
+  /** The loads in progress. */
+  protected final val loads = new SingleFlight[K, V]
+
   def remove(key: K): Unit = remove(key, propagate = true)
 
   def remove(key: K, propagate: Boolean): Unit
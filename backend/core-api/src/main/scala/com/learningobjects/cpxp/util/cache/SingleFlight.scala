@@ -0,0 +1,56 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.util.cache
+
+import scaloi.syntax.AnyOps.*
+
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, ExecutionException}
+
+/** Coalesces concurrent loads of the same key, so that one caller loads while the others wait for and share its result
+  * or its failure. Nothing is retained once a load completes. A load must not recursively load its own key.
+  */
+final class SingleFlight[K, V]:
+
+  /** The loads in progress. */
+  private final val loading = new ConcurrentHashMap[K, CompletableFuture[V]]
+
+  /** The number of callers that waited on another caller's load. */
+  private final val coalesced = new LongAdder
+
+  /** Load a value, or wait for the load of the same key that is already in progress. */
+  def apply(key: K)(load: => V): V =
+    val future = new CompletableFuture[V]
+    loading.putIfAbsent(key, future) match
+      case null     =>
+        try load <| future.complete
+        catch
+          case th: Throwable =>
+            future.completeExceptionally(th)
+            throw th
+        finally loading.remove(key, future)
+      case existing =>
+        coalesced.increment()
+        try existing.get
+        catch case ex: ExecutionException => throw ex.getCause
+
+  /** The number of callers that waited on another caller's load rather than loading themselves. */
+  def coalescedCount: Int = coalesced.intValue
+
+  def resetStatistics(): Unit = coalesced.reset()
+end SingleFlight
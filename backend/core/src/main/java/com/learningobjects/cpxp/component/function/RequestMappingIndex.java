@@ -57,6 +57,11 @@ public class RequestMappingIndex {
     private Map<UriTemplate, Map<Method, Map<String, FunctionDescriptor>>>
             functionRegistry = new HashMap<>();
 
+    /**
+     * The keys of the index, for finding the best template for a path
+     */
+    private final UriTemplateTrie uriTemplates = new UriTemplateTrie();
+
     public RequestMappingIndex() {
         this.validator = RequestMappingSignatureValidator.INSTANCE;
     }
@@ -107,6 +112,7 @@ public class RequestMappingIndex {
         if (uriTemplateValue == null) {
             uriTemplateValue = new HashMap<>();
             functionRegistry.put(uriTemplate, uriTemplateValue);
+            uriTemplates.add(uriTemplate);
         }
 
         Map<String, FunctionDescriptor> httpMethodValue =
@@ -173,26 +179,19 @@ public class RequestMappingIndex {
     public FunctionDescriptor get(@Nonnull final String path, @Nonnull final Method httpMethod,
             @Nullable final String typeName) {
 
-        final TreeSet<UriTemplate> matchingUriTemplates = new TreeSet<>(UriTemplate.GREEDY_ORDERING);
-        for (final UriTemplate uriTemplate : functionRegistry.keySet()) {
-            if (uriTemplate.matches(path)) {
-                matchingUriTemplates.add(uriTemplate);
-            }
-        }
+        final UriTemplate bestPath = uriTemplates.find(path);
 
         final FunctionDescriptor result;
-        if (matchingUriTemplates.isEmpty()) {
+        if (bestPath == null) {
             // resource not found
             throw new ResourceNotFoundException("No such resource: '" + path + "'");
         } else {
 
-            final UriTemplate bestPath = matchingUriTemplates.first();
-            final UriTemplate searchPath = new UriTemplate(path);
             final Map<Method, Map<String, FunctionDescriptor>> methodRegistry = functionRegistry.get(bestPath);
 
 
 
-            final boolean lastLink = searchPath.getNumSegments() == bestPath.getNumSegments();
+            final boolean lastLink = getNumSegments(path) == bestPath.getNumSegments();
 
             final Method effectiveMethod;
             if (!lastLink || Method.PATCH == httpMethod) {
@@ -290,6 +289,22 @@ public class RequestMappingIndex {
 
     }
 
+    /**
+     * Count the segments of a path as {@link UriTemplate#getNumSegments()} would, without
+     * compiling the path as a template.
+     */
+    private static int getNumSegments(final String path) {
+        final int start = path.startsWith("/") ? 1 : 0;
+        final int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        int count = 0;
+        for (int i = start; i < end; ++i) {
+            if (path.charAt(i) == '/') {
+                ++count;
+            }
+        }
+        return count;
+    }
+
     public Collection<FunctionDescriptor> values() {
 
         final Collection<FunctionDescriptor> functions = new ArrayList<>();
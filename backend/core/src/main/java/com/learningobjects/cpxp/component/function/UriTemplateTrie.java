@@ -0,0 +1,202 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.component.function;
+
+import com.learningobjects.de.web.util.UriTemplate;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A trie of {@link UriTemplate}s keyed by path segment, for finding the best template
+ * for a path without evaluating every template's regular expression.
+ *
+ * <p>A template matches a path if each of its segments matches the corresponding
+ * segment of the path; any further path segments are left for subsequent request
+ * mappings. Literal segments are looked up by exact match, {@code {var}} segments match
+ * any one segment and segments that mix literals and variables are matched against a
+ * per-segment pattern. This is equivalent to {@link UriTemplate#matches(String)} because
+ * none of these can match across a {@code /}. A {@code {var:regex}} variable may, so
+ * templates with custom variable patterns are instead checked individually.</p>
+ *
+ * <p>Of the matching templates, the best is the first by
+ * {@link UriTemplate#GREEDY_ORDERING}; among equals, the one with literal segments
+ * earliest in the path is preferred.</p>
+ */
+final class UriTemplateTrie {
+
+    /** Captures URI template variables, as in {@link UriTemplate}. */
+    private static final Pattern NAMES_PATTERN = Pattern.compile("\\{([^/]+?)\\}");
+
+    /** Matches any single segment, as in {@link UriTemplate}. */
+    private static final String DEFAULT_VARIABLE_PATTERN = "[^/]*";
+
+    private final Node root = new Node();
+
+    /** Templates with custom variable patterns. */
+    private final List<UriTemplate> irregular = new ArrayList<>();
+
+    /**
+     * Add a template to this trie.
+     *
+     * @param template the template
+     */
+    void add(final UriTemplate template) {
+        String[] segments = template.toString().split("/", -1);
+        if ((segments.length > 1) && segments[segments.length - 1].isEmpty()) {
+            // a trailing slash does not make a segment, as in UriTemplate
+            segments = Arrays.copyOf(segments, segments.length - 1);
+        }
+        for (final String segment : segments) {
+            if (hasCustomPattern(segment)) {
+                irregular.add(template);
+                return;
+            }
+        }
+        Node node = root;
+        for (final String segment : segments) {
+            node = node.child(segment);
+        }
+        node.template = template;
+    }
+
+    /**
+     * Find the best template for a path.
+     *
+     * @param path the path
+     * @return the best matching template, or null if none match
+     */
+    @Nullable
+    UriTemplate find(final String path) {
+        final String[] segments = path.split("/", -1);
+        UriTemplate best = find(root, segments, 0, null);
+        for (final UriTemplate template : irregular) {
+            if (isBetter(template, best) && template.matches(path)) {
+                best = template;
+            }
+        }
+        return best;
+    }
+
+    private static UriTemplate find(final Node node, final String[] segments, final int depth, UriTemplate best) {
+        if ((node.template != null) && isBetter(node.template, best)) {
+            best = node.template;
+        }
+        if (depth < segments.length) {
+            final String segment = segments[depth];
+            final Node literal = node.literals.get(segment);
+            if (literal != null) {
+                best = find(literal, segments, depth + 1, best);
+            }
+            for (final PatternEdge edge : node.patterns) {
+                if (edge.pattern.matcher(segment).matches()) {
+                    best = find(edge.node, segments, depth + 1, best);
+                }
+            }
+            if (node.variable != null) {
+                best = find(node.variable, segments, depth + 1, best);
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(final UriTemplate template, final UriTemplate best) {
+        return (best == null) || (UriTemplate.GREEDY_ORDERING.compare(template, best) < 0);
+    }
+
+    private static boolean hasCustomPattern(final String segment) {
+        final Matcher m = NAMES_PATTERN.matcher(segment);
+        while (m.find()) {
+            if (m.group(1).indexOf(':') >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the pattern for a segment that mixes literals and variables, or null if the
+     * segment is a literal or a lone variable.
+     */
+    @Nullable
+    private static String segmentPattern(final String segment) {
+        final Matcher m = NAMES_PATTERN.matcher(segment);
+        final StringBuilder sb = new StringBuilder();
+        int end = 0;
+        while (m.find()) {
+            if (m.start() > end) {
+                sb.append(Pattern.quote(segment.substring(end, m.start())));
+            }
+            sb.append(DEFAULT_VARIABLE_PATTERN);
+            end = m.end();
+        }
+        if (end < segment.length()) {
+            sb.append(Pattern.quote(segment.substring(end)));
+        }
+        return (end == 0) ? null : sb.toString();
+    }
+
+    private static final class Node {
+        private final Map<String, Node> literals = new HashMap<>();
+
+        private final List<PatternEdge> patterns = new ArrayList<>(0);
+
+        private Node variable;
+
+        /** The template that ends at this node, if any. */
+        private UriTemplate template;
+
+        private Node child(final String segment) {
+            final String regex = segmentPattern(segment);
+            if (regex == null) {
+                return literals.computeIfAbsent(segment, s -> new Node());
+            } else if (DEFAULT_VARIABLE_PATTERN.equals(regex)) {
+                if (variable == null) {
+                    variable = new Node();
+                }
+                return variable;
+            } else {
+                for (final PatternEdge edge : patterns) {
+                    if (edge.pattern.pattern().equals(regex)) {
+                        return edge.node;
+                    }
+                }
+                final PatternEdge edge = new PatternEdge(Pattern.compile(regex), new Node());
+                patterns.add(edge);
+                return edge.node;
+            }
+        }
+    }
+
+    private static final class PatternEdge {
+        private final Pattern pattern;
+
+        private final Node node;
+
+        private PatternEdge(final Pattern pattern, final Node node) {
+            this.pattern = pattern;
+            this.node = node;
+        }
+    }
+}
@@ -25,8 +25,13 @@
 
 package com.learningobjects.cpxp.component.template;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.learningobjects.cpxp.BaseWebContext;
 import com.learningobjects.cpxp.component.ComponentDescriptor;
+import com.learningobjects.cpxp.component.ComponentEnvironment;
 import com.learningobjects.cpxp.component.HtmlWriter;
 import com.learningobjects.tagsoup.HTMLSchema;
 import com.learningobjects.tagsoup.Parser;
@@ -35,6 +40,7 @@ import com.learningobjects.tagsoup.XMLWriter;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
+import org.xml.sax.ext.LexicalHandler;
 import org.xml.sax.helpers.LocatorImpl;
 import org.xml.sax.helpers.NamespaceSupport;
 
@@ -43,7 +49,9 @@ import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,10 +60,36 @@ public class LohtmlTemplate {
 
     private final URL _url;
     private final String _template;
+    private final boolean _cached;
+
+    // Compiled templates by component environment, so they are discarded
+    // along with the environment when archives change.
+    private static final Map<ComponentEnvironment, Cache<List<Object>, Repeater.Recording>> __compiled =
+      new MapMaker().weakKeys().makeMap();
+
+    // Noting all of the methods on ContentHandler, there are two cases where
+    // mutable args appear: firstly where we have a char[] followed by a
+    // start-index and a length, and secondly where the sole arg is a Locator.
+    // Copy both.
+    private static final Repeater.InvocationArgumentProtector PROTECTOR = new Repeater.InvocationArgumentProtector() {
+        public void protect(Method m, Object[] args) {
+            if (args[0] instanceof char[]) {
+                char[] old = (char[]) args[0];
+                int start = (Integer) args[1];
+                int len = (Integer) args[2];
+                args[0] = new char[len];
+                args[1] = 0;
+                System.arraycopy(old, start, args[0], 0, len);
+            } else if (args[0] instanceof Locator) {
+                args[0] = new LocatorImpl((Locator) args[0]);
+            }
+        }
+    };
 
-    private LohtmlTemplate(URL url, String template) {
+    private LohtmlTemplate(URL url, String template, boolean cached) {
         _url = url;
         _template = template;
+        _cached = cached;
     }
 
     // Render the file in context.
@@ -74,6 +108,23 @@ public class LohtmlTemplate {
         xmlWriter.setOutputProperty(XMLWriter.METHOD, "html");
         xmlWriter.setOutputProperty(XMLWriter.ENCODING, "UTF-8");
 
+        HtmlFilter realFilter = new HtmlFilter(context, xmlWriter, rawWriter, schema.getNamespaceSupport());
+        if (_cached) {
+            // The parser only reads the schema namespaces, it never declares
+            // any, so a fresh schema serves for replaying the compiled events.
+            Repeater repeater = Repeater.newInstance(realFilter, getCompiled(context, isFragment));
+            realFilter.setRepeater(repeater);
+            repeater.play();
+        } else {
+            ContentHandler filter = (ContentHandler) Repeater.newInstance(realFilter, PROTECTOR);
+            realFilter.setRepeater((Repeater)
+                    Proxy.getInvocationHandler(filter));
+            parse(filter, schema, isFragment);
+        }
+    }
+
+    private void parse(ContentHandler handler, Schema schema,
+            boolean isFragment) throws Exception {
         Parser parser = new Parser();
         parser.setFeature(Parser.ignoreBogonsFeature, false);
         parser.setFeature(Parser.defaultAttributesFeature, false);
@@ -85,36 +136,36 @@ public class LohtmlTemplate {
         parser.setProperty(Parser.schemaProperty, schema);
         parser.setProperty(Parser.nonLowerCasedNamespacesProperty,
                            BaseWebContext.getContext().getComponentEnvironment().getIdentifiers());
-
-        HtmlFilter realFilter = new HtmlFilter(context, xmlWriter, rawWriter, schema.getNamespaceSupport());
-        ContentHandler filter = (ContentHandler) Repeater.newInstance(
-                realFilter, new Repeater.InvocationArgumentProtector() {
-            // Noting all of the methods on ContentHandler, there are two
-            // cases where mutable args appear: firstly where we have a
-            // char[] followed by a start-index and a length, and secondly
-            // where the sole arg is a Locator.  Copy both.
-            public void protect(Method m, Object[] args) {
-                if (args[0] instanceof char[]) {
-                    char[] old = (char[]) args[0];
-                    int start = (Integer) args[1];
-                    int len = (Integer) args[2];
-                    args[0] = new char[len];
-                    args[1] = 0;
-                    System.arraycopy(old, start, args[0], 0, len);
-                } else if (args[0] instanceof Locator) {
-                    args[0] = new LocatorImpl((Locator) args[0]);
-                }
-            }
-        });
-        realFilter.setRepeater((Repeater)
-                Proxy.getInvocationHandler(filter));
-        parser.setContentHandler(filter);
-        parser.setProperty("http://xml.org/sax/properties/lexical-handler", filter);
+        parser.setContentHandler(handler);
+        parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
         var source = _url != null ? new InputSource(_url.openStream())
           : new InputSource(new StringReader(_template));
         parser.parse(source);
     }
 
+    // Get the parse events of the file, recorded once per component
+    // environment, fragment-ness and scope (which binds the self: prefix).
+    private Repeater.Recording getCompiled(RenderContext context,
+            boolean isFragment) throws Exception {
+        Cache<List<Object>, Repeater.Recording> compiled = __compiled.computeIfAbsent(
+          BaseWebContext.getContext().getComponentEnvironment(),
+          env -> CacheBuilder.newBuilder().softValues().build());
+        List<Object> key = List.of(_url.toString(), isFragment, context.getScope().getIdentifier());
+        try {
+            return compiled.get(key, () -> compile(context, isFragment));
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    private Repeater.Recording compile(RenderContext context,
+            boolean isFragment) throws Exception {
+        Object recorder = Repeater.newRecorder(new Class[] {
+                ContentHandler.class, LexicalHandler.class }, PROTECTOR);
+        parse((ContentHandler) recorder, getSchema(context), isFragment);
+        return Repeater.getRecording(recorder);
+    }
+
     // Render the file in context.
     public void render(RenderContext context) throws Exception {
         render(context, getSchema(context), false);
@@ -134,21 +185,26 @@ public class LohtmlTemplate {
         return schema;
     }
 
-    // Get a (potentially, one day, cached) HtmlTemplate instance for a
-    // file.
+    // Get an HtmlTemplate instance for a file, parsed on every render.
     public static LohtmlTemplate getInstance(URL url) {
-        return new LohtmlTemplate(url, null);
+        return new LohtmlTemplate(url, null, false);
+    }
+
+    // Get an HtmlTemplate instance for a file that will not change for the
+    // life of the component environment, such as a component archive
+    // resource. It is parsed on first render and the parse is then replayed.
+    public static LohtmlTemplate getCachedInstance(URL url) {
+        return new LohtmlTemplate(url, null, true);
     }
 
-    // Get a (potentially, one day, cached) HtmlTemplate instance for a
-    // resource.
+    // Get an HtmlTemplate instance for a resource, parsed on every render.
     public static LohtmlTemplate getInstanceForResource(String resource) {
         return new LohtmlTemplate(LohtmlTemplate.class.getClassLoader().
-                getResource(resource), null);
+                getResource(resource), null, false);
     }
 
     public static LohtmlTemplate forTemplate(String template) {
-        return new LohtmlTemplate(null, template);
+        return new LohtmlTemplate(null, template, false);
     }
 
     /** Do not use this. Prefer I18nMessage. */
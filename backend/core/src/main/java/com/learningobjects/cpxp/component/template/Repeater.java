@@ -34,6 +34,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Repeater implements InvocationHandler {
@@ -69,6 +70,64 @@ public class Repeater implements InvocationHandler {
         _argumentProtector = argumentProtector;
     }
 
+    // A sequence of calls captured by a recorder, without invoking any
+    // target, that can be replayed to any number of targets.  The (protected)
+    // args are shared between replays so targets must not mutate them.
+    public static class Recording {
+        private final List<Method>   _methods = new ArrayList<Method>();
+        private final List<Object[]> _args = new ArrayList<Object[]>();
+
+        private Recording() {
+        }
+
+        public int size() {
+            return _methods.size();
+        }
+    }
+
+    private static class Recorder implements InvocationHandler {
+        private final Recording                   _recording = new Recording();
+        private final InvocationArgumentProtector _argumentProtector;
+
+        private Recorder(InvocationArgumentProtector argumentProtector) {
+            _argumentProtector = argumentProtector;
+        }
+
+        public Object invoke(Object proxy, Method m, Object[] args) {
+            if (args != null && args.length > 0 && _argumentProtector != null) {
+                _argumentProtector.protect(m, args);
+            }
+            _recording._methods.add(m);
+            _recording._args.add(args);
+            return null;
+        }
+    }
+
+    // Returns a proxy implementing the given interfaces that just records
+    // the calls made on it; retrieve them with getRecording.
+    public static Object newRecorder(Class[] interfaces,
+            InvocationArgumentProtector argumentProtector) {
+        return Proxy.newProxyInstance(Repeater.class.getClassLoader(),
+                interfaces, new Recorder(argumentProtector));
+    }
+
+    public static Recording getRecording(Object recorder) {
+        return ((Recorder) Proxy.getInvocationHandler(recorder))._recording;
+    }
+
+    // Returns a repeater for the target that is preloaded with a recording,
+    // ready to play.
+    public static Repeater newInstance(Object target, Recording recording) {
+        Repeater repeater = new Repeater(target, null);
+        List<Closure> invocations = new ArrayList<Closure>(recording.size());
+        for (int i = 0; i < recording.size(); ++i) {
+            invocations.add(repeater.closure(recording._methods.get(i),
+                    recording._args.get(i)));
+        }
+        repeater._invocations = Collections.unmodifiableList(invocations);
+        return repeater;
+    }
+
 /*
     private String attributesToString(Attributes a) {
         String rv = "{";
@@ -114,7 +173,25 @@ public class Repeater implements InvocationHandler {
         if (args != null && args.length > 0 && _argumentProtector != null) {
             _argumentProtector.protect(m, args);
         }
-        _invocations.add(new Closure() {
+        _invocations.add(closure(m, args));
+        int sz = _invocations.size();
+        do {
+            _invocations.get(_pos).execute(null);
+        } while (_pos < sz);
+        return null;
+    }
+
+    // Plays a preloaded recording through to its end, just as if each call
+    // had been made in turn on the proxy.
+    public void play() {
+        int sz = _invocations.size();
+        while (_pos < sz) {
+            _invocations.get(_pos).execute(null);
+        }
+    }
+
+    private Closure closure(final Method m, final Object[] args) {
+        return new Closure() {
             public void execute(Object input) {
                 _posSet = false;
 //              if (null != input) { // It's the indent to use...
@@ -141,12 +218,7 @@ public class Repeater implements InvocationHandler {
                     }
                 }
             }
-        });
-        int sz = _invocations.size();
-        do {
-            _invocations.get(_pos).execute(null);
-        } while (_pos < sz);
-        return null;
+        };
     }
 
 //  String _indent = "";
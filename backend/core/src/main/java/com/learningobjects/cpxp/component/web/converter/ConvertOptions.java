@@ -28,6 +28,7 @@ import java.util.Optional;
 public class ConvertOptions {
     private final MediaType mediaType;
     private final Optional<CacheOptions> cacheOptions;
+    private final Optional<String> route;
 
     /**
      * Create new message conversion options.
@@ -35,8 +36,20 @@ public class ConvertOptions {
      * @param cacheOptions cache options
      */
     public ConvertOptions(final MediaType mediaType, final Optional<CacheOptions> cacheOptions) {
+        this(mediaType, cacheOptions, Optional.empty());
+    }
+
+    /**
+     * Create new message conversion options.
+     * @param mediaType the requested media type
+     * @param cacheOptions cache options
+     * @param route the route that produced the response, such as the transaction name of the
+     *              request mapping that handled it; unlike the request URI, this is bounded
+     */
+    public ConvertOptions(final MediaType mediaType, final Optional<CacheOptions> cacheOptions, final Optional<String> route) {
         this.mediaType = mediaType;
         this.cacheOptions = cacheOptions;
+        this.route = route;
     }
 
     public MediaType getMediaType() {
@@ -46,4 +59,8 @@ public class ConvertOptions {
     public Optional<CacheOptions> getCacheOptions() {
         return cacheOptions;
     }
+
+    public Optional<String> getRoute() {
+        return route;
+    }
 }
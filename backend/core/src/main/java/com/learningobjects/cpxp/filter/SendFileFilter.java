@@ -25,25 +25,42 @@ import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.Globals;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A filter that processes send-file requests. This implemenation is now able to
  * detect whether grizzly-sendfile is installed and apply the appropriate header
  * to hand off file serving to it.
+ *
+ * Cached files are handed off to Tomcat sendfile where the connector supports
+ * it. Single and multiple byte range requests are honoured, subject to any
+ * If-Range precondition.
  */
 public class SendFileFilter extends AbstractFilter {
     private static final Logger logger = LoggerFactory.getLogger(SendFileFilter.class.getName());
@@ -54,12 +71,41 @@ public class SendFileFilter extends AbstractFilter {
     /** the send-file request attribute */
     public static final String REQUEST_ATTRIBUTE_SEND_FILE = "ug:sendFile";
 
+    /** Files smaller than this are not worth handing to Tomcat to send. */
+    private static final long SENDFILE_MIN_SIZE = 48L * 1024L;
+
+    /**
+     * How long files handed to Tomcat sendfile stay referenced after this
+     * filter returns. Tomcat opens the file as soon as the filter chain
+     * returns, and the file cache never rewrites a file in place, so once it
+     * is open an eviction can no longer affect the transfer. In seconds.
+     */
+    private static final long SENDFILE_RELEASE_DELAY = 30L;
+
+    /** Requests for more ranges than this are served the whole file. */
+    private static final int MAX_RANGES = 16;
+
+    private static final String BYTES_UNIT = "bytes";
+
     private final FileCache _fileCache; // This is where file are stored on the FS
     private final boolean _gzip;
 
+    /** Releases files once Tomcat has had time to open them for sendfile. */
+    private final ScheduledExecutorService _releaser;
+
     public SendFileFilter(Config config) {
         _fileCache = FileCache.getInstance();
         _gzip = config.getBoolean("com.learningobjects.cpxp.sendfile.gzip");
+        _releaser = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    }
+
+    @Override
+    public void destroy() {
+        // release any files still awaiting release
+        for (Runnable release : _releaser.shutdownNow()) {
+            release.run();
+        }
+        super.destroy();
     }
 
     /**
@@ -80,21 +126,34 @@ public class SendFileFilter extends AbstractFilter {
         }
         // Serve files
         if (fileInfo != null) {
+            boolean sendfile = false;
             try {
                 FileInfo gzipped = gzipResponse(request, response, fileInfo);
                 try {
-                    sendFile(request, response, fileInfo, gzipped);
+                    sendfile = sendFile(request, response, fileInfo, gzipped);
                 } finally {
                     if (gzipped != null) {
-                        gzipped.deref();
+                        release(gzipped, sendfile);
                     }
                 }
             } finally {
-                fileInfo.deref();
+                release(fileInfo, sendfile);
             }
         }
     }
 
+    /**
+     * Release a file, or if it was handed to Tomcat sendfile then release it
+     * only once Tomcat has opened it, so it cannot be evicted before then.
+     */
+    private void release(FileInfo fileInfo, boolean sendfile) {
+        if (sendfile && !_releaser.isShutdown()) {
+            _releaser.schedule(fileInfo::deref, SENDFILE_RELEASE_DELAY, TimeUnit.SECONDS);
+        } else {
+            fileInfo.deref();
+        }
+    }
+
     private FileInfo gzipResponse(HttpServletRequest request,
             HttpServletResponse response, FileInfo fileInfo) {
         // I have to ignore the browser's support of gzip if -gz is in the URL because the
@@ -104,47 +163,8 @@ public class SendFileFilter extends AbstractFilter {
         if (!doGzip() || !wantsCompression || (fileInfo.getCachePath() == null) || !isCompressable(fileInfo)) {
             return null;
         }
-        FileHandle handle = _fileCache.getFile(fileInfo.getCachePath() + ".gz");
-        try {
-            if (handle.isTemporary()) {
-                // Someone else is already gzipping this resource
-                // will be deleted by the deref
-                return null;
-            }
-            Date lastModifiedDate = fileInfo.getLastModified();
-            long lastModified = (lastModifiedDate == null) ? System
-                .currentTimeMillis() : lastModifiedDate.getTime();
-            boolean stale = !handle.exists() || (lastModified > handle.getFile().lastModified());
-            if (stale) {
-                handle.recreate();
-                try {
-                    long then = System.currentTimeMillis();
-                    InputStream in = fileInfo.openInputStream();
-                    try {
-                        OutputStream out = FileUtils.openOutputStream(handle.getFile());
-                        try {
-                            GZIPOutputStream gzip = new GZIPOutputStream(out);
-                            IOUtils.copy(in, gzip);
-                            gzip.finish();
-                        } finally {
-                            out.close();
-                        }
-                    } finally {
-                        in.close();
-                    }
-                    long delta = System.currentTimeMillis() - then;
-                    logger.info("Compressed file, {}, {}", fileInfo.getCachePath(), delta);
-                    handle.created();
-                } catch (Exception ex) {
-                    handle.failed();
-                    throw new RuntimeException("Gzip error", ex);
-                }
-            }
-            handle.ref();
-            return new LocalFileInfo(handle.getFile(), handle::deref);
-        } finally {
-            handle.deref();
-        }
+        // Wait for the compressed variant, even if someone else is compressing it
+        return CompressedVariants.getInstance().getGzipped(fileInfo);
     }
 
     // text/css text/javascript etc.
@@ -153,7 +173,12 @@ public class SendFileFilter extends AbstractFilter {
         return StringUtils.startsWith(contentType, MimeUtils.MIME_PREFIX_TEXT) && !StringUtils.equals(contentType, MimeUtils.MIME_TYPE_TEXT_PDF);
     }
 
-    private void sendFile(HttpServletRequest request,
+    /**
+     * Send a file.
+     *
+     * @return whether the body was handed to Tomcat sendfile
+     */
+    private boolean sendFile(HttpServletRequest request,
             HttpServletResponse response, final FileInfo fileInfo,
             final FileInfo gzipped) throws IOException {
         FileInfo actualFileInfo = (gzipped != null) ? gzipped : fileInfo;
@@ -190,13 +215,16 @@ public class SendFileFilter extends AbstractFilter {
         if ((ifModifiedSince != -1) && ((lastModified - ifModifiedSince) < 1000L) && !useDirectUrl) {
             response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             response.setContentLength(0);
-            return;
+            return false;
         }
 
         setupHeaders(response, fileInfo, lastModified);
+        if (gzipped == null) {
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+        }
 
         if (HttpUtils.HTTP_REQUEST_METHOD_HEAD.equals(request.getMethod())) {
-            return;
+            return false;
         }
 
         final long validity = 60L * 1000L; // 60s
@@ -210,7 +238,7 @@ public class SendFileFilter extends AbstractFilter {
             logger.debug("Redirecting to " + redirect);
             HttpUtils.setExpired(response); // We used to let the browser cache this redirect but we ran into browsers caching the redirect for too long
             response.sendRedirect(redirect);
-            return;
+            return false;
         }
 
         if (gzipped != null) {
@@ -223,19 +251,84 @@ public class SendFileFilter extends AbstractFilter {
                 response.addHeader(HttpUtils.HTTP_HEADER_VARY, HttpUtils.HTTP_HEADER_ACCEPT_ENCODING);
             }
         }
-        response.setContentLength((int) actualFileInfo.getSize());
+        long length = actualFileInfo.getSize();
+        // Ranges are only honoured on the identity encoding
+        List<ByteRange> ranges = (gzipped == null) ? getRanges(request, fileInfo, lastModified, length) : null;
+        if (ranges == null) {
+            response.setContentLengthLong(length);
+            return sendBody(request, response, actualFileInfo, 0, length);
+        } else if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + length);
+            response.setContentLength(0);
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(length));
+            response.setContentLengthLong(range.length());
+            return sendBody(request, response, actualFileInfo, range.start, range.length());
+        } else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            sendMultipartBody(response, actualFileInfo, ranges, length);
+        }
+        return false;
+    }
 
-        try(InputStream in = actualFileInfo.openInputStream()) {
-            streamFile(response, in);
+    /**
+     * Send part of a file as the response body. Cached files are handed to
+     * Tomcat to send with sendfile, if it is supported; anything else is
+     * streamed.
+     *
+     * @return whether the body was handed to Tomcat sendfile
+     */
+    private boolean sendBody(HttpServletRequest request, HttpServletResponse response,
+            FileInfo fileInfo, long start, long count) throws IOException {
+        File sendfile = getSendfile(request, fileInfo, count);
+        if (sendfile != null) {
+            request.setAttribute(Globals.SENDFILE_FILENAME_ATTR, sendfile.getAbsolutePath());
+            request.setAttribute(Globals.SENDFILE_FILE_START_ATTR, start);
+            request.setAttribute(Globals.SENDFILE_FILE_END_ATTR, start + count);
+            return true;
+        }
+        try {
+            OutputStream out = response.getOutputStream();
+            try {
+                copyRange(fileInfo, start, count, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            // minor, quite likely a network error
+            logger.debug("Error streaming file", ex);
         }
+        return false;
     }
 
-    private void streamFile(final HttpServletResponse response,
-            final InputStream in) {
+    private void sendMultipartBody(HttpServletResponse response, FileInfo fileInfo,
+            List<ByteRange> ranges, long length) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String contentType = StringUtils.defaultString(fileInfo.getContentType(), MimeUtils.MIME_TYPE_APPLICATION_UNKNOWN);
+        List<byte[]> headers = new ArrayList<>(ranges.size());
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = trailer.length;
+        for (ByteRange range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+              + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+              + HttpHeaders.CONTENT_RANGE + ": " + range.contentRange(length) + "\r\n\r\n")
+              .getBytes(StandardCharsets.US_ASCII);
+            headers.add(header);
+            contentLength += header.length + range.length();
+        }
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
         try {
             OutputStream out = response.getOutputStream();
             try {
-                    IOUtils.copy(in, out);
+                for (int i = 0; i < ranges.size(); ++i) {
+                    out.write(headers.get(i));
+                    copyRange(fileInfo, ranges.get(i).start, ranges.get(i).length(), out);
+                }
+                out.write(trailer);
             } finally {
                 out.close();
             }
@@ -245,6 +338,135 @@ public class SendFileFilter extends AbstractFilter {
         }
     }
 
+    /**
+     * Copy part of a file to an output stream. Local files are transferred
+     * from a file channel; other files are streamed.
+     */
+    private static void copyRange(FileInfo fileInfo, long start, long count, OutputStream out) throws IOException {
+        if (fileInfo instanceof LocalFileInfo) {
+            try (FileChannel channel = FileChannel.open(((LocalFileInfo) fileInfo).getFile().toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = start, end = start + count;
+                while (position < end) {
+                    long transferred = channel.transferTo(position, end - position, target);
+                    if (transferred <= 0) {
+                        throw new EOFException("Send file truncated: " + fileInfo);
+                    }
+                    position += transferred;
+                }
+            }
+        } else {
+            try (InputStream in = fileInfo.openInputStream()) {
+                IOUtils.copyLarge(in, out, start, count);
+            }
+        }
+    }
+
+    /**
+     * Get the file to hand to Tomcat to send, or null. Tomcat only sends the
+     * file once this filter has returned, so this is limited to files that
+     * are ready in the file cache, which stay in place while referenced.
+     */
+    private File getSendfile(HttpServletRequest request, FileInfo fileInfo, long count) {
+        if ((count < SENDFILE_MIN_SIZE)
+          || !Boolean.TRUE.equals(request.getAttribute(Globals.SENDFILE_SUPPORTED_ATTR))
+          || !(fileInfo instanceof LocalFileInfo)) {
+            return null;
+        }
+        File file = ((LocalFileInfo) fileInfo).getFile();
+        return _fileCache.isReady(file) ? file : null;
+    }
+
+    /**
+     * Get the ranges requested by a Range header. Returns null if the whole
+     * file should be sent, because there is no valid Range header or an
+     * If-Range precondition fails, and an empty list if no requested range
+     * is satisfiable.
+     */
+    private static List<ByteRange> getRanges(HttpServletRequest request, FileInfo fileInfo, long lastModified, long length) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+        if ((header == null) || !StringUtils.startsWithIgnoreCase(header, BYTES_UNIT + "=")
+          || !ifRangeMatches(request, fileInfo, lastModified)) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                String trimmed = spec.trim();
+                int dash = trimmed.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = trimmed.substring(0, dash).trim(), last = trimmed.substring(dash + 1).trim();
+                long start, end;
+                if (first.isEmpty()) { // suffix range
+                    long suffix = Long.parseLong(last);
+                    start = Math.max(0L, length - suffix);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (!last.isEmpty() && (Long.parseLong(last) < start)) {
+                        return null;
+                    }
+                }
+                if ((start < 0) || (start >= length)) {
+                    continue; // unsatisfiable
+                }
+                ranges.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Whether an If-Range precondition, if any, matches the file. This
+     * accepts either the last modified date or a strong entity tag.
+     */
+    private static boolean ifRangeMatches(HttpServletRequest request, FileInfo fileInfo, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"")) {
+            return ifRange.equals(fileInfo.getHeaders().get(HttpHeaders.ETAG));
+        } else if (ifRange.startsWith("W/")) {
+            return false; // weak tags never match
+        }
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return (date / 1000L) == (lastModified / 1000L);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /** An inclusive byte range of a file. */
+    private static final class ByteRange {
+        final long start, end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long length) {
+            return BYTES_UNIT + " " + start + "-" + end + "/" + length;
+        }
+    }
+
     private void setupHeaders(HttpServletResponse response, FileInfo fileInfo, long lastModified) {
         response.setContentType(StringUtils.defaultString(fileInfo
                 .getContentType(), MimeUtils.MIME_TYPE_APPLICATION_UNKNOWN));
@@ -0,0 +1,257 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.service.facade;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates a concrete implementation class for each facade interface, as a cheaper
+ * alternative to a {@link java.lang.reflect.Proxy}. The generated class extends
+ * {@link GeneratedFacade} and is defined alongside the interface in its own class loader.
+ * Each abstract method, plus {@code equals}, {@code hashCode} and {@code toString}, is
+ * implemented by passing its index to the base class. Methods without parameters call
+ * {@link GeneratedFacade#get(int)} and void methods with one parameter call
+ * {@link GeneratedFacade#set(int, Object)}, so the getters and setters that make up most
+ * facade traffic allocate no argument array; any other method passes its boxed arguments
+ * to {@link GeneratedFacade#invoke(int, Object[])}.
+ */
+final class FacadeClassGenerator {
+    private static final Logger logger = Logger.getLogger(FacadeClassGenerator.class.getName());
+
+    private static final String BASE_NAME = Type.getInternalName(GeneratedFacade.class);
+
+    private static final String INVOKE_DESCRIPTOR = "(I[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    private static final String GET_DESCRIPTOR = "(I)Ljava/lang/Object;";
+
+    private static final String SET_DESCRIPTOR = "(ILjava/lang/Object;)V";
+
+    private static final String OBJECT_NAME = Type.getInternalName(Object.class);
+
+    private static final ClassValue<FacadeClass> __classes = new ClassValue<>() {
+        @Override
+        protected FacadeClass computeValue(Class<?> facadeClass) {
+            try {
+                return generate(facadeClass);
+            } catch (Throwable th) {
+                logger.log(Level.WARNING, "Error generating facade class, falling back to a proxy: " + facadeClass.getName(), th);
+                return null;
+            }
+        }
+    };
+
+    private FacadeClassGenerator() {
+    }
+
+    /**
+     * Get the generated implementation of a facade interface.
+     *
+     * @param facadeClass the facade interface
+     * @return the generated class, or null if one could not be generated
+     */
+    static FacadeClass getFacadeClass(Class<?> facadeClass) {
+        return __classes.get(facadeClass);
+    }
+
+    private static FacadeClass generate(Class<?> facadeClass) throws Exception {
+        final Map<String, Method> methods = new LinkedHashMap<>();
+        for (Method method : facadeClass.getMethods()) {
+            if (!method.isDefault() && !Modifier.isStatic(method.getModifiers())) {
+                if (!isAccessible(method.getReturnType(), facadeClass)) {
+                    throw new IllegalStateException("Inaccessible return type: " + method);
+                }
+                methods.putIfAbsent(method.getName() + Type.getMethodDescriptor(method), method);
+            }
+        }
+        for (Method method : new Method[] {
+          Object.class.getMethod("equals", Object.class),
+          Object.class.getMethod("hashCode"),
+          Object.class.getMethod("toString")
+        }) {
+            methods.putIfAbsent(method.getName() + Type.getMethodDescriptor(method), method);
+        }
+        final Method[] implemented = methods.values().toArray(new Method[0]);
+
+        final String name = Type.getInternalName(facadeClass) + "$$Facade";
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC,
+          name, null, BASE_NAME, new String[] { Type.getInternalName(facadeClass) });
+
+        final MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, BASE_NAME, "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        for (int index = 0; index < implemented.length; ++index) {
+            generateMethod(cw, name, implemented[index], index);
+        }
+        cw.visitEnd();
+
+        final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(facadeClass, MethodHandles.lookup());
+        final Class<?> generated = lookup.defineClass(cw.toByteArray());
+        final MethodHandle constructor = lookup.findConstructor(generated, MethodType.methodType(void.class))
+          .asType(MethodType.methodType(GeneratedFacade.class));
+        return new FacadeClass(constructor, implemented);
+    }
+
+    /** Whether the generated class can cast to a type. */
+    private static boolean isAccessible(Class<?> type, Class<?> facadeClass) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers())
+          || ((type.getClassLoader() == facadeClass.getClassLoader()) && type.getPackageName().equals(facadeClass.getPackageName()));
+    }
+
+    private static void generateMethod(ClassWriter cw, String owner, Method method, int index) {
+        final Class<?>[] exceptionTypes = method.getExceptionTypes();
+        final String[] exceptions = new String[exceptionTypes.length];
+        for (int i = 0; i < exceptionTypes.length; ++i) {
+            exceptions[i] = Type.getInternalName(exceptionTypes[i]);
+        }
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, method.getName(),
+          Type.getMethodDescriptor(method), null, exceptions);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(index);
+        final Type[] argumentTypes = Type.getArgumentTypes(method);
+        final Type returnType = Type.getReturnType(method);
+        final boolean setter = (argumentTypes.length == 1) && (returnType.getSort() == Type.VOID);
+        if (argumentTypes.length == 0) {
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "get", GET_DESCRIPTOR, false);
+        } else if (setter) {
+            mv.visitVarInsn(argumentTypes[0].getOpcode(Opcodes.ILOAD), 1);
+            box(mv, argumentTypes[0]);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "set", SET_DESCRIPTOR, false);
+        } else {
+            mv.visitLdcInsn(argumentTypes.length);
+            mv.visitTypeInsn(Opcodes.ANEWARRAY, OBJECT_NAME);
+            int slot = 1;
+            for (int i = 0; i < argumentTypes.length; ++i) {
+                final Type argumentType = argumentTypes[i];
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitLdcInsn(i);
+                mv.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), slot);
+                box(mv, argumentType);
+                mv.visitInsn(Opcodes.AASTORE);
+                slot += argumentType.getSize();
+            }
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, owner, "invoke", INVOKE_DESCRIPTOR, false);
+        }
+        if (returnType.getSort() == Type.VOID) {
+            if (!setter) {
+                mv.visitInsn(Opcodes.POP);
+            }
+        } else {
+            unbox(mv, returnType);
+        }
+        mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void box(MethodVisitor mv, Type type) {
+        final String wrapper = wrapperName(type);
+        if (wrapper != null) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf",
+              "(" + type.getDescriptor() + ")L" + wrapper + ";", false);
+        }
+    }
+
+    private static void unbox(MethodVisitor mv, Type type) {
+        final String wrapper = wrapperName(type);
+        if (wrapper == null) {
+            if (!OBJECT_NAME.equals(type.getInternalName())) {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+            }
+        } else {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, type.getClassName() + "Value",
+              "()" + type.getDescriptor(), false);
+        }
+    }
+
+    private static String wrapperName(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "java/lang/Boolean";
+            case Type.CHAR:
+                return "java/lang/Character";
+            case Type.BYTE:
+                return "java/lang/Byte";
+            case Type.SHORT:
+                return "java/lang/Short";
+            case Type.INT:
+                return "java/lang/Integer";
+            case Type.FLOAT:
+                return "java/lang/Float";
+            case Type.LONG:
+                return "java/lang/Long";
+            case Type.DOUBLE:
+                return "java/lang/Double";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A generated facade class and the methods that it implements, in index order.
+     */
+    static final class FacadeClass {
+        private final MethodHandle _constructor;
+        private final Method[] _methods;
+
+        private FacadeClass(MethodHandle constructor, Method[] methods) {
+            _constructor = constructor;
+            _methods = methods;
+        }
+
+        Method[] getMethods() {
+            return _methods;
+        }
+
+        GeneratedFacade newInstance(FacadeInvocationHandler handler, FacadeMethodHandler[] methodHandlers) {
+            final GeneratedFacade facade;
+            try {
+                facade = (GeneratedFacade) _constructor.invokeExact();
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable th) {
+                throw new RuntimeException(th);
+            }
+            facade.bind(handler, methodHandlers, _methods);
+            return facade;
+        }
+    }
+}
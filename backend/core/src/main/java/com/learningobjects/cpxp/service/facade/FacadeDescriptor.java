@@ -44,6 +44,8 @@ class FacadeDescriptor {
 
     private final EntityDescriptor _descriptor;
 
+    private volatile FacadeMethodHandler[] _methodHandlerTable;
+
     FacadeDescriptor(EntityDescriptor descriptor) {
         _descriptor = descriptor;
     }
@@ -83,6 +85,21 @@ class FacadeDescriptor {
         return handler;
     }
 
+    /**
+     * Get the handlers for the methods of a generated facade class, in index order.
+     */
+    FacadeMethodHandler[] getMethodHandlers(Method[] methods) {
+        FacadeMethodHandler[] table = _methodHandlerTable;
+        if (table == null) {
+            table = new FacadeMethodHandler[methods.length];
+            for (int i = 0; i < methods.length; ++i) {
+                table[i] = getHandler(methods[i]);
+            }
+            _methodHandlerTable = table;
+        }
+        return table;
+    }
+
     public List<FacadeMethodHandler> getMethodHandlersByGroupName(String groupName) {
         List<FacadeMethodHandler> methodHandlers = new ArrayList<>();
 
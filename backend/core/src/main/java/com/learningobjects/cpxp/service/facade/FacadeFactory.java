@@ -41,10 +41,20 @@ public class FacadeFactory {
             ("*", facadeClass);
         FacadeInvocationHandler handler = new FacadeInvocationHandler
             (descriptor, null, context);
-        Facade facade = (Facade) Proxy.newProxyInstance
+        return facadeClass.cast(newFacade(facadeClass, descriptor, handler));
+    }
+
+    /**
+     * Instantiate a facade, using a generated class if possible or else a proxy.
+     */
+    private static Facade newFacade(Class<? extends Facade> facadeClass, FacadeDescriptor descriptor, FacadeInvocationHandler handler) {
+        FacadeClassGenerator.FacadeClass generated = FacadeClassGenerator.getFacadeClass(facadeClass);
+        if (generated != null) {
+            return (Facade) generated.newInstance(handler, descriptor.getMethodHandlers(generated.getMethods()));
+        }
+        return (Facade) Proxy.newProxyInstance
             (facadeClass.getClassLoader(), new Class<?>[]
                     { facadeClass }, handler);
-        return facadeClass.cast(facade);
     }
 
     public static <T extends Facade> T getFacade(Class<T> facadeClass, Item item, ServiceContext context) {
@@ -87,9 +97,7 @@ public class FacadeFactory {
                 (itemType, _facadeClass);
             FacadeInvocationHandler handler = new FacadeInvocationHandler
                 (descriptor, _item, _context);
-            Facade facade = (Facade) Proxy.newProxyInstance
-                (_facadeClass.getClassLoader(), new Class<?>[]
-                        { _facadeClass }, handler);
+            Facade facade = newFacade(_facadeClass, descriptor, handler);
 
             logger.fine(itemType + "/" + _facadeClass.getName() + ": " + facade.getClass().getName());
 
@@ -238,6 +238,13 @@ abstract class FacadeGetHandler implements FacadeMethodHandler {
         }
     }
 
+    /**
+     * Invoke a getter that takes no arguments, without an argument array.
+     */
+    Object get(FacadeInvocationHandler handler) throws Throwable {
+        return invoke(handler, null);
+    }
+
     private Object invokeImpl(FacadeInvocationHandler handler, Object[] args)
             throws Throwable {
         Object value;
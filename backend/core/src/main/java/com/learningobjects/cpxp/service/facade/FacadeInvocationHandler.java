@@ -17,6 +17,7 @@
 
 package com.learningobjects.cpxp.service.facade;
 
+import com.google.common.collect.MapMaker;
 import com.learningobjects.cpxp.dto.EntityDescriptor;
 import com.learningobjects.cpxp.service.ServiceContext;
 import com.learningobjects.cpxp.service.finder.Finder;
@@ -25,6 +26,7 @@ import com.learningobjects.cpxp.util.EntityContext;
 import com.learningobjects.cpxp.util.ManagedUtils;
 import com.learningobjects.cpxp.util.ThreadTerminator;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
@@ -32,11 +34,15 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Invocation handler for a facade proxy.
  */
 class FacadeInvocationHandler implements InvocationHandler {
+    /** Unbound handles for the default methods of proxied facades. */
+    private static final ConcurrentMap<Method, MethodHandle> __defaultMethods = new MapMaker().weakKeys().makeMap();
+
     private final FacadeDescriptor _descriptor;
     private final ServiceContext _context;
     private Item _item;
@@ -160,6 +166,15 @@ class FacadeInvocationHandler implements InvocationHandler {
     }
 
     private Object invokeDefaultMethod(Object proxy, Method method, Object[] args) throws Throwable {
+        MethodHandle handle = __defaultMethods.get(method);
+        if (handle == null) {
+            handle = findDefaultMethod(method);
+            __defaultMethods.put(method, handle);
+        }
+        return handle.bindTo(proxy).invokeWithArguments(args);
+    }
+
+    private static MethodHandle findDefaultMethod(Method method) throws Throwable {
         // Attempt private access to proxy's implemented interface (JDK9+)
         try {
             return MethodHandles.lookup()
@@ -167,9 +182,7 @@ class FacadeInvocationHandler implements InvocationHandler {
                              method.getName(),
                              MethodType.methodType(method.getReturnType(),
                                                    method.getParameterTypes()),
-                             method.getDeclaringClass())
-                .bindTo(proxy)
-                .invokeWithArguments(args);
+                             method.getDeclaringClass());
           // Fallback on JDK8 private access hack
         } catch (IllegalAccessException e) {
               final Class<?> declaringClass = method.getDeclaringClass();
@@ -177,9 +190,7 @@ class FacadeInvocationHandler implements InvocationHandler {
               constructor.setAccessible(true); //Fairly bad, we have to first hack the constructor to allow us to call it despite it being private
               return
                   constructor.newInstance(declaringClass, MethodHandles.Lookup.PRIVATE) //once we have come this far abusing the constructor is easy
-                  .unreflectSpecial(method, declaringClass)
-                  .bindTo(proxy)
-                  .invokeWithArguments(args);
+                  .unreflectSpecial(method, declaringClass);
         }
     }
 }
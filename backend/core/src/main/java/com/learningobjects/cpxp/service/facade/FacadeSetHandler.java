@@ -37,14 +37,24 @@ abstract class FacadeSetHandler extends FacadeValueHandler {
     @Override
     public Object invoke(FacadeInvocationHandler handler, Object[] args)
             throws Throwable {
-        Object v0 = args[0];
+        set(handler, args[0], args);
+        return null;
+    }
+
+    /**
+     * Invoke a setter that takes a single argument, without an argument array.
+     */
+    void set(FacadeInvocationHandler handler, Object v0) throws Throwable {
+        set(handler, v0, null);
+    }
+
+    private void set(FacadeInvocationHandler handler, Object v0, Object[] args) throws Throwable {
         Object value = transformValue(v0, handler, args);
         if (handler.isDummy()) {
             handler.setValue("g" + getMethodName().substring(1), v0); // hack
         } else {
             setValue(value, handler);
         }
-        return null;
     }
 
     protected abstract boolean setValue(Object value, FacadeInvocationHandler handler)
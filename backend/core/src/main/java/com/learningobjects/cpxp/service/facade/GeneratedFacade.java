@@ -0,0 +1,130 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.service.facade;
+
+import com.learningobjects.cpxp.util.ThreadTerminator;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Base class of the facade implementations generated by {@link FacadeClassGenerator}.
+ * Getters and single-argument setters of a generated class call {@link #get(int)} and
+ * {@link #set(int, Object)}, which go straight to the bound get or set handler without
+ * an argument array. Every other facade method passes its index and arguments to
+ * {@link #invoke(int, Object[])}, which dispatches to the bound method handler.
+ * Default methods are not overridden so they are invoked directly.
+ *
+ * This must be public so that it can be extended by classes generated in the class loader
+ * of the facade interface; it is not otherwise for public use.
+ */
+public abstract class GeneratedFacade {
+    private FacadeInvocationHandler _handler;
+    private FacadeMethodHandler[] _methodHandlers;
+    private Method[] _methods;
+
+    protected GeneratedFacade() {
+    }
+
+    void bind(FacadeInvocationHandler handler, FacadeMethodHandler[] methodHandlers, Method[] methods) {
+        _handler = handler;
+        _methodHandlers = methodHandlers;
+        _methods = methods;
+    }
+
+    /**
+     * Invoke a facade getter.
+     *
+     * @param index the index of the method in the generated class
+     * @return the method result
+     */
+    protected final Object get(int index) {
+        final FacadeMethodHandler methodHandler = getMethodHandler(index);
+        try {
+            if (methodHandler instanceof FacadeGetHandler) {
+                return ((FacadeGetHandler) methodHandler).get(_handler);
+            }
+            return methodHandler.invoke(_handler, null);
+        } catch (Throwable th) {
+            throw propagate(index, th);
+        }
+    }
+
+    /**
+     * Invoke a facade setter that takes a single argument.
+     *
+     * @param index the index of the method in the generated class
+     * @param value the method argument
+     */
+    protected final void set(int index, Object value) {
+        final FacadeMethodHandler methodHandler = getMethodHandler(index);
+        try {
+            if (methodHandler instanceof FacadeSetHandler) {
+                ((FacadeSetHandler) methodHandler).set(_handler, value);
+            } else {
+                methodHandler.invoke(_handler, new Object[] { value });
+            }
+        } catch (Throwable th) {
+            throw propagate(index, th);
+        }
+    }
+
+    /**
+     * Invoke a facade method.
+     *
+     * @param index the index of the method in the generated class
+     * @param args the method arguments, or null if the method takes none
+     * @return the method result
+     */
+    protected final Object invoke(int index, Object[] args) {
+        final FacadeMethodHandler methodHandler = getMethodHandler(index);
+        try {
+            return methodHandler.invoke(_handler, args);
+        } catch (Throwable th) {
+            throw propagate(index, th);
+        }
+    }
+
+    private FacadeMethodHandler getMethodHandler(int index) {
+        _handler.attach();
+        ThreadTerminator.check();
+        final FacadeMethodHandler methodHandler = _methodHandlers[index];
+        if (methodHandler == null) {
+            throw new RuntimeException("Unsupported facade method: " + _methods[index].getName());
+        }
+        return methodHandler;
+    }
+
+    /** As a proxy would, pass through unchecked and declared exceptions and wrap any others. */
+    private RuntimeException propagate(int index, Throwable th) {
+        if ((th instanceof RuntimeException) || (th instanceof Error)) {
+            throw GeneratedFacade.<RuntimeException>rethrow(th);
+        }
+        for (Class<?> exceptionType : _methods[index].getExceptionTypes()) {
+            if (exceptionType.isInstance(th)) {
+                throw GeneratedFacade.<RuntimeException>rethrow(th);
+            }
+        }
+        throw new UndeclaredThrowableException(th);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T rethrow(Throwable th) throws T {
+        throw (T) th;
+    }
+}
@@ -1142,6 +1142,27 @@ abstract class AbstractQueryBuilder implements QueryBuilder, QueryDescription.Su
         Current.put(queryCacheKey.getKey(), cacheableResults); //TODO TECH-70 encapsulate usage of Current in QueryCurrentCache
     }
 
+    /**
+     * Get the projection for the top-level select. An ordered distinct query
+     * must also select its order columns.
+     */
+    private String getSelectProjection(boolean isOrderedDistinct) {
+        String projection = _description.getProjection(false);
+        if (isOrderedDistinct) {
+            for (Order order : _description._orders) {
+                String entityField = _description.getEntityField(order
+                        .getType(), false);
+                if (order.getFunction() == null) {
+                    projection = projection + ", " + entityField;
+                } else {
+                    projection = projection + ", " + order.getFunction() + '('
+                            + entityField + ")";
+                }
+            }
+        }
+        return projection;
+    }
+
     @SuppressWarnings("unchecked")
     private List executeQuery() {
         if (_description._deny) {
@@ -1161,26 +1182,13 @@ abstract class AbstractQueryBuilder implements QueryBuilder, QueryDescription.Su
         }
         _description.setSubqueryIndex(0);
 
-        String projection = _description.getProjection(false);
         boolean isOrderedDistinct = _description._distinct
                 && !_description._orders.isEmpty();
 
-        if (isOrderedDistinct) {
-            if ((_description._projection != Projection.ID)
-                    && (_description._projection != Projection.ITEM)) {
-                throw new IllegalStateException(
-                        "Invalid ordered distinct query");
-            }
-            for (Order order : _description._orders) {
-                String entityField = _description.getEntityField(order
-                        .getType(), false);
-                if (order.getFunction() == null) {
-                    projection = projection + ", " + entityField;
-                } else {
-                    projection = projection + ", " + order.getFunction() + '('
-                            + entityField + ")";
-                }
-            }
+        if (isOrderedDistinct && (_description._projection != Projection.ID)
+                && (_description._projection != Projection.ITEM)) {
+            throw new IllegalStateException(
+                    "Invalid ordered distinct query");
         }
 
         // If this query has been polluted by this transaction then I can't rely on
@@ -1189,7 +1197,7 @@ abstract class AbstractQueryBuilder implements QueryBuilder, QueryDescription.Su
         boolean polluted = Current.isPolluted(_description._root, _description._parent, _description._itemType); //TODO TECH-70 encapsulate usage of Current in QueryCurrentCache
         // TODO: if flush mode is commit then i ought to flush on polluted, which == flush auto so..
 
-        String sql = buildQuery(projection, false);
+        // The SQL is only rendered once both caches have missed
         String key = getCacheKey();
 
         List preloaded = polluted ? null : (List) Current.get(key); //TODO TECH-70 encapsulate usage of Current in QueryCurrentCache
@@ -1213,6 +1221,10 @@ abstract class AbstractQueryBuilder implements QueryBuilder, QueryDescription.Su
             return results.getResultList(_serviceContext.getEntityManager());
         }
 
+        // A query of the same shape renders the same statement, so reuse it
+        String sql = QueryStatementCache.getStatement(QueryShape.of(this, isOrderedDistinct),
+          () -> buildQuery(getSelectProjection(isOrderedDistinct), false));
+
         Level level2 = _logQuery ? Level.WARNING : Level.FINE;
         logger.log(level2, "SQL, {0}", new Object[]{sql});
 
@@ -20,8 +20,6 @@ package com.learningobjects.cpxp.service.query;
 import com.learningobjects.cpxp.Id;
 import com.learningobjects.cpxp.service.data.DataTypes;
 
-import java.util.Optional;
-
 /**
  * A special cache key strategy used to partition mutliple-parent queries for precaching
  * the subsequent individual parent detail queries, by calculating the equivalent single parent keys.
@@ -41,8 +39,8 @@ class PartitionedByParentQueryCacheKey extends QueryCacheKey {
     }
 
     @Override
-    protected Optional<String> conditionTest(Condition condition) {
+    protected String conditionTest(Condition condition) {
         final boolean isMultiParentCondition = isInConditionOn(condition, DataTypes.META_DATA_TYPE_PARENT_ID);
-        return isMultiParentCondition ? Optional.empty() : super.conditionTest(condition);
+        return isMultiParentCondition ? null : super.conditionTest(condition);
     }
 }
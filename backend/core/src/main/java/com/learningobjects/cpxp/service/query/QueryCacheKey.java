@@ -18,22 +18,26 @@
 package com.learningobjects.cpxp.service.query;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Joiner;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Ordering;
 import com.learningobjects.cpxp.Id;
 import com.learningobjects.cpxp.dto.BaseOntology;
 import com.learningobjects.cpxp.service.data.DataSupport;
 import com.learningobjects.cpxp.util.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
+/**
+ * Renders the cache key of a query description. The key is a canonical string
+ * form of the description: conditions, disjunctions, subqueries and joins are
+ * sorted so that equivalent descriptions produce the same key regardless of
+ * the order in which they were built. Other code relies on the format of
+ * simple child keys (see ItemServiceBean preloading) so it must be preserved.
+ *
+ * Keys are rendered into a single buffer; the individual parts that must be
+ * sorted are collected into small lists first.
+ */
 class QueryCacheKey {
 
     private final QueryDescription _description;
@@ -50,24 +54,35 @@ class QueryCacheKey {
         }
         // this key is imperfect. for example, it doesn't obey the sequence of orders in a join
         // query. but it is likely suffficient for now.
-        List<Order> orders = _description._orderSequence.stream()
-                                                        .map(Pair::getRight)
-                                                        .collect(Collectors.toList());
-
-
-        StringBuilder kb = new StringBuilder();
-        kb.append(
-                exclusivityPrefix(_description._inclusive)
-                + subQueries(_description._initialQueries)
-                + subQueries(_description._existsQueries)
-                + id(getParent(), "/").orElse(id(getRoot(), "//").orElse("//"))
-                + Optional.ofNullable(_description._itemType).orElse("*")
-                + BRACKETS.prefixed(_description._excludePath ? "!" : "").around(_description._path).orElse("")
-                + joinOptionals(_description._disjunctions, disjunction -> PARENS.around(join(" OR ", disjunction, this::conjunctionClause, "")))
-                + conjunctionClause(_description._conditions)
-                + BRACKETS.prefixed("/").around("/", _description._groupType).orElse("")
-                + joinOrderedItems("", orders, this::order, "")
-                + join(_description._joinQueries, this::writeQueryEntry));
+        StringBuilder kb = new StringBuilder(128);
+        if (!_description._inclusive) {
+            kb.append('!');
+        }
+        appendSubQueries(kb, _description._initialQueries);
+        appendSubQueries(kb, _description._existsQueries);
+        Id parent = getParent(), root = getRoot();
+        if (parent != null) {
+            kb.append(parent.getId()).append('/');
+        } else if (root != null) {
+            kb.append(root.getId()).append("//");
+        } else {
+            kb.append("//");
+        }
+        kb.append(_description._itemType == null ? "*" : _description._itemType);
+        if (!StringUtils.isEmpty(_description._path)) {
+            kb.append('[').append(_description._excludePath ? "!" : "").append(_description._path).append(']');
+        }
+        appendDisjunctions(kb);
+        appendSorted(kb, conjunctionClauses(_description._conditions), "");
+        appendGroup(kb);
+        for (Pair<QueryDescription, Order> order : _description._orderSequence) {
+            appendOrder(kb, order.getRight());
+        }
+        List<String> joins = new ArrayList<>(_description._joinQueries.size());
+        for (Join join : _description._joinQueries) {
+            joins.add(writeQueryEntry(join));
+        }
+        appendSorted(kb, joins, "");
         appendExtra(kb);
         _cacheKey = kb.toString();
         return _cacheKey;
@@ -82,49 +97,126 @@ class QueryCacheKey {
     }
 
     //overriden in partitioning subclasses to ignore tests only valid for the aggregate superquery
-    protected Optional<String> conditionTest(Condition condition) {
-        String result;
+    //returns null if the condition should not contribute to the key
+    protected String conditionTest(Condition condition) {
+        StringBuilder sb = new StringBuilder("/");
         if (condition.getDataType() == null) {
-            QueryBuilder query = condition.getQuery();
-            result = condition.getComparison() + BRACKETS.around(query.getCacheKey()).orElse("");
+            sb.append(condition.getComparison());
+            String key = condition.getQuery().getCacheKey();
+            if (!StringUtils.isEmpty(key)) {
+                sb.append('[').append(key).append(']');
+            }
         } else {
-            final String property = Joiner.on(":").skipNulls().join(condition.getFunction(), condition.getDataType());
-            final String field =
-              condition.getField() == null || condition.getField().isEmpty()
-                ? ""
-                : "->" + StringUtils.join(condition.getField(), "->");
-            result = Joiner.on(" ").skipNulls().join(property + field, condition.getComparison(), getValue(condition));
+            if (condition.getFunction() != null) {
+                sb.append(condition.getFunction()).append(':');
+            }
+            sb.append(condition.getDataType());
+            if (condition.getField() != null && !condition.getField().isEmpty()) {
+                sb.append("->").append(StringUtils.join(condition.getField(), "->"));
+            }
+            if (condition.getComparison() != null) {
+                sb.append(' ').append(condition.getComparison());
+            }
+            Object value = getValue(condition);
+            if (value != null) {
+                sb.append(' ').append(value);
+            }
         }
-        return Optional.of("/" + result);
+        return sb.toString();
     }
 
-    private String subQueries(List<QueryDescription.SubQuery> queries) {
-        return joinOptionals("", queries, qb -> BRACKETS.around(qb.getCacheKey()), "/");
+    private void appendSubQueries(StringBuilder kb, List<QueryDescription.SubQuery> queries) {
+        if (queries.isEmpty()) {
+            return;
+        }
+        List<String> parts = new ArrayList<>(queries.size());
+        for (QueryDescription.SubQuery qb : queries) {
+            String key = qb.getCacheKey();
+            if (!StringUtils.isEmpty(key)) {
+                parts.add('[' + key + ']');
+            }
+        }
+        appendSorted(kb, parts, "/");
+    }
+
+    private void appendDisjunctions(StringBuilder kb) {
+        List<String> parts = new ArrayList<>();
+        for (List<Conjunction> disjunction : _description._disjunctions) {
+            List<String> clauses = new ArrayList<>(disjunction.size());
+            for (Conjunction conjunction : disjunction) {
+                StringBuilder cb = new StringBuilder();
+                appendSorted(cb, conjunctionClauses(conjunction), "");
+                clauses.add(cb.toString());
+            }
+            Collections.sort(clauses);
+            String joined = String.join(" OR ", clauses);
+            if (!joined.isEmpty()) {
+                parts.add('(' + joined + ')');
+            }
+        }
+        appendSorted(kb, parts, "");
     }
 
-    private String conjunctionClause(Conjunction conjunction) {
-        return joinOptionals(conjunction.conjoinedConditions(), this::conditionTest);
+    private List<String> conjunctionClauses(Iterable<Condition> conditions) {
+        List<String> parts = new ArrayList<>();
+        for (Condition condition : conditions) {
+            String test = conditionTest(condition);
+            if (test != null) {
+                parts.add(test);
+            }
+        }
+        return parts;
     }
 
-    private String exclusivityPrefix(boolean inclusive) {
-        return inclusive ? "" : "!";
+    private void appendGroup(StringBuilder kb) {
+        List<String> groupType = _description._groupType;
+        if (groupType == null || groupType.isEmpty()) {
+            return;
+        }
+        int mark = kb.length();
+        kb.append("[/");
+        int contents = kb.length();
+        boolean first = true;
+        for (String type : groupType) {
+            if (type != null) {
+                if (!first) {
+                    kb.append('/');
+                }
+                kb.append(type);
+                first = false;
+            }
+        }
+        if (kb.length() == contents) {
+            kb.setLength(mark);
+        } else {
+            kb.append(']');
+        }
     }
 
-    private String order(Order order) {
+    private void appendOrder(StringBuilder kb, Order order) {
         final QueryBuilder query = order.getQuery();
         final String type = order.getType();
         final com.learningobjects.cpxp.service.query.Function function = order.getFunction();
 
-        String result;
+        kb.append('/');
         if (query != null) {
-            result = Joiner.on("/").skipNulls().join(PARENS.around(query.getCacheKey()).orElse(null), type);
+            String key = query.getCacheKey();
+            boolean hasKey = !StringUtils.isEmpty(key);
+            if (hasKey) {
+                kb.append('(').append(key).append(')');
+            }
+            if (type != null) {
+                if (hasKey) {
+                    kb.append('/');
+                }
+                kb.append(type);
+            }
         } else if (function == null) {
-            result = type;
+            kb.append(type);
         } else {
-            final String typeIndicator = Optional.ofNullable(type).orElse("i");
-            result = function + PARENS.around(typeIndicator).orElse("");
+            kb.append(function).append('(').append(type == null ? "i" : type).append(')');
         }
-        return "/" + result + " " + order.getDirection().sql();
+        kb.append(' ').append(order.getDirection().sql());
     }
 
     private String writeQueryEntry(Join entry) {
@@ -135,11 +227,14 @@ class QueryCacheKey {
           .append(entry.rightDataType());
         if (entry.conditions().value().nonEmpty()) {
             builder.append('{');
-            List<String> conjunctions =
-              entry.conditions().asJava().stream()
-                .map(conj -> joinOptionals(conj, this::conditionTest))
-                .collect(Collectors.toList());
-            builder.append(String.join("+", conjunctions));
+            boolean first = true;
+            for (List<Condition> conj : entry.conditions().asJava()) {
+                if (!first) {
+                    builder.append('+');
+                }
+                appendSorted(builder, conjunctionClauses(conj), "");
+                first = false;
+            }
             builder.append('}');
         }
         return builder
@@ -149,65 +244,18 @@ class QueryCacheKey {
           .toString();
     }
 
-    private Optional<String> id(Id id, String suffix) {
-        if (id != null) {
-            return Optional.of(id.getId() + suffix);
-        }
-        return Optional.empty();
-    }
-
-    Enclosing PARENS = new Enclosing("(", ")");
-    Enclosing BRACKETS = new Enclosing("[", "]");
-
-    private <T> String joinOptionals(Iterable<T> items, com.google.common.base.Function<T, Optional<String>> transformer) {
-        return joinOptionals("", items, transformer, "");
-    }
-
-    private <T> String joinOptionals(String delimiter, Iterable<T> items, com.google.common.base.Function<T, Optional<String>> transformer, String withSuffix) {
-        return joinParts(delimiter, StreamSupport.stream(items.spliterator(), false).map(transformer::apply).flatMap(o -> o.map(Stream::of).orElseGet(Stream::empty)).collect(Collectors.toList()), withSuffix);
-    }
-
-    private <T> String join(String delimeter, Iterable<T> items, com.google.common.base.Function<T, String> transformer, String withSuffix) {
-        return joinParts(delimeter, StreamSupport.stream(items.spliterator(), false).map(transformer::apply).collect(Collectors.toList()), withSuffix);
-    }
-
-    private <T> String joinParts(String delimeter, Iterable<String> parts, String withSuffix) {
-        return Joiner.on(delimeter).skipNulls().join(Ordering.natural().sortedCopy(parts)) + (Iterables.isEmpty(parts) ? "" : withSuffix);
-    }
-
-    private <T> String join(Iterable<T> items, com.google.common.base.Function<T, String> transformer) {
-        return join("", items, transformer, "");
-    }
-
-    private <T> String joinOrderedItems(String delimiter, Collection<T> items, com.google.common.base.Function<T, String> transformer, String withSuffix) {
-        List<String> parts = items.stream()
-                                  .map(transformer::apply)
-                                  .collect(Collectors.toList());
-
-        return Joiner.on(delimiter).skipNulls().join(parts) + (Iterables.isEmpty(parts) ? "" : withSuffix);
-    }
-
-    private class Enclosing {
-        private String _start, _end, _prefix = "";
-        public Enclosing(String start, String end) {
-            _start = start;
-            _end = end;
-        }
-        Enclosing prefixed(String prefix) {
-            Enclosing e = new Enclosing(_start, _end);
-            e._prefix = prefix;
-            return e;
+    /** Append the parts in natural order, followed by a suffix if there were any parts. */
+    private static void appendSorted(StringBuilder kb, List<String> parts, String withSuffix) {
+        if (parts.isEmpty()) {
+            return;
         }
-        Optional<String> around(String contents) {
-            if (StringUtils.isEmpty(contents)) {
-                return Optional.empty();
-            }
-            return Optional.of(_start + _prefix + contents +  _end);
+        if (parts.size() > 1) {
+            Collections.sort(parts);
         }
-        Optional<String> around(String delimeter, List<?> parts) {
-            if (parts == null || parts.isEmpty()) return Optional.empty();
-            return around(Joiner.on(delimeter).skipNulls().join(parts));
+        for (String part : parts) {
+            kb.append(part);
         }
+        kb.append(withSuffix);
     }
 
     @VisibleForTesting
@@ -690,6 +690,10 @@ class QueryDescription {
         _subqueries.forEach(sq -> sq.getDescription().forceNative());
     }
 
+    boolean isForceNative() {
+        return _forceNative;
+    }
+
     String itemFieldIdentity(String field) {
         return _itemLabel.concat(".").concat(field).concat(nativeQuery() ? "_id" : ".id");
     }
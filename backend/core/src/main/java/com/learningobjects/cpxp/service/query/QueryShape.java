@@ -0,0 +1,196 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.learningobjects.cpxp.service.query;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.List;
+
+/**
+ * Renders the shape of a query: everything about a query description that
+ * contributes to its rendered JPQL or SQL, but none of the values that are
+ * bound as parameters. Queries with the same shape render the same statement
+ * with the same parameter names, so a statement rendered for one can be
+ * reused for the other by just binding its parameters.
+ *
+ * Unlike the cache key, the shape preserves the order of conditions because
+ * that determines the parameter names. The shape includes whether each value
+ * is null and the size of each list, because those are rendered into the
+ * statement as IS NULL tests and list placeholders.
+ */
+class QueryShape {
+
+    private final StringBuilder _sb = new StringBuilder(256);
+
+    private boolean _opaque;
+
+    private QueryShape() {
+    }
+
+    /**
+     * Get the shape of a top-level query, or null if the query contains a
+     * component whose shape is unknown.
+     */
+    static String of(AbstractQueryBuilder qb, boolean isOrderedDistinct) {
+        QueryShape shape = new QueryShape();
+        shape.flag(qb._joinFetch).flag(isOrderedDistinct);
+        shape.appendQuery(qb);
+        return shape._opaque ? null : shape._sb.toString();
+    }
+
+    private void appendQuery(Object query) {
+        if (query == null) {
+            _sb.append('-');
+        } else if (query instanceof AbstractQueryBuilder) {
+            appendDescription((AbstractQueryBuilder) query);
+        } else {
+            _opaque = true;
+        }
+    }
+
+    private void appendDescription(AbstractQueryBuilder qb) {
+        QueryDescription description = qb._description;
+        _sb.append('{')
+          .append(description._itemLabel).append(',')
+          .append(description._parentLabel).append(',')
+          .append(description._degenerateItemLabel).append(',')
+          .append(description._pathLabel).append(',')
+          .append(description._typeLabel).append(',')
+          .append(description._dataLabel).append(',')
+          .append(description._valueLabel).append(' ');
+        flag(description.nativeQuery())
+          .flag(description.isForceNative())
+          .flag(description._inclusive)
+          .flag(description._root != null)
+          .flag(description._rootImplicit)
+          .flag(description._joinRoot)
+          .flag(description._parent != null)
+          .flag(description._parentImplicit)
+          .flag(description._item != null)
+          .flag(description._includeDeleted)
+          .flag(description._joinDeleted)
+          .flag(description._itemTypeImplicit)
+          .flag(description._entityDescription != null)
+          .flag(description._path != null)
+          .flag(description._excludePath)
+          .flag(description._distinct);
+        _sb.append(' ').append(description._itemType);
+
+        _sb.append(" D");
+        for (String dataType : description.getDataTypes()) {
+            _sb.append(dataType).append('=').append(description.getAlias(dataType)).append(';');
+        }
+
+        _sb.append(" I");
+        for (QueryDescription.SubQuery sq : description._initialQueries) {
+            appendQuery(sq);
+        }
+        _sb.append(" E");
+        for (QueryDescription.SubQuery sq : description._existsQueries) {
+            appendQuery(sq);
+        }
+
+        _sb.append(" W");
+        appendConditions(qb, description._conditions);
+        for (List<Conjunction> disjunction : description._disjunctions) {
+            _sb.append('(');
+            for (Conjunction conjunction : disjunction) {
+                _sb.append('|');
+                appendConditions(qb, conjunction);
+            }
+            _sb.append(')');
+        }
+
+        _sb.append(" G").append(description._groupType);
+
+        _sb.append(" O");
+        for (Order order : description._orders) {
+            appendOrder(order);
+        }
+        for (Pair<QueryDescription, Order> order : description._orderSequence) {
+            _sb.append(order.getLeft()._itemLabel);
+            appendOrder(order.getRight());
+        }
+
+        _sb.append(" P").append(description._projection);
+        if (description._dataProjection != null) {
+            for (DataProjection dp : description._dataProjection) {
+                _sb.append('[').append(dp.getType())
+                  .append(' ').append(dp.getJsonField())
+                  .append(' ').append(dp.getFunction()).append(']');
+            }
+        }
+        appendQuery(description._aggregateQuery);
+        _sb.append(' ').append(description._function);
+
+        if (description._having != null) {
+            _sb.append(" H").append(description._havingCmp);
+            appendQuery(description._having);
+        }
+
+        _sb.append(" J");
+        for (Join join : description._joinQueries) {
+            _sb.append('[').append(join.joinWord())
+              .append(join.leftDataType()).append('=').append(join.rightDataType());
+            for (List<Condition> conjunction : join.conditions().asJava()) {
+                _sb.append('|');
+                appendConditions(qb, conjunction);
+            }
+            appendQuery(join.query());
+            _sb.append(']');
+        }
+        _sb.append('}');
+    }
+
+    private void appendConditions(AbstractQueryBuilder qb, Iterable<Condition> conditions) {
+        for (Condition condition : conditions) {
+            _sb.append('[').append(condition.getDataType())
+              .append(' ').append(condition.getComparison())
+              .append(' ').append(condition.getFunction())
+              .append(' ').append(condition.getLanguage())
+              .append(' ').append(condition.getField());
+            // only the presence of a value matters, or the size of a list
+            Object value = qb._handler.getValue(condition);
+            if (value instanceof List) {
+                _sb.append(" #").append(((List<?>) value).size());
+            } else {
+                _sb.append(value == null ? " null" : " ?");
+            }
+            appendQuery(condition.getQuery());
+            _sb.append(']');
+        }
+    }
+
+    private void appendOrder(Order order) {
+        _sb.append('<').append(order.getType())
+          .append(' ').append(order.getJsonField())
+          .append(' ').append(order.getFunction())
+          .append(' ').append(order.getDirection());
+        appendQuery(order.getQuery());
+        Order coalesce = order.getCoalesce();
+        if (coalesce != null) {
+            _sb.append(' ').append(coalesce.getType());
+            appendQuery(coalesce.getQuery());
+        }
+        _sb.append('>');
+    }
+
+    private QueryShape flag(boolean value) {
+        _sb.append(value ? '1' : '0');
+        return this;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.learningobjects.cpxp.service.query;
+
+import com.learningobjects.cpxp.util.LogUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * A bounded cache of rendered query statements keyed by {@link QueryShape}.
+ * When the results of a query are not cached, the statement still need not be
+ * rendered again if a query of the same shape was rendered recently; only the
+ * parameters of the new query are bound.
+ *
+ * The least recently used shapes are discarded when the cache is full.
+ */
+public final class QueryStatementCache {
+    private static final Logger logger = Logger
+            .getLogger(QueryStatementCache.class.getName());
+
+    /** The maximum number of shapes to retain. */
+    static final int MAX_SHAPES = 4096;
+
+    /** Guarded by itself. Access ordered. */
+    private static final Map<String, Statement> _statements =
+      new LinkedHashMap<String, Statement>(256, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Statement> eldest) {
+              return size() > MAX_SHAPES;
+          }
+      };
+
+    private static final LongAdder _hits = new LongAdder();
+
+    private static final LongAdder _misses = new LongAdder();
+
+    private static final LongAdder _savedNanos = new LongAdder();
+
+    private QueryStatementCache() {
+    }
+
+    /**
+     * Get the statement for a query shape, rendering it if it is not cached.
+     * Queries with no shape are always rendered.
+     */
+    static String getStatement(String shape, Supplier<String> render) {
+        if (shape == null) {
+            return render.get();
+        }
+        Statement statement;
+        synchronized (_statements) {
+            statement = _statements.get(shape);
+        }
+        if (statement != null) {
+            _hits.increment();
+            _savedNanos.add(statement.renderNanos);
+            return statement.sql;
+        }
+        _misses.increment();
+        long start = System.nanoTime();
+        String sql = render.get();
+        Statement rendered = new Statement(sql, System.nanoTime() - start);
+        synchronized (_statements) {
+            _statements.put(shape, rendered);
+        }
+        return sql;
+    }
+
+    /** The number of shapes in the cache. */
+    public static int getShapeCount() {
+        synchronized (_statements) {
+            return _statements.size();
+        }
+    }
+
+    public static long getHitCount() {
+        return _hits.sum();
+    }
+
+    public static long getMissCount() {
+        return _misses.sum();
+    }
+
+    /** The average time not spent rendering statements, per hit, in nanoseconds. */
+    public static long getAverageSavedNanos() {
+        long hits = _hits.sum();
+        return (hits == 0) ? 0 : _savedNanos.sum() / hits;
+    }
+
+    public static void clear() {
+        synchronized (_statements) {
+            _statements.clear();
+        }
+    }
+
+    public static void resetStatistics() {
+        _hits.reset();
+        _misses.reset();
+        _savedNanos.reset();
+    }
+
+    public static void logStuff() {
+        long hits = _hits.sum(), misses = _misses.sum();
+        LogUtils.prod(logger, "Query statement cache: " + getShapeCount() + " shapes, "
+          + hits + " hits, " + misses + " misses, "
+          + (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "% hit rate, "
+          + getAverageSavedNanos() / 1000 + "us average render time saved");
+        resetStatistics();
+    }
+
+    private static final class Statement {
+        final String sql;
+
+        final long renderNanos;
+
+        Statement(String sql, long renderNanos) {
+            this.sql = sql;
+            this.renderNanos = renderNanos;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.learningobjects.cpxp.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compressed variants of cached files, stored in the file cache alongside
+ * the files themselves. Variants are compressed on a small background pool,
+ * once: anyone who wants a variant that is being compressed waits for the
+ * same compression rather than starting another or falling back to the
+ * uncompressed file.
+ *
+ * Only gzip variants are produced; there is no brotli encoder available.
+ */
+public final class CompressedVariants {
+    private static final Logger logger = Logger.getLogger(CompressedVariants.class.getName());
+
+    private static final CompressedVariants __instance = new CompressedVariants();
+
+    public static CompressedVariants getInstance() {
+        return __instance;
+    }
+
+    /** The suffix of the cache path of a gzip variant. */
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /** How long a request waits for a variant before sending the uncompressed file. */
+    private static final long WAIT_SECONDS = 30L;
+
+    /** Compressions in progress, by variant cache path. */
+    private final Map<String, CompletableFuture<Void>> _inflight = new ConcurrentHashMap<>();
+
+    private final ExecutorService _executor = Executors.newFixedThreadPool(
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new DaemonThreadFactory());
+
+    private volatile boolean _precompress = true;
+
+    private CompressedVariants() {
+    }
+
+    /** Configure whether variants are compressed in advance of being requested. */
+    public void configure(boolean precompress) {
+        _precompress = precompress;
+    }
+
+    /**
+     * Get the gzip variant of a cached file, compressing it if necessary.
+     * Returns a referenced file info that the caller must release, or null
+     * if no variant is available.
+     */
+    public FileInfo getGzipped(FileInfo fileInfo) {
+        String path = fileInfo.getCachePath() + GZIP_SUFFIX;
+        long lastModified = getLastModified(fileInfo);
+        FileInfo variant = acquire(path, lastModified);
+        if (variant != null) {
+            return variant;
+        }
+        try {
+            compress(fileInfo, path, lastModified).get(WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            logger.log(Level.WARNING, "Timed out compressing file, {0}", path);
+            return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Gzip error", ex.getCause());
+        }
+        return acquire(path, lastModified);
+    }
+
+    /**
+     * Start compressing the gzip variant of a cached file in the background,
+     * if it is not already fresh. The file info is referenced until the
+     * compression is done.
+     */
+    public void precompress(FileInfo fileInfo) {
+        if (!_precompress) {
+            return;
+        }
+        String path = fileInfo.getCachePath() + GZIP_SUFFIX;
+        long lastModified = getLastModified(fileInfo);
+        if (isFresh(new File(FileCache.getInstance().getCacheDir(), path), lastModified)) {
+            return;
+        }
+        compress(fileInfo, path, lastModified);
+    }
+
+    /** Get a fresh variant without creating one, or null. */
+    private FileInfo acquire(String path, long lastModified) {
+        FileCache fileCache = FileCache.getInstance();
+        if (!isFresh(new File(fileCache.getCacheDir(), path), lastModified)) {
+            return null;
+        }
+        FileHandle handle = fileCache.getFile(path);
+        try {
+            if (handle.isTemporary() || !handle.exists() || (lastModified > handle.getFile().lastModified())) {
+                return null; // evicted or replaced meanwhile
+            }
+            handle.ref();
+            return new LocalFileInfo(handle.getFile(), handle::deref);
+        } finally {
+            handle.deref();
+        }
+    }
+
+    private boolean isFresh(File file, long lastModified) {
+        return FileCache.getInstance().isReady(file) && (lastModified <= file.lastModified());
+    }
+
+    /** Compress a variant, or join the compression already in progress. */
+    private CompletableFuture<Void> compress(FileInfo fileInfo, String path, long lastModified) {
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> existing = _inflight.putIfAbsent(path, created);
+        if (existing != null) {
+            return existing;
+        }
+        fileInfo.ref();
+        try {
+            _executor.execute(() -> {
+                try {
+                    createVariant(fileInfo, path, lastModified);
+                    created.complete(null);
+                } catch (Throwable th) {
+                    created.completeExceptionally(th);
+                } finally {
+                    _inflight.remove(path, created);
+                    fileInfo.deref();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            _inflight.remove(path, created);
+            fileInfo.deref();
+            created.completeExceptionally(ex);
+        }
+        return created;
+    }
+
+    private void createVariant(FileInfo fileInfo, String path, long lastModified) throws Exception {
+        FileHandle handle = FileCache.getInstance().getFile(path);
+        try {
+            boolean stale = !handle.exists() || (lastModified > handle.getFile().lastModified());
+            if (!stale) {
+                return;
+            }
+            handle.recreate();
+            try {
+                long then = System.currentTimeMillis();
+                try (InputStream in = fileInfo.openInputStream();
+                     OutputStream out = FileUtils.openOutputStream(handle.getFile())) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(out);
+                    IOUtils.copy(in, gzip);
+                    gzip.finish();
+                }
+                long delta = System.currentTimeMillis() - then;
+                logger.log(Level.INFO, "Compressed file, {0}, {1}", new Object[]{fileInfo.getCachePath(), delta});
+                handle.created();
+            } catch (Exception ex) {
+                handle.failed();
+                throw ex;
+            }
+        } finally {
+            handle.deref();
+        }
+    }
+
+    private static long getLastModified(FileInfo fileInfo) {
+        Date lastModified = fileInfo.getLastModified();
+        return (lastModified == null) ? System.currentTimeMillis() : lastModified.getTime();
+    }
+}
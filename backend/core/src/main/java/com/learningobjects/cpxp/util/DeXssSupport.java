@@ -17,12 +17,10 @@
 
 package com.learningobjects.cpxp.util;
 
-import com.learningobjects.cpxp.service.Current;
-import com.learningobjects.cpxp.service.domain.DomainDTO;
 import com.learningobjects.tagsoup.Parser;
 import com.learningobjects.tagsoup.XMLWriter;
 import com.xerox.adoc.dexss.DeXSSChangeListener;
-import com.xerox.adoc.dexss.DeXSSParser;
+import com.xerox.adoc.dexss.DeXSSFilter;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -30,7 +28,6 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +59,9 @@ public class DeXssSupport  {
 
         if (html == null) {
             return null;
+        } else if (isPlainText(html)) {
+            // What parsing would give, without the parse
+            return html.replace(">", "&gt;") + "\n";
         }
 
         StringWriter sw = new StringWriter();
@@ -75,12 +75,17 @@ public class DeXssSupport  {
             xw.setOutputProperty(XMLWriter.OMIT_XML_DECLARATION, "yes");
             xw.setOutputProperty(XMLWriter.METHOD, "html");
             xw.setOutputProperty(XMLWriter.ENCODING, "UTF-8");
-            DeXSSParser dexssParser = new DeXSSParser(getFilterProperties());
-            dexssParser.setDeXSSChangeListener(new ChangeListener(location));
-            dexssParser.setContentHandler(xw);
+            DeXSSFilter filter = FILTER.get();
+            filter.setDeXSSChangeListener(new ChangeListener(location));
+            filter.setContentHandler(xw);
             InputSource inputSource = new InputSource();
             inputSource.setCharacterStream(new StringReader(html));
-            dexssParser.parse(inputSource);
+            try {
+                filter.parse(inputSource);
+            } finally {
+                filter.setDeXSSChangeListener(null);
+                filter.setContentHandler(null);
+            }
             String filtered = sw.toString();
             return filtered;
         } catch (Exception ex) {
@@ -88,6 +93,41 @@ public class DeXssSupport  {
         }
     }
 
+    /**
+     * The parser and filter are reusable but not thread-safe so each thread keeps its own.
+     */
+    private static final ThreadLocal<DeXSSFilter> FILTER = ThreadLocal.withInitial(() -> {
+        try {
+            Parser parser = new Parser();
+            parser.setFeature(Parser.ignoreBogonsFeature, true);
+            parser.setFeature(Parser.defaultAttributesFeature, false);
+            return new DeXSSFilter(parser);
+        } catch (SAXException ex) {
+            throw new RuntimeException("Dexss error", ex);
+        }
+    });
+
+    /**
+     * Whether html is non-blank text that the parser would pass through unchanged
+     * but for escaping {@code >}. Markup, entities, control characters, carriage
+     * returns (which the parser normalizes) and a leading byte order mark (which it
+     * drops) all need the parse.
+     */
+    private static boolean isPlainText(String html) {
+        if (html.isEmpty() || (html.charAt(0) == '\uFEFF')) {
+            return false;
+        }
+        boolean blank = true;
+        for (int i = 0; i < html.length(); ++i) {
+            char c = html.charAt(i);
+            if ((c == '<') || (c == '&') || ((c < ' ') && (c != '\t') && (c != '\n')) || ((c >= 0x7f) && (c < 0xa0))) {
+                return false;
+            }
+            blank = blank && Character.isWhitespace(c);
+        }
+        return !blank;
+    }
+
     private static class RssXMLWriter extends XMLWriter {
         private String _base;
 
@@ -134,17 +174,6 @@ public class DeXssSupport  {
         }
     }
 
-    private Properties getFilterProperties() {
-        Properties properties = new Properties();
-        // used to be used to carve out allowed media types, see prior version
-        // of this file for details
-        DomainDTO dto = Current.getDomainDTO();
-        if (dto != null && dto.getHostName() != null) { // hostName == null on ovërlord
-            properties.setProperty("prohibitedIFrameSrcs", dto.getHostName());
-        }
-        return properties;
-    }
-
     private class ChangeListener implements DeXSSChangeListener {
         private String _location;
 
@@ -60,7 +60,8 @@ object CacheInjector:
       "elements"     := cache.getSize,
       "invalidation" := cache.getInvalidationSize.toString,
       "hits"         := cache.getHitCount,
-      "misses"       := cache.getMissCount
+      "misses"       := cache.getMissCount,
+      "coalesced"    := cache.getCoalescedCount
     )
     LogMeta.let(caches.map(cache => cache.getName -> cacheInfo(cache))*)(logger.info("Cache log"))
     caches.foreach(_.resetStatistics())
@@ -52,8 +52,8 @@ object HtmlOps:
           s"Unable to locate template file for $template (in scope $scope)"
         )
       try
-        if template.fragment then LohtmlTemplate.getInstance(url).renderFragment(context)
-        else LohtmlTemplate.getInstance(url).render(context)
+        if template.fragment then LohtmlTemplate.getCachedInstance(url).renderFragment(context)
+        else LohtmlTemplate.getCachedInstance(url).render(context)
       catch
         case ex: Exception =>
           throw new RuntimeException("Template error: " + template.template, ex)
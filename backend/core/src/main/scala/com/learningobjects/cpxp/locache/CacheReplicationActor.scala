@@ -20,6 +20,7 @@ package com.learningobjects.cpxp.locache
 import org.apache.pekko.actor.{Actor, ActorRef, ActorSystem, Props}
 import org.apache.pekko.cluster.pubsub.DistributedPubSub
 import org.apache.pekko.cluster.pubsub.DistributedPubSubMediator.{Subscribe, SubscribeAck}
+import de.mon.{DeMonitor, StatisticType}
 import org.hibernate.cache.spi.support.DomainDataRegionTemplate
 import org.hibernate.internal.SessionFactoryImpl
 import org.hibernate.persister.collection.CollectionPersister
@@ -40,6 +41,7 @@ class CacheReplicationActor private (cacheName: String, cacheKey: AnyRef => AnyR
     case SubscribeAck(_)  => logger debug "Subscribe ack"
     case e: EvictAll      => if !e.isLocal then onEvictAll()
     case e @ Evict(_, pk) => if !e.isLocal then onEvictEntry(pk)
+    case e: EvictBatch    => if !e.isLocal then onEvictBatch(e.ids)
   }
 
   private def onEvictAll(): Unit =
@@ -48,7 +50,17 @@ class CacheReplicationActor private (cacheName: String, cacheKey: AnyRef => AnyR
 
   private def onEvictEntry(pk: AnyRef): Unit =
     logger trace s"Received evict $pk: $cacheName"
+    DeMonitor.recordGlobalStatistic(StatisticType.LoCacheReceive, cacheName, 0L)
+    DeMonitor.recordGlobalStatistic(StatisticType.LoCacheReceiveId, cacheName, 0L)
     cache.evictData(cacheKey(pk))
+
+  private def onEvictBatch(pks: Array[Long]): Unit =
+    logger trace s"Received evict batch of ${pks.length}: $cacheName"
+    DeMonitor.recordGlobalStatistic(StatisticType.LoCacheReceive, cacheName, 0L)
+    DeMonitor.recordGlobalStatistics(StatisticType.LoCacheReceiveId, cacheName, pks.length, 0L)
+    pks foreach { pk =>
+      cache.evictData(cacheKey(java.lang.Long.valueOf(pk)))
+    }
 end CacheReplicationActor
 
 object CacheReplicationActor:
@@ -0,0 +1,108 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.locache
+
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLongArray}
+
+/** An approximate, aging frequency counter in the style of TinyLFU. Each key hash maps to four 4-bit counters in a
+  * count-min sketch; the estimate is the minimum of the four. Once the number of recorded accesses reaches ten times
+  * the capacity, every counter is halved so that historic popularity decays.
+  *
+  * Updates are lock-free and may occasionally be lost under contention, which is harmless for an estimate.
+  *
+  * @param capacity
+  *   the expected maximum number of distinct keys being tracked
+  */
+private[locache] final class FrequencySketch(capacity: Long):
+  import FrequencySketch.*
+
+  private val table = new AtomicLongArray(tableSize(capacity))
+
+  private val tableMask = table.length - 1
+
+  private val sampleSize = (Math.min(capacity, MaxTableSize.toLong) * 10).toInt
+
+  private val additions = new AtomicInteger
+
+  /** Estimate the number of times a key hash has been seen, from 0 to 15. */
+  def frequency(hash: Int): Int =
+    val h     = rehash(hash)
+    val start = (h & 3) << 2
+    var freq  = Int.MaxValue
+    var i     = 0
+    while i < 4 do
+      val count = ((table.get(indexOf(h, i)) >>> ((start + i) << 2)) & 0xfL).toInt
+      freq = Math.min(freq, count)
+      i += 1
+    freq
+
+  /** Record an occurrence of a key hash. */
+  def increment(hash: Int): Unit =
+    val h     = rehash(hash)
+    val start = (h & 3) << 2
+    var added = false
+    var i     = 0
+    while i < 4 do
+      added |= incrementAt(indexOf(h, i), start + i)
+      i += 1
+    if added && additions.incrementAndGet() >= sampleSize then reset()
+
+  /** Increment the counter at nibble `j` of long `i` unless it is already saturated. */
+  private def incrementAt(i: Int, j: Int): Boolean =
+    val offset = j << 2
+    val mask   = 0xfL << offset
+    var done   = false
+    var result = false
+    while !done do
+      val current = table.get(i)
+      if (current & mask) == mask then done = true
+      else if table.compareAndSet(i, current, current + (1L << offset)) then
+        done = true
+        result = true
+    result
+
+  /** Halve every counter. */
+  private def reset(): Unit =
+    additions.set(sampleSize / 2)
+    var i = 0
+    while i < table.length do
+      table.set(i, (table.get(i) >>> 1) & ResetMask)
+      i += 1
+
+  private def indexOf(hash: Int, depth: Int): Int =
+    var h = (hash.toLong + Seeds(depth)) * Seeds(depth)
+    h += h >>> 32
+    h.toInt & tableMask
+end FrequencySketch
+
+private[locache] object FrequencySketch:
+  private final val Seeds = Array(0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L)
+
+  private final val ResetMask = 0x7777777777777777L
+
+  private final val MaxTableSize = 1 << 24
+
+  private def tableSize(capacity: Long): Int =
+    val size = Math.max(64L, Math.min(capacity, MaxTableSize.toLong)).toInt
+    Integer.highestOneBit(size * 2 - 1)
+
+  /** Spread a possibly poor-quality hash code. */
+  private def rehash(hash: Int): Int =
+    val h = hash * 0x31848bab
+    h ^ (h >>> 14)
+end FrequencySketch
@@ -21,39 +21,65 @@ import org.apache.pekko.cluster.pubsub.DistributedPubSub
 import org.apache.pekko.cluster.pubsub.DistributedPubSubMediator.Publish
 import com.learningobjects.cpxp.scala.actor.CpxpActorSystem
 import com.learningobjects.cpxp.service.item.Item
+import com.learningobjects.cpxp.util.DaemonThreadFactory
+import com.typesafe.config.{Config, ConfigFactory, ConfigUtil}
 import de.mon.{DeMonitor, StatisticType}
 import org.hibernate.cache.spi.access.SoftLock
 import org.hibernate.cache.spi.support.DomainDataStorageAccess
 import org.hibernate.engine.spi.SharedSessionContractImplementor
 
-import java.util.concurrent.ConcurrentHashMap
+import java.lang as jl
+import java.util as ju
+import java.util.concurrent.{
+  ConcurrentHashMap,
+  Executors,
+  RejectedExecutionException,
+  ScheduledExecutorService,
+  TimeUnit
+}
 import java.util.function as juf
+import scala.collection.mutable
 import scala.concurrent.duration.*
+import scala.jdk.CollectionConverters.*
+import scala.util.control.NonFatal
 
 /** A crude hibernate cache implementation that knows when to tell Campus Pack about interesting things that it may act
   * upon said information and perhaps broadcast it to the world.
+  *
+  * Each region is bounded to `maxEntries`; admission and eviction are frequency aware (see [[LoCachePolicy]]). Expired
+  * entries are swept periodically by a background thread.
   */
-class LoCache(cacheName: String) extends DomainDataStorageAccess:
+class LoCache(cacheName: String, maxEntries: Long) extends DomainDataStorageAccess:
   import LoCache.*
 
+  def this(cacheName: String) = this(cacheName, LoCache.maxEntries(cacheName))
+
   private val cache       = new ConcurrentHashMap[AnyRef, LoEntry]()
+  private val policy      = new LoCachePolicy(maxEntries, cache.get, _.value.isInstanceOf[SoftLock])
   private val tableName   = cacheName.replaceFirst(".*\\.", "")
   private val isItemCache = cacheName == classOf[Item].getName
-  private var purged      = System.currentTimeMillis
+
+  /** Entity ids whose eviction has not yet been broadcast. Guarded by itself. */
+  private val pendingEvictions = new ju.LinkedHashSet[jl.Long]
+
+  /** The number of entries in this region, including any expired entries not yet swept. */
+  def size: Long = cache.mappingCount
 
   override def getFromCache(key: AnyRef, session: SharedSessionContractImplementor): AnyRef =
     val entry = cache.get(key)
+    policy.recordAccess(key)
     if (entry ne null) && (entry.expires > System.currentTimeMillis) then
       DeMonitor.recordGlobalStatistic(StatisticType.LoCacheHit, cacheName, 0L)
       entry.value
-    else null
+    else
+      DeMonitor.recordGlobalStatistic(StatisticType.LoCacheMiss, cacheName, 0L)
+      null
 
   override def putFromLoad(key: AnyRef, value: AnyRef, session: SharedSessionContractImplementor): Unit =
-    cache.put(key, LoEntry(value, System.currentTimeMillis + MaxAge))
+    store(key, value, System.currentTimeMillis)
 
   override def putIntoCache(key: AnyRef, value: AnyRef, session: SharedSessionContractImplementor): Unit =
-    val now      = System.currentTimeMillis
-    val existing = cache.put(key, LoEntry(value, now + MaxAge))
+    val existing = store(key, value, System.currentTimeMillis)
     if (existing ne null) && existing.value.isInstanceOf[SoftLock]
     then // Hibernate puts in a soft lock during the locked operation then the new value
       val id = getEntityId(key)
@@ -61,17 +87,58 @@ class LoCache(cacheName: String) extends DomainDataStorageAccess:
       if isItemCache then AppCacheSupport.removeItem(id.asInstanceOf[java.lang.Long])
       DeMonitor.recordGlobalStatistic(StatisticType.LoCacheInvalidate, cacheName, 0L)
       // We only replicate an eviction if Hibernate locked an entity for update and has now cached the final data
-      DistributedPubSub(CpxpActorSystem.system).mediator ! Publish(cacheName, Evict(id))
-    if now - purged > MaxAge then
-      cache.values.removeIf(entry => entry.expires <= now)
-      purged = now
+      broadcastEviction(id)
   end putIntoCache
 
+  /** Queue an entity eviction for broadcast. Evictions are coalesced over a short window so that a bulk update sends
+    * one batch message per region rather than one message per row.
+    */
+  private def broadcastEviction(id: AnyRef): Unit = id match
+    case pk: jl.Long =>
+      val (first, full) = pendingEvictions.synchronized {
+        val first = pendingEvictions.isEmpty
+        pendingEvictions.add(pk)
+        (first, pendingEvictions.size >= MaxEvictBatch)
+      }
+      if full then flushEvictions()
+      else if first then
+        try schedulers.eviction.schedule((() => flushEvictions()): Runnable, EvictWindow, TimeUnit.MILLISECONDS)
+        catch case _: RejectedExecutionException => flushEvictions() // shutting down
+    case _           =>
+      publish(Evict(id), 1)
+
+  /** Broadcast all pending evictions. */
+  def flushEvictions(): Unit =
+    val ids = pendingEvictions.synchronized {
+      val ids = pendingEvictions.asScala.map(_.longValue).toArray
+      pendingEvictions.clear()
+      ids
+    }
+    if ids.length == 1 then publish(Evict(jl.Long.valueOf(ids(0))), 1)
+    else if ids.nonEmpty then publish(EvictBatch(ids), ids.length)
+
+  private def publish(message: AnyRef, count: Int): Unit =
+    DeMonitor.recordGlobalStatistic(StatisticType.LoCacheBroadcast, cacheName, 0L)
+    DeMonitor.recordGlobalStatistics(StatisticType.LoCacheBroadcastId, cacheName, count, 0L)
+    DistributedPubSub(CpxpActorSystem.system).mediator ! Publish(cacheName, message)
+
+  /** Put an entry into the cache, applying the admission policy if it is new, and return any previous entry. */
+  private def store(key: AnyRef, value: AnyRef, now: Long): LoEntry =
+    val existing = cache.put(key, LoEntry(value, now + MaxAge))
+    if existing eq null then
+      policy.insert(key) foreach { case (victim, entry) =>
+        // only remove the entry the policy chose; if it was replaced meanwhile (by a soft lock) keep tracking it
+        if cache.remove(victim, entry) then DeMonitor.recordGlobalStatistic(StatisticType.LoCacheEvict, cacheName, 0L)
+        else policy.retain(victim)
+      }
+    existing
+
   override def contains(key: AnyRef): Boolean =
     val entry = cache.get(key)
     (entry ne null) && (entry.expires > System.currentTimeMillis)
 
   override def evictData(): Unit =
+    pendingEvictions.synchronized { pendingEvictions.clear() } // subsumed by the evict all
     evictAll()
     // Hibernate calls `evictData`, and when it does we replicate that eviction
     DistributedPubSub(CpxpActorSystem.system).mediator ! Publish(cacheName, EvictAll.instance)
@@ -80,15 +147,31 @@ class LoCache(cacheName: String) extends DomainDataStorageAccess:
   def evictAll(): Unit =
     logger trace s"Evict data: $cacheName"
     cache.clear()
+    policy.clear()
     DeMonitor.tableEvicted(tableName)
     if isItemCache then AppCacheSupport.removeAll()
 
   override def evictData(key: AnyRef): Unit =
     logger trace s"Evict data: $cacheName#$key"
-    cache.remove(key)
+    if cache.remove(key) ne null then policy.remove(key)
     if isItemCache then AppCacheSupport.removeItem(getEntityId(key).asInstanceOf[java.lang.Long])
 
-  override def release(): Unit = cache.clear()
+  /** Remove all expired entries. */
+  def expire(): Unit =
+    val now     = System.currentTimeMillis
+    val expired = mutable.Buffer.empty[AnyRef]
+    cache forEach { (key, entry) =>
+      if (entry.expires <= now) && cache.remove(key, entry) then expired += key
+    }
+    if expired.nonEmpty then
+      logger trace s"Expired ${expired.size} entries: $cacheName"
+      policy.removeAll(expired)
+      DeMonitor.recordGlobalStatistics(StatisticType.LoCacheExpire, cacheName, expired.size, 0L)
+  end expire
+
+  override def release(): Unit =
+    cache.clear()
+    policy.clear()
 end LoCache
 
 final case class LoEntry(value: AnyRef, expires: Long)
@@ -99,11 +182,76 @@ object LoCache:
 
   final val caches = new ConcurrentHashMap[String, LoCache]()
 
-  def getOrCreate(cacheName: String): LoCache = caches.computeIfAbsent(cacheName, new LoCache(_))
+  def getOrCreate(cacheName: String): LoCache =
+    val _ = schedulers // regions are swept from creation
+    caches.computeIfAbsent(cacheName, new LoCache(_))
 
   def forEach(f: juf.Consumer[LoCache]): Unit = caches.values.forEach(f)
 
-  def shutdown(): Unit = caches.clear()
+  /** Broadcast any pending evictions, stop the background threads and drop every region. The threads are started
+    * again if regions are later created anew, such as when the session factory is rebuilt.
+    */
+  def shutdown(): Unit =
+    // other nodes must still hear of writes that this node has committed
+    caches forEach { (name, cache) =>
+      try cache.flushEvictions()
+      catch case NonFatal(e) => logger.warn(e)(s"Error broadcasting evictions: $name")
+    }
+    val stopping = synchronized {
+      val current = running
+      running = null
+      current
+    }
+    if stopping ne null then stopping.shutdown()
+    caches.clear()
+
+  /** The L2 cache configuration. */
+  private lazy val config: Config = ConfigFactory.load().getConfig("com.learningobjects.cpxp.cache.locache")
+
+  /** The configured maximum number of entries for a region, keyed by the full region name. */
+  private def maxEntries(cacheName: String): Long =
+    val path = ConfigUtil.joinPath("regions", cacheName)
+    if config.hasPath(path) then config.getLong(path) else config.getLong("maxEntries")
+
+  /** How long evictions are collected before they are broadcast, in milliseconds. */
+  private lazy val EvictWindow: Long = config.getDuration("evictionWindow").toMillis
+
+  /** The maximum number of ids in one eviction broadcast, keeping messages well below the remoting frame size. */
+  private final val MaxEvictBatch = 8192
+
+  /** The running background threads, if any. Written while synchronized on this object. */
+  @volatile private var running: Schedulers = null
+
+  /** The running background threads, starting them if they are not. */
+  private def schedulers: Schedulers =
+    val current = running
+    if current ne null then current
+    else
+      synchronized {
+        if running eq null then running = new Schedulers
+        running
+      }
+  end schedulers
+
+  /** The background threads that serve every region. */
+  private final class Schedulers:
+
+    /** Runs delayed eviction broadcasts. These have their own thread so that a long expiry sweep cannot hold them
+      * back beyond the eviction window.
+      */
+    val eviction: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory)
+
+    /** Periodically sweeps expired entries from every region so that expiry does not depend on writer traffic. */
+    val expiry: ScheduledExecutorService =
+      val interval = config.getDuration("expiryInterval").toMillis
+      val executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory)
+      executor.scheduleWithFixedDelay(() => forEach(_.expire()), interval, interval, TimeUnit.MILLISECONDS)
+      executor
+
+    def shutdown(): Unit =
+      eviction.shutdownNow()
+      expiry.shutdownNow()
+  end Schedulers
 end LoCache
 
 /** For tests. It is a cache, but simple. */
@@ -0,0 +1,153 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.locache
+
+import java.util as ju
+import scala.collection.mutable
+
+/** A bounded admission and eviction policy for a cache region, loosely after W-TinyLFU. New keys enter a small FIFO
+  * admission window. When the window overflows, its eldest key becomes a candidate for the main region; if the main
+  * region is full, the candidate competes against the least frequently used of a few of the eldest main keys and only
+  * the more popular of the two is retained.
+  *
+  * The policy only tracks keys; the region owns the entries. `lookup` lets the policy see the current entry for a key
+  * so that it can discard keys no longer in the region and never evict entries that are pinned.
+  *
+  * @param maxEntries
+  *   the maximum number of entries in the region
+  * @param lookup
+  *   get the current entry for a key, or null
+  * @param pinned
+  *   whether an entry must not be evicted
+  */
+private[locache] final class LoCachePolicy(
+  maxEntries: Long,
+  lookup: AnyRef => LoEntry,
+  pinned: LoEntry => Boolean
+):
+  import LoCachePolicy.*
+
+  private val sketch = new FrequencySketch(maxEntries)
+
+  private val windowMax = Math.max(1L, maxEntries / WindowDivisor)
+  private val mainMax   = Math.max(1L, maxEntries - windowMax)
+
+  /** Guarded by this. Insertion ordered. */
+  private val window = new ju.LinkedHashSet[AnyRef]
+
+  /** Guarded by this. Insertion ordered. */
+  private val main = new ju.LinkedHashSet[AnyRef]
+
+  /** Record a read of a key. */
+  def recordAccess(key: AnyRef): Unit = sketch.increment(key.hashCode)
+
+  /** Track a key that was just added to the region.
+    *
+    * @return
+    *   the keys and entries that should be evicted to bring the region back within bounds
+    */
+  def insert(key: AnyRef): List[(AnyRef, LoEntry)] =
+    sketch.increment(key.hashCode)
+    synchronized {
+      window.add(key)
+      if window.size <= windowMax then Nil
+      else admit(pollFirst(window))
+    }
+
+  /** Resume tracking a key that could not be evicted. */
+  def retain(key: AnyRef): Unit = synchronized {
+    main.add(key)
+  }
+
+  /** Stop tracking a key. */
+  def remove(key: AnyRef): Unit = synchronized {
+    window.remove(key) || main.remove(key)
+  }
+
+  /** Stop tracking some keys. */
+  def removeAll(keys: Iterable[AnyRef]): Unit = synchronized {
+    keys foreach { key =>
+      window.remove(key) || main.remove(key)
+    }
+  }
+
+  /** Stop tracking all keys. */
+  def clear(): Unit = synchronized {
+    window.clear()
+    main.clear()
+  }
+
+  /** Move a candidate from the window into the main region, choosing what to evict if main is full. */
+  private def admit(candidate: AnyRef): List[(AnyRef, LoEntry)] =
+    val candidateEntry = lookup(candidate)
+    if candidateEntry eq null then Nil // already gone from the region
+    else if main.size < mainMax then
+      main.add(candidate)
+      Nil
+    else
+      victim() match
+        case None                                   =>
+          main.add(candidate) // room was freed by discarding stale keys, or every probed entry is pinned
+          Nil
+        case Some((victim, victimEntry))
+            if pinned(candidateEntry) ||
+              sketch.frequency(candidate.hashCode) > sketch.frequency(victim.hashCode) =>
+          main.remove(victim)
+          main.add(candidate)
+          (victim -> victimEntry) :: Nil
+        case Some(_)                                =>
+          (candidate -> candidateEntry) :: Nil
+  end admit
+
+  /** Probe the eldest keys in main for the least frequently used one that can be evicted. Keys that are no longer in
+    * the region are discarded and pinned keys are moved to the back of the queue.
+    */
+  private def victim(): Option[(AnyRef, LoEntry)] =
+    val probed = mutable.Buffer.empty[(AnyRef, LoEntry, Int)]
+    val skip   = mutable.Buffer.empty[AnyRef]
+    val iter   = main.iterator
+    var probes = 0
+    while iter.hasNext && probes < VictimProbes do
+      val key   = iter.next()
+      val entry = lookup(key)
+      if entry eq null then iter.remove()
+      else if pinned(entry) then skip += key
+      else probed += ((key, entry, sketch.frequency(key.hashCode)))
+      probes += 1
+    skip foreach { key =>
+      main.remove(key)
+      main.add(key)
+    }
+    if main.size < mainMax then None
+    else probed.minByOption(_._3).map(t => t._1 -> t._2)
+  end victim
+
+  private def pollFirst(set: ju.LinkedHashSet[AnyRef]): AnyRef =
+    val iter = set.iterator
+    val key  = iter.next()
+    iter.remove()
+    key
+end LoCachePolicy
+
+private[locache] object LoCachePolicy:
+
+  /** The admission window is this fraction of the region. */
+  private final val WindowDivisor = 100
+
+  /** The number of eldest main region keys considered when selecting a victim. */
+  private final val VictimProbes = 8
@@ -38,6 +38,16 @@ class LoCacheRegionFactory extends AbstractRegionFactory(LoCache.shutdown):
   override def createDomainDataStorageAccess(regionConfig: DDRC, buildingContext: DDRBC): DomainDataStorageAccess =
     LoCache.getOrCreate(regionConfig.getRegionName)
 
+  override def buildDomainDataRegion(regionConfig: DDRC, buildingContext: DDRBC): DomainDataRegion =
+    new LoCacheRegion(
+      regionConfig,
+      this,
+      LoCache.getOrCreate(regionConfig.getRegionName),
+      getImplicitCacheKeysFactory,
+      buildingContext
+    )
+end LoCacheRegionFactory
+
 /** A simple cache region factory for use in tests. */
 class SimpleCacheRegionFactory extends AbstractRegionFactory(() => ()):
   override def prepareForUse(settings: SFO, configValues: util.Map[String, AnyRef]): Unit = ()
@@ -77,3 +87,20 @@ class SimpleRegion(
 
   override def getSizeInMemory: Long = CacheRegionStatistics.NO_EXTENDED_STAT_SUPPORT_RETURN
 end SimpleRegion
+
+// region type for the LoCache, exposing its size to the hibernate region statistics
+class LoCacheRegion(
+  regionConfig: DDRC,
+  regionFactory: RegionFactory,
+  cache: LoCache,
+  defaultKeysFactory: CacheKeysFactory,
+  buildingContext: DDRBC
+) extends DomainDataRegionTemplate(regionConfig, regionFactory, cache, defaultKeysFactory, buildingContext)
+    with ExtendedStatisticsSupport:
+
+  override def getElementCountInMemory: Long = cache.size
+
+  override val getElementCountOnDisk: Long = 0
+
+  override def getSizeInMemory: Long = CacheRegionStatistics.NO_EXTENDED_STAT_SUPPORT_RETURN
+end LoCacheRegion
@@ -34,6 +34,17 @@ package object locache:
   object Evict:
     def apply(id: AnyRef): Evict = Evict(jvmId, id)
 
+  /** A batched cache element eviction broadcast message, carrying the identifiers of many evicted entities. Captures
+    * the identifier of the sending JVM so local removal messages can be ignored.
+    */
+  final case class EvictBatch(jvm: Long, ids: Array[Long]):
+
+    /** Whether this event was sent by the local JVM. */
+    def isLocal: Boolean = jvm == jvmId
+
+  object EvictBatch:
+    def apply(ids: Array[Long]): EvictBatch = EvictBatch(jvmId, ids)
+
   /** A whole cache eviction broadcast message. Captures the identifier of the sending JVM so local removal messages can
     * be ignored.
     */
@@ -19,15 +19,13 @@ package com.learningobjects.cpxp.service.query
 
 import com.google.common.annotations.VisibleForTesting
 
-import java.util.Optional
-
 /** A special cache key strategy used to partition multi-element id based queries for precaching the subsequent
   * individual detail queries, by calculating the equivalent single-element condition keys.
   */
 class PartitionedByFieldsQueryCacheKey[K](description: QueryDescription, val dataType: String, val specificItem: K)
     extends QueryCacheKey(description):
 
-  protected override def conditionTest(condition: Condition): Optional[String] =
+  protected override def conditionTest(condition: Condition): String =
     if isInConditionOn(condition, dataType) then
       super.conditionTest(makeCondition(dataType, Comparison.eq, specificItem))
     else super.conditionTest(condition)
@@ -17,25 +17,30 @@
 
 package com.learningobjects.cpxp.service.query
 
-import com.learningobjects.cpxp.util.cache.{BucketGenerationalCache, Cache}
+import com.learningobjects.cpxp.util.cache.{Cache, ConcurrentGenerationalCache}
 
-import scala.collection.mutable
+import java.util.concurrent.CopyOnWriteArrayList
 import scala.concurrent.duration.*
+import scala.jdk.CollectionConverters.*
 
 class QueryCache
-    extends BucketGenerationalCache[String, QueryResults, QueryEntry](
+    extends ConcurrentGenerationalCache[String, QueryResults, QueryEntry](
       itemAware = true,
       replicated = true,
-      timeout = 5.minutes
+      timeout = 5.minutes,
+      maxWeight = QueryCache.MaxEntries
     ):
-  private val listeners = mutable.Buffer.empty[Cache[?, ?, ?]]
+  private val listeners = new CopyOnWriteArrayList[Cache[?, ?, ?]]
 
-  override def invalidate(inv: String, propagate: Boolean): Unit = synchronized {
+  override def invalidate(inv: String, propagate: Boolean): Unit =
     super.invalidate(inv, propagate)
-    listeners foreach { _.invalidate(inv, propagate = false) }
-  }
+    listeners.asScala foreach { _.invalidate(inv, propagate = false) }
 
-  def addInvalidationListener(cache: Cache[?, ?, ?]): Unit = synchronized {
-    listeners.append(cache)
-  }
+  def addInvalidationListener(cache: Cache[?, ?, ?]): Unit =
+    listeners.add(cache)
 end QueryCache
+
+object QueryCache:
+
+  /** The maximum number of cached query results. */
+  final val MaxEntries = 131072L
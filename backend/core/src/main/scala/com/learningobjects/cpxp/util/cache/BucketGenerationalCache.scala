@@ -27,6 +27,7 @@ import scaloi.syntax.AnyOps.*
 import scaloi.syntax.foldable.*
 
 import java.io.Serializable
+import java.util.concurrent.atomic.LongAdder
 import scala.concurrent.duration.FiniteDuration
 
 // TODO: timeout from detomcat conf
@@ -50,22 +51,22 @@ class BucketGenerationalCache[K <: Serializable, V >: Null, E <: Entry[K, V]](
   /** The buckets. */
   private var buckets = List[CacheBucket[K, V]]()
 
-  private var hitCount = 0
+  private final val hitCount = new LongAdder
 
-  private var missCount = 0
+  private final val missCount = new LongAdder
 
   override val getMaxAge: Long = timeout.toMillis
 
   override def getName: String = getClass.getSimpleName
 
-  override def getHitCount: Int = hitCount
+  override def getHitCount: Int = hitCount.intValue
 
-  override def getMissCount: Int = missCount
+  override def getMissCount: Int = missCount.intValue
 
-  override def resetStatistics(): Unit = synchronized {
-    hitCount = 0
-    missCount = 0
-  }
+  override def resetStatistics(): Unit =
+    hitCount.reset()
+    missCount.reset()
+    loads.resetStatistics()
 
   override def getSize: Int = synchronized {
     buckets.map(_.size).sum
@@ -116,19 +117,19 @@ class BucketGenerationalCache[K <: Serializable, V >: Null, E <: Entry[K, V]](
     } match
       case None =>
         logger.debug(s"Cache entry miss: $key")
-        missCount += 1
+        missCount.increment()
         None
 
       case Some(entry) if entry.isStale => // assumes the isStale call is expensive and not to be synchronized
         logger.debug(s"Cache entry stale: $key")
-        missCount += 1
+        missCount.increment()
         remove(key)
         entry.deref()
         None
 
       case Some(entry) =>
         logger.debug(s"Cache entry hit: $key")
-        hitCount += 1
+        hitCount.increment()
         Some(entry.value)
 
   override def remove(key: K, propagate: Boolean): Unit = synchronized {
@@ -65,6 +65,7 @@ class BucketGenerationalReadWriteLockCache[K <: Serializable, V >: Null, E <: En
       hitCount = 0
       missCount = 0
     }
+    loads.resetStatistics()
 
   override def getSize: Int =
     lock reading {
@@ -69,9 +69,10 @@ private[cache] final class CacheBucket[K <: Serializable, V >: Null](expires: Lo
   def contains(key: K): Boolean =
     entries.contains(key)
 
-  def invalidate(inv: String): Unit =
-    invalidationMap.remove(inv) foreach { keys =>
-      keys foreach remove
+  /** Remove all entries associated with an invalidation key, returning the removed entries. */
+  def invalidate(inv: String): Seq[Entry[K, V]] =
+    invalidationMap.remove(inv).toSeq flatMap { keys =>
+      keys.toList.flatMap(remove)
     }
 
   def get(key: K): Option[Entry[K, V]] =
@@ -0,0 +1,248 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.learningobjects.cpxp.util.cache
+
+import com.learningobjects.cpxp.coherence.DeferredCoherence
+import scalaz.std.anyVal.*
+import scalaz.std.list.*
+import scalaz.std.tuple.*
+import scalaz.syntax.foldable.*
+import scaloi.misc.TimeSource
+import scaloi.syntax.AnyOps.*
+import scaloi.syntax.foldable.*
+
+import java.io.Serializable
+import java.util.concurrent.atomic.LongAdder
+import scala.concurrent.duration.FiniteDuration
+
+/** A generational cache that stripes its buckets across a number of independently-locked segments, so concurrent
+  * readers and writers of different keys do not contend on a single monitor. Each segment holds its own list of time
+  * buckets and is bounded by a share of the total weight budget; when a segment exceeds its budget, entries are
+  * evicted from its oldest generation first.
+  *
+  * @param itemAware
+  *   whether the cache participates in item invalidation
+  * @param replicated
+  *   whether removals and invalidations are propagated to the cluster
+  * @param timeout
+  *   the minimum length of time that elements should be retained
+  * @param maxWeight
+  *   the maximum total weight of all entries in the cache
+  * @param weigher
+  *   the weight of an entry; by default every entry weighs one, making `maxWeight` an entry count
+  * @param concurrency
+  *   the number of segments, rounded up to a power of two
+  */
+class ConcurrentGenerationalCache[K <: Serializable, V >: Null, E <: Entry[K, V]](
+  val itemAware: Boolean,
+  val replicated: Boolean,
+  timeout: FiniteDuration,
+  maxWeight: Long = ConcurrentGenerationalCache.DefaultMaxWeight,
+  weigher: Entry[K, V] => Int = ConcurrentGenerationalCache.unitWeigher,
+  concurrency: Int = ConcurrentGenerationalCache.DefaultConcurrency,
+) extends Cache[K, V, E]:
+  import ConcurrentGenerationalCache.*
+
+  private final val ts = TimeSource.realtime
+
+  private final val logger = org.log4s.getLogger(getClass)
+
+  private final val hitCount      = new LongAdder
+  private final val missCount     = new LongAdder
+  private final val evictionCount = new LongAdder
+
+  private final val segments: Array[Segment] =
+    val count = Integer.highestOneBit(Math.max(1, concurrency) * 2 - 1)
+    Array.fill(count)(new Segment(Math.max(1L, maxWeight / count)))
+
+  private final val segmentMask = segments.length - 1
+
+  override val getMaxAge: Long = timeout.toMillis
+
+  override def getName: String = getClass.getSimpleName
+
+  override def getHitCount: Int = hitCount.intValue
+
+  override def getMissCount: Int = missCount.intValue
+
+  /** The number of entries evicted because the cache exceeded its weight budget. */
+  def getEvictionCount: Long = evictionCount.sum
+
+  /** The total weight of all entries in the cache. */
+  def getWeight: Long = segments.map(_.weight).sum
+
+  override def resetStatistics(): Unit =
+    hitCount.reset()
+    missCount.reset()
+    evictionCount.reset()
+    loads.resetStatistics()
+
+  override def getSize: Int =
+    segments.map(_.size).sum
+
+  override def getInvalidationSize: (Int, Int) =
+    segments.toList.map(_.invalidationSize).suml
+
+  override def put(entry: E): Unit =
+    segment(entry.key).put(entry)
+
+  override def invalidate(inv: String, propagate: Boolean): Unit =
+    segments foreach { _.invalidate(inv) }
+    if propagate && replicated then DeferredCoherence.invalidateEntry(this, inv)
+
+  override def test(key: K): Boolean =
+    segment(key).contains(key)
+
+  override def getKeys: List[K] =
+    segments.toList.flatMap(_.keys)
+
+  override def get(key: K): Option[V] =
+    segment(key).get(key) match
+      case None =>
+        logger.debug(s"Cache entry miss: $key")
+        missCount.increment()
+        None
+
+      case Some(entry) if entry.isStale => // assumes the isStale call is expensive and not to be synchronized
+        logger.debug(s"Cache entry stale: $key")
+        missCount.increment()
+        remove(key)
+        entry.deref()
+        None
+
+      case Some(entry) =>
+        logger.debug(s"Cache entry hit: $key")
+        hitCount.increment()
+        Some(entry.value)
+
+  override def remove(key: K, propagate: Boolean): Unit =
+    segment(key).remove(key)
+    if propagate && replicated then DeferredCoherence.removeEntry(this, key)
+
+  override def clear(): Unit =
+    segments foreach { _.clear() }
+
+  private def segment(key: K): Segment =
+    segments(spread(key.hashCode) & segmentMask)
+
+  /** One stripe of the cache. All state is guarded by the segment monitor. */
+  private final class Segment(budget: Long):
+
+    /** The buckets, newest first. */
+    private var buckets = List[CacheBucket[K, V]]()
+
+    private var totalWeight = 0L
+
+    def weight: Long = synchronized { totalWeight }
+
+    def size: Int = synchronized { buckets.map(_.size).sum }
+
+    def invalidationSize: (Int, Int) = synchronized { buckets.map(_.invalidationSize).suml }
+
+    def keys: List[K] = synchronized { validBuckets.flatMap(_.keys) }
+
+    def contains(key: K): Boolean = synchronized { validBuckets.exists(_.contains(key)) }
+
+    def get(key: K): Option[Entry[K, V]] = synchronized {
+      validBuckets.findMap(_.get(key)).map(_.ref())
+    }
+
+    def put(entry: Entry[K, V]): Unit = synchronized {
+      val bucket = head
+      totalWeight += weigher(entry)
+      bucket.add(entry.ref()) match
+        case Some(existing) =>
+          released(existing)
+        case None           => // if not already in head, may be in tail so remove from tail
+          buckets.tail foreach { tail =>
+            tail.remove(entry.key).foreach(released)
+          }
+      evict()
+    }
+
+    def remove(key: K): Unit = synchronized {
+      buckets.findMap(_.remove(key)).foreach(released)
+    }
+
+    def invalidate(inv: String): Unit = synchronized {
+      buckets foreach { bucket =>
+        bucket.invalidate(inv).foreach(released)
+      }
+    }
+
+    def clear(): Unit = synchronized {
+      buckets.flatMap(_.values).foreach(_.deref())
+      buckets = List.empty
+      totalWeight = 0L
+    }
+
+    private def released(entry: Entry[K, V]): Unit =
+      totalWeight -= weigher(entry)
+      entry.deref()
+
+    private def head: CacheBucket[K, V] =
+      val now = ts.time
+      buckets.headOption.filter(_.stillValid(now)) getOrElse {
+        new CacheBucket[K, V](now + getMaxAge / Buckets) <| { bucket =>
+          val (live, expired) = buckets.partition(b => b.stillValid(now - getMaxAge))
+          expired.flatMap(_.values).foreach(released)
+          buckets = bucket :: live
+        }
+      }
+
+    /** Return just the buckets that could potentially contain non-expired entries. */
+    private def validBuckets: List[CacheBucket[K, V]] =
+      val oldest = ts.time - getMaxAge
+      buckets.takeWhile(_.stillValid(oldest))
+
+    /** Evict entries from the oldest generation until this segment is back within budget. */
+    private def evict(): Unit =
+      while totalWeight > budget && buckets.nonEmpty do
+        val oldest  = buckets.last
+        val victims = oldest.keys.take(EvictionBatch).toList
+        if victims.isEmpty then buckets = buckets.init
+        else
+          victims foreach { key =>
+            if totalWeight > budget then
+              oldest.remove(key) foreach { entry =>
+                released(entry)
+                evictionCount.increment()
+              }
+          }
+  end Segment
+end ConcurrentGenerationalCache
+
+object ConcurrentGenerationalCache:
+
+  /** The number of buckets per segment. */
+  final val Buckets = 3
+
+  /** The default maximum number of entries. */
+  final val DefaultMaxWeight = 65536L
+
+  /** The default number of segments. */
+  final val DefaultConcurrency = 16
+
+  /** The number of keys to pull from the oldest generation on each eviction pass. */
+  private final val EvictionBatch = 16
+
+  def unitWeigher[K, V]: Entry[K, V] => Int = _ => 1
+
+  /** Spread the higher bits of a hash code into the lower bits used for segment selection. */
+  private def spread(h: Int): Int = h ^ (h >>> 16)
+end ConcurrentGenerationalCache
@@ -29,11 +29,10 @@ object DeMonitor:
     *   the runtime in nanoseconds
     */
   def sqlExecuted(sql: String, duration: Long): Unit =
-    GlobalStatistics.recordSql(sql, duration)
+    val classified = SqlRedux.classify(sql)
+    GlobalStatistics.recordSql(classified.statement, duration)
     ThreadStatistics.statistics foreach {
-      // TODO: should i simplify the SQL first? i could collapse IN (?, ?, ?, ?) to IN (???) and many
-      // generated statements would coalesce better.
-      _.record(sql, duration)
+      _.record(classified.collapsed, duration)
     }
 
   /** Record that a table was evicted.
@@ -58,6 +57,20 @@ object DeMonitor:
   def recordGlobalStatistic(stmt: StatisticType, name: String, duration: Long): Unit =
     GlobalStatistics.record(stmt, name, duration)
 
+  /** Record a number of occurrences of a global statistic.
+    *
+    * @param stmt
+    *   the statement type
+    * @param name
+    *   the table name
+    * @param count
+    *   the number of occurrences
+    * @param duration
+    *   the total duration
+    */
+  def recordGlobalStatistics(stmt: StatisticType, name: String, count: Int, duration: Long): Unit =
+    GlobalStatistics.record(stmt, name, count, duration)
+
   /** The logger. */
   private final val logger = org.log4s.getLogger
 end DeMonitor
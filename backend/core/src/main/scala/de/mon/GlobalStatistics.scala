@@ -19,6 +19,7 @@ package de.mon
 
 import scaloi.syntax.CollectionOps.*
 
+import java.util
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.LongAdder
 import scala.jdk.CollectionConverters.*
@@ -31,18 +32,18 @@ object GlobalStatistics:
   private final val stats = new ConcurrentHashMap[EntityStatistic, ConcurrentStatistic]
 
   /** Record a statistic. */
-  @inline private def add(stat: EntityStatistic, duration: Long): Unit =
-    stats.computeIfAbsent(stat, _ => new ConcurrentStatistic).add(duration)
+  @inline private def add(stat: EntityStatistic, duration: Long, count: Int = 1): Unit =
+    stats.computeIfAbsent(stat, _ => new ConcurrentStatistic).add(duration, count)
 
   /** Record that a statement was executed.
     *
-    * @param sql
-    *   the SQL statement
+    * @param statement
+    *   the classified SQL statement
     * @param duration
     *   the execution duration in nanoseconds
     */
-  private[mon] def recordSql(sql: String, duration: Long): Unit =
-    add(SqlRedux.tableStatement(sql.toLowerCase), duration)
+  private[mon] def recordSql(statement: EntityStatistic, duration: Long): Unit =
+    add(statement, duration)
 
   /** Record a global statistic.
     *
@@ -56,6 +57,20 @@ object GlobalStatistics:
   private[mon] def record(tpe: StatisticType, name: String, duration: Long): Unit =
     add(tpe -> name, duration)
 
+  /** Record a number of occurrences of a global statistic.
+    *
+    * @param tpe
+    *   the statistic type
+    * @param name
+    *   the entity name
+    * @param count
+    *   the number of occurrences
+    * @param duration
+    *   the total duration
+    */
+  private[mon] def record(tpe: StatisticType, name: String, count: Int, duration: Long): Unit =
+    add(tpe -> name, duration, count)
+
   /** Get the global statistics. */
   def statistics: Map[EntityStatistic, GlobalStatistic] =
     stats.entrySet.iterator.asScala.foldToMap(entry => entry.getKey -> entry.getValue.toStatistic)
@@ -63,6 +78,37 @@ object GlobalStatistics:
   /** Clear the global statistics. */
   def reset(): Unit = stats.clear()
 
+  /** Put the SQL latency of each statement type, across all tables, into mstatus. */
+  def updateStatus(map: util.Map[String, Any]): Unit =
+    stats.entrySet.iterator.asScala
+      .filter(entry => SqlTypes.contains(entry.getKey._1))
+      .foldLeft(Map.empty[StatisticType, Latency]) { case (latencies, entry) =>
+        val latency = entry.getValue.latency.snapshot
+        latencies.updated(entry.getKey._1, latencies.get(entry.getKey._1).fold(latency)(_ + latency))
+      }
+      .foreach { case (tpe, latency) =>
+        map.put(s"demon.Sql.$tpe.Count", latency.count)
+        map.put(s"demon.Sql.$tpe.P50", latency.percentile(0.5) / NanosPerMilli)
+        map.put(s"demon.Sql.$tpe.P99", latency.percentile(0.99) / NanosPerMilli)
+        map.put(s"demon.Sql.$tpe.Max", latency.max / NanosPerMilli)
+      }
+
+  /** The statistic types of SQL statements. */
+  private final val SqlTypes: Set[StatisticType] =
+    Set(
+      StatisticType.Lock,
+      StatisticType.Select,
+      StatisticType.Cte,
+      StatisticType.Update,
+      StatisticType.Insert,
+      StatisticType.Delete,
+      StatisticType.Ddl,
+      StatisticType.UnknownSQL
+    )
+
+  /** Nanoseconds per millisecond, for reporting. */
+  private final val NanosPerMilli = 1000000.0
+
   /** Update the counts for rate tracking. */
   def updateRate(): Unit = stats.forEachValue(Long.MaxValue, stat => stat.updateRate())
 
@@ -75,21 +121,28 @@ object GlobalStatistics:
     /** Total accumulated duration. */
     private val duration = new LongAdder()
 
+    /** The distribution of individual durations. */
+    val latency = new LatencyHistogram
+
     /** Rate recording. */
     private var rate = (0, 0)
 
-    /** Add a duration. Doesn't guarantee atomicity of count and duration accumulators. */
-    def add(dur: Long): Unit =
-      count.increment()
+    /** Add a duration. Doesn't guarantee atomicity of count and duration accumulators. Only single occurrences
+      * contribute to the latency distribution.
+      */
+    def add(dur: Long, n: Int): Unit =
+      count.add(n)
       duration.add(dur)
+      if n == 1 then latency.record(dur)
 
     /** Update counts for rate purposes. */
     def updateRate(): Unit = rate = (rate._2, count.intValue)
 
     /** Convert to immutable statistic. */
-    def toStatistic: GlobalStatistic = GlobalStatistic(count.intValue, duration.longValue, rate._2 - rate._1)
+    def toStatistic: GlobalStatistic =
+      GlobalStatistic(count.intValue, duration.longValue, rate._2 - rate._1, latency.snapshot)
   end ConcurrentStatistic
 end GlobalStatistics
 
 /** Snapshot of a global statistic. */
-final case class GlobalStatistic(count: Int, duration: Long, rate: Int)
+final case class GlobalStatistic(count: Int, duration: Long, rate: Int, latency: Latency)
@@ -0,0 +1,115 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.mon
+
+import java.util.concurrent.atomic.{AtomicLongArray, LongAccumulator}
+
+/** A concurrent histogram of durations, after the manner of HdrHistogram. Durations are counted in buckets whose
+  * width doubles with each power of two, each power of two being split into a fixed number of linear sub-buckets.
+  * This gives a constant relative precision (12.5%) over the full range (1µs to 19 hours) in a small fixed footprint
+  * with lock-free recording.
+  */
+final class LatencyHistogram:
+  import LatencyHistogram.*
+
+  /** The per-bucket counts. */
+  private val counts = new AtomicLongArray(BucketCount)
+
+  /** The greatest recorded duration. */
+  private val maximum = new LongAccumulator((a, b) => a max b, 0L)
+
+  /** Record a duration.
+    *
+    * @param nanos
+    *   the duration in nanoseconds
+    */
+  def record(nanos: Long): Unit =
+    counts.incrementAndGet(bucket(nanos / Resolution))
+    maximum.accumulate(nanos)
+
+  /** Get a snapshot of this histogram. Not atomic with respect to concurrent recording. */
+  def snapshot: Latency = new Latency(Array.tabulate(BucketCount)(counts.get), maximum.get)
+end LatencyHistogram
+
+/** Latency histogram companion. */
+object LatencyHistogram:
+
+  /** The resolution of the histogram, in nanoseconds. */
+  private final val Resolution = 1000L
+
+  /** The number of bits of sub-bucket precision. */
+  private final val SubBits = 3
+
+  /** The number of linear sub-buckets per power of two. */
+  private final val SubBuckets = 1 << SubBits
+
+  /** The greatest distinguishable duration, in units of the resolution. */
+  private final val MaxValue = (1L << 36) - 1
+
+  /** The total number of buckets. */
+  private[mon] final val BucketCount = (63 - java.lang.Long.numberOfLeadingZeros(MaxValue) - SubBits + 2) * SubBuckets
+
+  /** Get the bucket index of a duration in units of the resolution. */
+  private def bucket(value: Long): Int =
+    val v = value max 0L min MaxValue
+    if v < SubBuckets then v.toInt
+    else
+      val magnitude = 63 - java.lang.Long.numberOfLeadingZeros(v)
+      (magnitude - SubBits + 1) * SubBuckets + (v >>> (magnitude - SubBits)).toInt - SubBuckets
+
+  /** Get the greatest duration, in nanoseconds, that is counted in a bucket. */
+  private[mon] def highest(index: Int): Long =
+    if index < SubBuckets then (index + 1) * Resolution - 1
+    else ((SubBuckets + index % SubBuckets + 1).toLong << (index / SubBuckets - 1)) * Resolution - 1
+end LatencyHistogram
+
+/** A snapshot of a latency histogram.
+  *
+  * @param counts
+  *   the per-bucket counts
+  * @param max
+  *   the greatest recorded duration in nanoseconds
+  */
+final class Latency private[mon] (private val counts: Array[Long], val max: Long):
+
+  /** The number of recorded durations. */
+  val count: Long = counts.sum
+
+  /** Get the duration at a percentile.
+    *
+    * @param p
+    *   the percentile, between 0 and 1
+    * @return
+    *   the duration in nanoseconds within which that fraction of the recorded durations completed, or 0 if none were
+    *   recorded
+    */
+  def percentile(p: Double): Long =
+    if count == 0 then 0L
+    else
+      val rank  = math.ceil(count * p).toLong max 1L
+      var index = 0
+      var seen  = counts(0)
+      while seen < rank do
+        index += 1
+        seen += counts(index)
+      LatencyHistogram.highest(index) min max
+
+  /** Combine this with another snapshot. */
+  def +(latency: Latency): Latency =
+    new Latency(Array.tabulate(counts.length)(i => counts(i) + latency.counts(i)), max max latency.max)
+end Latency
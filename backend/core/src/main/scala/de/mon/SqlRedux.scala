@@ -17,6 +17,8 @@
 
 package de.mon
 
+import com.google.common.cache.{CacheBuilder, CacheLoader}
+
 import scala.util.matching.Regex
 
 /** Helper for manipulating SQL strings.
@@ -37,6 +39,49 @@ object SqlRedux:
   private final val FetchRe =
     """select [_A-Za-z0-9]+\.(?:owner_)?id as [_A-Za-z0-9]+(?:, [_A-Za-z0-9]+\.[_A-Za-z0-9]+ as [_A-Za-z0-9]+)* (from [_A-Za-z0-9]+ [_A-Za-z0-9]+ where [_A-Za-z0-9]+\.(?:owner_)?id=\?)""".r
 
+  /** Collapse lists of bind parameters, so that statements that differ only in the length of an `IN` list coalesce.
+    * That is, rewrite `in (?, ?, ?)` as `in (?...)`.
+    *
+    * @param sql
+    *   the original SQL
+    * @return
+    *   the collapsed SQL
+    */
+  def collapse(sql: String): String =
+    if sql.indexOf(',') < 0 then sql else InListRe.replaceAllIn(sql, "$1(?...)")
+
+  /** Pattern match for lists of bind parameters. */
+  private final val InListRe = """(?i)(\bin\s*)\(\s*\?(?:\s*,\s*\?)+\s*\)""".r
+
+  /** Classify a SQL statement, as by [[tableStatement]] and [[collapse]]. The classification is memoised because the
+    * same statement strings are executed over and over.
+    *
+    * @param sql
+    *   the SQL, in any case
+    * @return
+    *   the classified statement
+    */
+  def classify(sql: String): Classified = classified.getUnchecked(sql)
+
+  /** A classified SQL statement.
+    *
+    * @param statement
+    *   the statement type and table
+    * @param collapsed
+    *   the SQL with parameter lists collapsed
+    */
+  final case class Classified(statement: EntityStatistic, collapsed: String)
+
+  /** The maximum number of memoised classifications. */
+  private final val MaxClassified = 4096
+
+  /** Memoised classifications. Keys are weak, so compared by identity; Hibernate reuses its generated statement
+    * strings so this is effective where it matters, and statements built anew each time simply miss.
+    */
+  private final val classified =
+    CacheBuilder.newBuilder.weakKeys.maximumSize(MaxClassified) `build` new CacheLoader[String, Classified]:
+      override def load(sql: String): Classified = Classified(tableStatement(sql.toLowerCase), collapse(sql))
+
   /** Attempt to parse a SQL statement into a statement type and the table on which it is operating.
     *
     * @param sql
@@ -76,4 +76,34 @@ object StatisticType extends Enum[StatisticType]:
 
   /** A cache hit. */
   case object LoCacheHit extends StatisticType
+
+  /** A cache miss. */
+  case object LoCacheMiss extends StatisticType
+
+  /** A cache entry evicted because its region was full. */
+  case object LoCacheEvict extends StatisticType
+
+  /** A cache entry swept because it expired. */
+  case object LoCacheExpire extends StatisticType
+
+  /** A cache eviction message broadcast to the cluster. */
+  case object LoCacheBroadcast extends StatisticType
+
+  /** An entity identifier carried in a cache eviction broadcast. */
+  case object LoCacheBroadcastId extends StatisticType
+
+  /** A cache eviction message received from the cluster. */
+  case object LoCacheReceive extends StatisticType
+
+  /** An entity identifier carried in a received cache eviction message. */
+  case object LoCacheReceiveId extends StatisticType
+
+  /** A Web response found in the cache. */
+  case object WebCacheHit extends StatisticType
+
+  /** A Web response generated for the cache. */
+  case object WebCacheMiss extends StatisticType
+
+  /** A cacheable Web response that the client already held, also counted as a hit or a miss. */
+  case object WebCacheNotModified extends StatisticType
 end StatisticType
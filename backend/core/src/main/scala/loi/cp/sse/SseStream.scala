@@ -0,0 +1,278 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.cp.sse
+
+import com.learningobjects.cpxp.component.web.HttpContext
+import com.learningobjects.cpxp.scala.actor.CpxpActorSystem
+import com.learningobjects.cpxp.util.MimeUtils
+import jakarta.servlet.http.HttpServletResponse
+import jakarta.servlet.{AsyncContext, AsyncEvent, AsyncListener, ServletOutputStream, WriteListener}
+
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import java.util
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+import scala.concurrent.duration.*
+import scala.util.Try
+
+/** A non-blocking SSE event stream. Events are queued and written by servlet async I/O as the client accepts them, so
+  * no thread blocks on a slow client. Each stream has a bounded queue; a client that falls so far behind that it
+  * fills its queue is disconnected so that it can reconnect and catch up. An event may be given a coalescing key, in
+  * which case it replaces any queued event with the same key that has not yet been written and takes its place at the
+  * back of the queue.
+  *
+  * Idle streams are sent a heartbeat by a timer wheel that is shared by all streams.
+  *
+  * @param context
+  *   the asynchronous execution context
+  * @param out
+  *   the response output stream
+  * @param heartbeat
+  *   the heartbeat event
+  * @param capacity
+  *   the maximum number of queued events
+  */
+final class SseStream private (
+  context: AsyncContext,
+  out: ServletOutputStream,
+  heartbeat: SseEvent,
+  capacity: Int,
+) extends WriteListener
+    with AsyncListener:
+  import SseStream.*
+
+  /** Queued events. Guarded by this. */
+  private val queue = new util.ArrayDeque[Queued]
+
+  /** Queued events by coalescing key. Guarded by this. */
+  private val coalescing = new util.HashMap[String, Queued]
+
+  /** Whether anything has been written since the last flush. Guarded by this. */
+  private var unflushed = false
+
+  /** Whether the stream is closing, once the queue drains. Guarded by this. */
+  private var closing = false
+
+  /** Whether the stream is closed. Guarded by this. */
+  private var closed = false
+
+  /** Whether anything has been queued since the last heartbeat. */
+  @volatile private var active = false
+
+  private val closeListener = new AtomicReference[() => Unit](() => ())
+
+  /** Queue an event to be streamed to the client.
+    *
+    * @param event
+    *   the SSE event
+    * @param key
+    *   the coalescing key, if a later event with the same key supersedes this one
+    * @return
+    *   whether the event was queued; false if the stream is closed or the client has fallen too far behind
+    */
+  def offer(event: SseEvent, key: Option[String] = None): Boolean =
+    val accepted = synchronized {
+      if closing then false
+      else
+        active = true
+        key.flatMap(k => Option(coalescing.get(k))) match
+          case Some(queued)                    =>
+            // move the superseded event to the back of the queue so that event ids are still sent in order
+            queue.remove(queued)
+            queued.event = event
+            queue.add(queued)
+            true
+          case None if queue.size >= capacity =>
+            logger.info(s"SSE client fell behind by $capacity events, disconnecting")
+            abort()
+            false
+          case None                            =>
+            val queued = new Queued(event, key.orNull)
+            queue.add(queued)
+            key foreach { coalescing.put(_, queued) }
+            drain()
+            true
+    }
+    notifyIfClosed()
+    accepted
+  end offer
+
+  /** Stream a close event to the client and then complete the request. */
+  def close(): Unit =
+    synchronized {
+      if !closing then
+        queue.add(new Queued(SseEvent.Close, null))
+        closing = true
+        drain()
+    }
+    notifyIfClosed()
+
+  /** Whether this stream is still accepting events. */
+  def isOpen: Boolean = synchronized { !closing }
+
+  /** Register a callback to be invoked once when this stream closes, including if the client disconnects. */
+  def onClose(f: () => Unit): Unit =
+    closeListener.set(f)
+    notifyIfClosed()
+
+  override def onWritePossible(): Unit =
+    synchronized { drain() }
+    notifyIfClosed()
+
+  override def onError(t: Throwable): Unit =
+    logger.debug(t)("SSE stream error")
+    synchronized { abort() }
+    notifyIfClosed()
+
+  override def onComplete(event: AsyncEvent): Unit =
+    synchronized {
+      closing = true
+      closed = true
+    }
+    Heartbeats.remove(this)
+    notifyIfClosed()
+
+  override def onTimeout(event: AsyncEvent): Unit = onError(event.getThrowable)
+
+  override def onError(event: AsyncEvent): Unit = onError(event.getThrowable)
+
+  override def onStartAsync(event: AsyncEvent): Unit = ()
+
+  /** Send a heartbeat if nothing has been sent since the last one. */
+  private def beat(): Unit =
+    if !active then offer(heartbeat, Some(HeartbeatKey))
+    active = false
+
+  /** Write queued events for as long as the client will accept them without blocking. Called with the lock held. */
+  private def drain(): Unit =
+    try
+      while !closed && out.isReady && (!queue.isEmpty || unflushed) do
+        if queue.isEmpty then
+          unflushed = false
+          out.flush()
+        else
+          val queued = queue.poll()
+          if queued.key ne null then coalescing.remove(queued.key)
+          out.write(encode(queued.event))
+          unflushed = true
+      if closing && !closed && queue.isEmpty && !unflushed then complete()
+    catch case e: IOException => onIOException(e)
+
+  private def onIOException(e: IOException): Unit =
+    logger.debug(e)("SSE stream write error")
+    abort()
+
+  /** Discard any queued events and complete the request. Called with the lock held. */
+  private def abort(): Unit =
+    queue.clear()
+    coalescing.clear()
+    closing = true
+    if !closed then complete()
+
+  /** Complete the request. Called with the lock held. */
+  private def complete(): Unit =
+    closed = true
+    Try(context.complete())
+    Heartbeats.remove(this)
+
+  /** Invoke the close listener, once, if the stream has closed. Called without the lock held. */
+  private def notifyIfClosed(): Unit =
+    if synchronized(closed) then closeListener.getAndSet(() => ())()
+end SseStream
+
+/** SSE stream companion.
+  */
+object SseStream:
+
+  /** The logger. */
+  private val logger = org.log4s.getLogger
+
+  /** The default maximum number of queued events per stream. */
+  final val DefaultCapacity = 256
+
+  /** The interval at which idle streams are sent a heartbeat. */
+  final val HeartbeatInterval = 45.seconds
+
+  /** The coalescing key of heartbeats. */
+  private final val HeartbeatKey = "\u0000heartbeat"
+
+  /** Open a non-blocking SSE event stream. This puts the response into async mode with no timeout and sets the
+    * content type.
+    *
+    * @param http
+    *   the http context
+    * @param heartbeat
+    *   the event to send to idle streams
+    * @param capacity
+    *   the maximum number of queued events
+    * @return
+    *   the SSE stream
+    */
+  def open(http: HttpContext, heartbeat: SseEvent, capacity: Int = DefaultCapacity): SseStream =
+    val context = http.request.startAsync
+    context.setTimeout(0L)
+    http.response.setStatus(HttpServletResponse.SC_OK)
+    http.response.setContentType(MimeUtils.MIME_TYPE_TEXT_EVENT_STREAM + MimeUtils.CHARSET_SUFFIX_UTF_8)
+    val out    = http.response.getOutputStream
+    val stream = new SseStream(context, out, heartbeat, capacity)
+    context.addListener(stream)
+    out.setWriteListener(stream)
+    Heartbeats.add(stream)
+    stream
+  end open
+
+  /** Encode an SSE event as it is written to the wire. */
+  private[sse] def encode(event: SseEvent): Array[Byte] =
+    val sb = new java.lang.StringBuilder
+    event.id foreach { id => sb.append("id: ").append(id).append('\n') }
+    event.`type` foreach { ev => sb.append("event: ").append(ev).append('\n') }
+    event.data.toSeq flatMap { _.split("\\r?\\n") } foreach { line => sb.append("data: ").append(line).append('\n') }
+    sb.append('\n').toString.getBytes(StandardCharsets.UTF_8)
+
+  /** A queued event. */
+  private final class Queued(var event: SseEvent, val key: String)
+
+  /** A hashed timer wheel that heartbeats every stream once per [[HeartbeatInterval]]. Streams are spread across one
+    * slot per second of the interval and each tick of a single scheduled task visits one slot, so the heartbeats of
+    * many connections neither need a timer each nor all fall due at once.
+    */
+  private object Heartbeats:
+    private final val Tick  = 1.second
+    private final val Slots = (HeartbeatInterval / Tick).toInt
+
+    private val slots = Array.fill(Slots)(ConcurrentHashMap.newKeySet[SseStream]())
+
+    @volatile private var cursor = 0
+
+    CpxpActorSystem.onActorSystem { system =>
+      system.scheduler.scheduleWithFixedDelay(Tick, Tick)(() => tick())(using system.dispatcher)
+    }
+
+    /** Add a stream to the slot furthest from the cursor, so its first heartbeat falls a whole interval later. */
+    def add(stream: SseStream): Unit = slots((cursor + Slots - 1) % Slots).add(stream)
+
+    def remove(stream: SseStream): Unit = slots.foreach(_.remove(stream))
+
+    private def tick(): Unit =
+      cursor = (cursor + 1) % Slots
+      slots(cursor) forEach { stream =>
+        stream.beat()
+      }
+  end Heartbeats
+end SseStream
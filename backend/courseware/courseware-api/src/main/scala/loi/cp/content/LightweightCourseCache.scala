@@ -20,7 +20,6 @@ package loi.cp.content
 import com.learningobjects.cpxp.util.cache.{BucketGenerationalCache, Entry as CacheEntry}
 import loi.cp.content.LightweightCourseCache.*
 import loi.cp.course.lightweight.Lwc
-import scaloi.syntax.any.*
 
 import scala.concurrent.duration.*
 
@@ -33,11 +32,8 @@ abstract class LightweightCourseCache[V >: Null]
 
   def getOrComputeIfStaleGeneration(lwc: Lwc)(compute: () => V): V =
     lwc.generation.fold(compute()) { generation =>
-      def computeAndStore(): V = compute().tap(v => put(new Entry(Key(lwc.id), (generation, v))))
-      get(Key(lwc.id)).fold(computeAndStore()) {
-        case (gen, v) if gen == generation => v
-        case _                             => computeAndStore()
-      }
+      val key = Key(lwc.id)
+      getValidOrLoad(key, _._1 == generation)(() => new Entry(key, (generation, compute())))._2
     }
 end LightweightCourseCache
 
@@ -89,10 +89,8 @@ class LtiGradeSyncServiceImpl(
     ltiColumnIntegrationService.get(section)
 
   override def syncAllGradesForColumn(course: CourseSection, edgePath: EdgePath): Map[UserId, SingleGradeHistory] =
-    gradeDao.loadByCourse(course) flatMap { case (userId, rawGrades) =>
-      rawGrades.get(edgePath) map { grade =>
-        userId -> syncGrade(course, userId, edgePath, grade)
-      }
+    gradeDao.loadGradebook(course).column(edgePath) map { case (userId, grade) =>
+      userId -> syncGrade(course, userId, edgePath, grade)
     }
 
   override def syncOutcomes1Grade(userId: UserId, course: ContextId, ep: EdgePath, grade: Option[Grade]): Unit =
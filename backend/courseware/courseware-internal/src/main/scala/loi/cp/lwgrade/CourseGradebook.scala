@@ -0,0 +1,376 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.cp.lwgrade
+
+import com.fasterxml.jackson.core.{JsonParser, JsonToken}
+import com.learningobjects.cpxp.service.user.UserId
+import loi.cp.lwgrade.Grade.*
+import loi.cp.reference.EdgePath
+
+import java.time.Instant
+import java.util
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+/** A course's grades in columnar form: a column for each edge path and a row for each user, with each column held in
+  * primitive arrays. Grades are only decoded when they are asked for, and changing a user's grades copies just the
+  * columns that changed, so a gradebook is immutable and can be cached and shared.
+  *
+  * A column may be shorter than the number of rows; the missing cells are empty.
+  */
+final class CourseGradebook private (
+  rows: Map[Long, Int],
+  rowCount: Int,
+  paths: Map[EdgePath, Int],
+  columns: Vector[CourseGradebook.Column],
+):
+  import CourseGradebook.*
+
+  /** The users who have grades in this course. */
+  def users: Set[UserId] = rows.keySet.map(UserId(_))
+
+  /** Get the grades of a user, if they have a row. */
+  def grades(user: UserId): Option[RawGrades] = rows.get(user.id).map(row)
+
+  /** Get the grade of each user who has one for an edge path. */
+  def column(path: EdgePath): Map[UserId, Grade] =
+    paths.get(path).fold(Map.empty[UserId, Grade]) { index =>
+      val column = columns(index)
+      rows.flatMap { case (user, row) => column.grade(row).map(UserId(user) -> _) }
+    }
+
+  /** Get the grades of every user. */
+  def toMap: Map[UserId, RawGrades] = rows.map { case (user, row) => UserId(user) -> this.row(row) }
+
+  /** Replace the grades of a user. */
+  def updated(user: UserId, grades: RawGrades): CourseGradebook =
+    val row                  = rows.getOrElse(user.id, rowCount)
+    val (newPaths, newCount) = grades.keys.foldLeft((paths, columns.size)) { case ((ps, n), path) =>
+      if ps.contains(path) then (ps, n) else (ps.updated(path, n), n + 1)
+    }
+    val updated              = Vector.tabulate(newCount) { index =>
+      if index < columns.size then columns(index) else Column.Empty
+    }
+    val byIndex              = newPaths.map(_.swap)
+    val changed              = updated.zipWithIndex map { case (column, index) =>
+      val grade = grades.get(byIndex(index))
+      if column.grade(row) == grade then column else column.updated(row, grade)
+    }
+    new CourseGradebook(rows.updated(user.id, row), rowCount max (row + 1), newPaths, changed)
+  end updated
+
+  /** Remove the row of a user. */
+  def removed(user: UserId): CourseGradebook =
+    rows.get(user.id).fold(this) { row =>
+      new CourseGradebook(rows - user.id, rowCount, paths, columns.map(_.updated(row, None)))
+    }
+
+  private def row(row: Int): RawGrades =
+    paths.flatMap { case (path, index) => columns(index).grade(row).map(path -> _) }
+end CourseGradebook
+
+object CourseGradebook:
+
+  /** An empty gradebook. */
+  val empty: CourseGradebook = new CourseGradebook(Map.empty, 0, Map.empty, Vector.empty)
+
+  /** Cell kinds. */
+  private final val Absent: Byte       = 0
+  private final val KGraded: Byte      = 1
+  private final val KUngraded: Byte    = 2
+  private final val KPending: Byte     = 3
+  private final val KUnassigned: Byte  = 4
+  private final val KRollup: Byte      = 5
+  private final val KNoCredit: Byte    = 6
+  private final val KExtraCredit: Byte = 7
+
+  /** The grade kinds by their JSON names, as encoded by [[Grade.gradeCodec]]. */
+  private final val KindNames = Map(
+    "graded"      -> KGraded,
+    "ungraded"    -> KUngraded,
+    "pending"     -> KPending,
+    "unassigned"  -> KUnassigned,
+    "rollup"      -> KRollup,
+    "nocredit"    -> KNoCredit,
+    "extracredit" -> KExtraCredit,
+  )
+
+  /** Field presence bits. */
+  private final val FGrade = 1
+  private final val FMax   = 2
+  private final val FDate  = 4
+
+  /** The fields that each kind requires. */
+  private def requiredFields(kind: Byte): Int = kind match
+    case KGraded | KRollup | KNoCredit => FGrade | FMax | FDate
+    case KUngraded                     => FMax
+    case KPending                      => FMax | FDate
+    case KExtraCredit                  => FGrade | FDate
+    case _                             => 0
+
+  /** One column of grades. */
+  private final class Column(
+    kinds: Array[Byte],
+    scores: Array[Double],
+    maxes: Array[Double],
+    seconds: Array[Long],
+    nanos: Array[Int],
+  ):
+    def grade(row: Int): Option[Grade] =
+      if row >= kinds.length then None
+      else
+        def date = Instant.ofEpochSecond(seconds(row), nanos(row))
+        kinds(row) match
+          case KGraded      => Some(Graded(scores(row), maxes(row), date))
+          case KUngraded    => Some(Ungraded(maxes(row)))
+          case KPending     => Some(Pending(maxes(row), date))
+          case KUnassigned  => Some(Unassigned)
+          case KRollup      => Some(Rollup(scores(row), maxes(row), date))
+          case KNoCredit    => Some(NoCredit(scores(row), maxes(row), date))
+          case KExtraCredit => Some(ExtraCredit(scores(row), date))
+          case _            => None
+
+    /** Copy this column with one cell changed. */
+    def updated(row: Int, grade: Option[Grade]): Column =
+      val length = kinds.length max (row + 1)
+      new Column(
+        util.Arrays.copyOf(kinds, length),
+        util.Arrays.copyOf(scores, length),
+        util.Arrays.copyOf(maxes, length),
+        util.Arrays.copyOf(seconds, length),
+        util.Arrays.copyOf(nanos, length),
+      ).set(row, grade)
+
+    private def set(row: Int, grade: Option[Grade]): Column =
+      def cell(kind: Byte, score: Double, max: Double, date: Instant): Unit =
+        kinds(row) = kind
+        scores(row) = score
+        maxes(row) = max
+        seconds(row) = if date eq null then 0L else date.getEpochSecond
+        nanos(row) = if date eq null then 0 else date.getNano
+      grade match
+        case None                         => cell(Absent, 0d, 0d, null)
+        case Some(Graded(g, m, d))        => cell(KGraded, g, m, d)
+        case Some(Ungraded(m))            => cell(KUngraded, 0d, m, null)
+        case Some(Pending(m, d))          => cell(KPending, 0d, m, d)
+        case Some(Unassigned)             => cell(KUnassigned, 0d, 0d, null)
+        case Some(Rollup(g, m, d))        => cell(KRollup, g, m, d)
+        case Some(NoCredit(g, m, d))      => cell(KNoCredit, g, m, d)
+        case Some(ExtraCredit(g, d))      => cell(KExtraCredit, g, 0d, d)
+      this
+  end Column
+
+  private object Column:
+    val Empty = new Column(Array.empty, Array.empty, Array.empty, Array.empty, Array.empty)
+
+  /** Builds a gradebook a row at a time, decoding grade JSON documents straight into the columns.
+    */
+  final class Builder:
+    private val rows    = mutable.HashMap.empty[Long, Int]
+    private val names   = mutable.HashMap.empty[String, Int]
+    private val indices = mutable.HashMap.empty[EdgePath, Int]
+    private val columns = mutable.ArrayBuffer.empty[ColumnBuilder]
+    private val cells   = new RowBuffer
+
+    /** Add a user's grades from a grade JSON document, as persisted by [[GradeDaoImpl]]. The row is left empty and
+      * false is returned if the document could not be decoded.
+      */
+    def addJson(user: Long, parser: JsonParser): Boolean =
+      cells.clear()
+      val decoded =
+        try
+          readDocument(parser)
+          true
+        catch case NonFatal(_) => false
+      if decoded then flush(rowFor(user))
+      decoded
+    end addJson
+
+    /** Add a user's grades. */
+    def add(user: Long, grades: RawGrades): Unit =
+      val row = rowFor(user)
+      cells.clear()
+      grades foreach { case (path, grade) =>
+        cells.add(columnFor(path), grade)
+      }
+      flush(row)
+
+    def result: CourseGradebook =
+      new CourseGradebook(rows.toMap, rows.size, indices.toMap, columns.map(_.result).toVector)
+
+    private def rowFor(user: Long): Int = rows.getOrElseUpdate(user, rows.size)
+
+    private def flush(row: Int): Unit =
+      var cell = 0
+      while cell < cells.size do
+        columns(cells.columns(cell)).set(row, cells, cell)
+        cell += 1
+
+    private def columnFor(name: String): Int = names.getOrElseUpdate(name, columnFor(EdgePath.parse(name)))
+
+    private def columnFor(path: EdgePath): Int =
+      indices.getOrElseUpdate(
+        path, {
+          columns += new ColumnBuilder
+          columns.size - 1
+        }
+      )
+
+    private def readDocument(parser: JsonParser): Unit =
+      expect(parser.nextToken(), JsonToken.START_OBJECT)
+      while parser.nextToken() == JsonToken.FIELD_NAME do
+        if parser.currentName == "grades" then readGrades(parser)
+        else
+          parser.nextToken()
+          parser.skipChildren()
+      expect(parser.currentToken, JsonToken.END_OBJECT)
+
+    private def readGrades(parser: JsonParser): Unit =
+      expect(parser.nextToken(), JsonToken.START_OBJECT)
+      while parser.nextToken() == JsonToken.FIELD_NAME do
+        val name   = parser.currentName
+        val column = columnFor(name)
+        readGrade(parser, column)
+      expect(parser.currentToken, JsonToken.END_OBJECT)
+
+    private def readGrade(parser: JsonParser, column: Int): Unit =
+      expect(parser.nextToken(), JsonToken.START_OBJECT)
+      expect(parser.nextToken(), JsonToken.FIELD_NAME)
+      val kind = KindNames.getOrElse(parser.currentName, throw new IllegalStateException(parser.currentName))
+      if kind == KUnassigned then
+        parser.nextToken()
+        parser.skipChildren()
+        cells.add(column, kind, 0d, 0d, 0L, 0)
+      else
+        expect(parser.nextToken(), JsonToken.START_OBJECT)
+        var score   = 0d
+        var max     = 0d
+        var seconds = 0L
+        var nanos   = 0
+        var fields  = 0
+        while parser.nextToken() == JsonToken.FIELD_NAME do
+          val field = parser.currentName
+          parser.nextToken()
+          field match
+            case "grade"                 =>
+              score = parser.getDoubleValue
+              fields |= FGrade
+            case "max"                   =>
+              max = parser.getDoubleValue
+              fields |= FMax
+            case "date" | "latestChange" =>
+              val date =
+                if parser.currentToken == JsonToken.VALUE_NUMBER_INT then Instant.ofEpochMilli(parser.getLongValue)
+                else Instant.parse(parser.getValueAsString)
+              seconds = date.getEpochSecond
+              nanos = date.getNano
+              fields |= FDate
+            case _                       => parser.skipChildren()
+          end match
+        end while
+        val required = requiredFields(kind)
+        if (fields & required) != required then throw new IllegalStateException(s"Incomplete grade: $kind")
+        cells.add(column, kind, score, max, seconds, nanos)
+      end if
+      // a grade is a single-field object; anything more is left for the full decoder
+      expect(parser.nextToken(), JsonToken.END_OBJECT)
+    end readGrade
+
+    private def expect(token: JsonToken, expected: JsonToken): Unit =
+      if token != expected then throw new IllegalStateException(s"Expected $expected, found $token")
+  end Builder
+
+  /** A growable column under construction. */
+  private final class ColumnBuilder:
+    private var kinds   = new Array[Byte](InitialRows)
+    private var scores  = new Array[Double](InitialRows)
+    private var maxes   = new Array[Double](InitialRows)
+    private var seconds = new Array[Long](InitialRows)
+    private var nanos   = new Array[Int](InitialRows)
+    private var length  = 0
+
+    def set(row: Int, cells: RowBuffer, cell: Int): Unit =
+      if row >= kinds.length then
+        val capacity = (kinds.length * 2) max (row + 1)
+        kinds = util.Arrays.copyOf(kinds, capacity)
+        scores = util.Arrays.copyOf(scores, capacity)
+        maxes = util.Arrays.copyOf(maxes, capacity)
+        seconds = util.Arrays.copyOf(seconds, capacity)
+        nanos = util.Arrays.copyOf(nanos, capacity)
+      kinds(row) = cells.kinds(cell)
+      scores(row) = cells.scores(cell)
+      maxes(row) = cells.maxes(cell)
+      seconds(row) = cells.seconds(cell)
+      nanos(row) = cells.nanos(cell)
+      length = length max (row + 1)
+    end set
+
+    def result: Column =
+      new Column(
+        util.Arrays.copyOf(kinds, length),
+        util.Arrays.copyOf(scores, length),
+        util.Arrays.copyOf(maxes, length),
+        util.Arrays.copyOf(seconds, length),
+        util.Arrays.copyOf(nanos, length),
+      )
+  end ColumnBuilder
+
+  /** The decoded cells of one row, held until the whole row has decoded. */
+  private final class RowBuffer:
+    var columns = new Array[Int](InitialRows)
+    var kinds   = new Array[Byte](InitialRows)
+    var scores  = new Array[Double](InitialRows)
+    var maxes   = new Array[Double](InitialRows)
+    var seconds = new Array[Long](InitialRows)
+    var nanos   = new Array[Int](InitialRows)
+    var size    = 0
+
+    def clear(): Unit = size = 0
+
+    def add(column: Int, kind: Byte, score: Double, max: Double, second: Long, nano: Int): Unit =
+      if size == columns.length then
+        val capacity = size * 2
+        columns = util.Arrays.copyOf(columns, capacity)
+        kinds = util.Arrays.copyOf(kinds, capacity)
+        scores = util.Arrays.copyOf(scores, capacity)
+        maxes = util.Arrays.copyOf(maxes, capacity)
+        seconds = util.Arrays.copyOf(seconds, capacity)
+        nanos = util.Arrays.copyOf(nanos, capacity)
+      columns(size) = column
+      kinds(size) = kind
+      scores(size) = score
+      maxes(size) = max
+      seconds(size) = second
+      nanos(size) = nano
+      size += 1
+    end add
+
+    def add(column: Int, grade: Grade): Unit =
+      grade match
+        case Graded(g, m, d)   => add(column, KGraded, g, m, d.getEpochSecond, d.getNano)
+        case Ungraded(m)       => add(column, KUngraded, 0d, m, 0L, 0)
+        case Pending(m, d)     => add(column, KPending, 0d, m, d.getEpochSecond, d.getNano)
+        case Unassigned        => add(column, KUnassigned, 0d, 0d, 0L, 0)
+        case Rollup(g, m, d)   => add(column, KRollup, g, m, d.getEpochSecond, d.getNano)
+        case NoCredit(g, m, d) => add(column, KNoCredit, g, m, d.getEpochSecond, d.getNano)
+        case ExtraCredit(g, d) => add(column, KExtraCredit, g, 0d, d.getEpochSecond, d.getNano)
+
+  end RowBuffer
+
+  private final val InitialRows = 16
+end CourseGradebook
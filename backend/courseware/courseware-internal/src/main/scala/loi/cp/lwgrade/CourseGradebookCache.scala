@@ -0,0 +1,109 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package loi.cp.lwgrade
+
+import com.learningobjects.cpxp.coherence.DeferredCoherence
+import com.learningobjects.cpxp.util.EntityContext
+import com.learningobjects.cpxp.util.cache.{BucketGenerationalCache, Entry as CacheEntry}
+import com.learningobjects.cpxp.util.tx.AfterTransactionCompletionListener
+import loi.cp.lwgrade.CourseGradebookCache.*
+import scaloi.syntax.AnyOps.*
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicLongArray
+import scala.collection.mutable
+import scala.concurrent.duration.*
+
+/** Caches the gradebook of each course. Grades do not depend on the course structure so, unlike the lightweight course
+  * caches, this is keyed by course alone.
+  *
+  * Committed grade changes are applied to the cached gradebook on this node, so recording a grade does not cost a
+  * reload of the whole course, and evict it on every other node. A load that was underway when a change was committed
+  * is not cached, nor is a load by a transaction that has itself changed the gradebook.
+  */
+final class CourseGradebookCache
+    extends BucketGenerationalCache[Key, CourseGradebook, Entry](
+      itemAware = false,
+      replicated = true,
+      timeout = 5.minutes,
+    ):
+
+  /** Bumped by every change to a course gradebook, to detect loads that raced a change. */
+  private val epochs = new AtomicLongArray(Stripes)
+
+  def getOrLoad(course: Long)(load: () => CourseGradebook): CourseGradebook =
+    val key = Key(course)(Origin)
+    if pending.get.contains(course) then load()
+    else
+      get(key) getOrElse loads(key) {
+        val epoch = epochs.get(stripe(course))
+        load() <| { gradebook =>
+          synchronized {
+            if epochs.get(stripe(course)) == epoch then put(new Entry(key, gradebook))
+          }
+        }
+      }
+  end getOrLoad
+
+  /** Apply a change to the cached gradebook of a course once the current transaction commits. */
+  def onCommit(course: Long)(change: CourseGradebook => CourseGradebook): Unit =
+    val listener = new AfterTransactionCompletionListener:
+      override def onCommit(): Unit =
+        pending.get.remove(course)
+        applyChange(course, change)
+
+      override def onRollback(): Unit =
+        pending.get.remove(course)
+    if EntityContext.onCompletion(listener) then pending.get.add(course)
+    else applyChange(course, change)
+    DeferredCoherence.removeEntry(this, Key(course)(Origin))
+  end onCommit
+
+  private def applyChange(course: Long, change: CourseGradebook => CourseGradebook): Unit = synchronized {
+    epochs.incrementAndGet(stripe(course))
+    val key = Key(course)(Origin)
+    get(key) foreach { gradebook =>
+      put(new Entry(key, change(gradebook)))
+    }
+  }
+
+  /** Evictions broadcast by this node are ignored here because the change has already been applied. */
+  override def remove(key: Key, propagate: Boolean): Unit =
+    if propagate || (key.origin != Origin) then
+      synchronized {
+        epochs.incrementAndGet(stripe(key.courseId))
+        super.remove(key, propagate)
+      }
+end CourseGradebookCache
+
+object CourseGradebookCache:
+
+  /** Identifies this node as the origin of an eviction. */
+  private final val Origin = UUID.randomUUID.toString
+
+  private final val Stripes = 64
+
+  private def stripe(course: Long): Int = (course & (Stripes - 1)).toInt
+
+  /** The courses whose gradebooks the current transaction has changed. */
+  private final val pending = ThreadLocal.withInitial(() => mutable.Set.empty[Long])
+
+  final case class Key(courseId: Long)(val origin: String) extends Serializable
+
+  final class Entry(key: Key, value: CourseGradebook) extends CacheEntry[Key, CourseGradebook](key, value)
+end CourseGradebookCache
@@ -44,6 +44,11 @@ trait GradeDao:
 
   def loadByCourse(course: ContextId): Map[UserId, RawGrades]
 
+  /** Loads the grades of every user in the course as a [[CourseGradebook]], from which single users or columns can be
+    * read without decoding the rest. Does not compute rollup.
+    */
+  def loadGradebook(course: ContextId): CourseGradebook
+
   def loadUserIdsByCourse(course: ContextId): List[Long]
 
   def delete(user: UserId, course: ContextId): Unit
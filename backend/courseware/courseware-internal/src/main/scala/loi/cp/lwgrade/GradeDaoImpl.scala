@@ -18,18 +18,23 @@
 package loi.cp.lwgrade
 
 import argonaut.Argonaut.*
+import argonaut.Parse
 import com.learningobjects.cpxp.component.annotation.Service
+import com.learningobjects.cpxp.component.web.util.JacksonUtils
 import com.learningobjects.cpxp.scala.cpxp.Facade.*
 import com.learningobjects.cpxp.scala.json.ArgoOps.*
 import com.learningobjects.cpxp.service.facade.FacadeService
 import com.learningobjects.cpxp.service.grade.LWGradeFinder
 import com.learningobjects.cpxp.service.query.{BaseCondition, BaseDataProjection, Comparison}
 import com.learningobjects.cpxp.service.user.UserId
+import com.learningobjects.cpxp.util.{EntityContext, ManagedUtils}
 import loi.cp.context.ContextId
+import org.hibernate.Session
 import scalaz.NonEmptyList
 import scaloi.syntax.CollectionOps.*
 
 import scala.jdk.CollectionConverters.*
+import scala.util.Using
 
 /** This class is responsible for storing grades to the database. It creates a row for each user and course, persisting
   * a JSON document containing all the grades user has received.
@@ -44,9 +49,12 @@ import scala.jdk.CollectionConverters.*
   * course? What are the semantics for the grade book if that is the case?
   */
 @Service
-final class GradeDaoImpl(implicit
+final class GradeDaoImpl(
+  gradebookCache: CourseGradebookCache,
+)(implicit
   facadeService: FacadeService,
 ) extends GradeDao:
+  import GradeDaoImpl.*
 
   def loadOrCreate(user: UserId, course: ContextId): RawGrades =
     parseGrades(fetchGradeFacade(user, course))
@@ -72,19 +80,37 @@ final class GradeDaoImpl(implicit
 
   def save(user: UserId, course: ContextId, newGradeBook: RawGrades): Unit =
     fetchGradeFacade(user, course).setGradeGraph(GradeJson(newGradeBook).asJson)
+    gradebookCache.onCommit(course.id)(_.updated(user, newGradeBook))
 
   // TODO: init gradebooks for enrolled users that have not been created yet.
   def loadByCourse(course: ContextId): Map[UserId, RawGrades] =
-    val gradeFacades = course
-      .facade[LWGradeParentFacade]
-      .queryLWGrades
-      .addCondition(BaseCondition.getInstance(LWGradeFinder.DATA_TYPE_LIGHTWEIGHT_COURSE, Comparison.eq, course))
-      .getFacades[LWGradeFacade]
-
-    gradeFacades
-      .map(lwgf => UserId(lwgf.getUser) -> parseGrades(lwgf))
-      .toMap
-  end loadByCourse
+    loadGradebook(course).toMap
+
+  override def loadGradebook(course: ContextId): CourseGradebook =
+    gradebookCache.getOrLoad(course.id)(() => queryGradebook(course))
+
+  /** Reads the grade documents of a course straight into a gradebook, bypassing the entity layer. Documents that the
+    * streaming decoder does not understand are decoded in full.
+    */
+  private def queryGradebook(course: ContextId): CourseGradebook =
+    val builder = new CourseGradebook.Builder
+    val session = ManagedUtils.getEntityContext.getEntityManager.unwrap(classOf[Session])
+    if EntityContext.inTransaction then session.flush()
+    session.doWork { con =>
+      Using.resource(con.prepareStatement(GradebookQuery)) { stmt =>
+        stmt.setFetchSize(FetchSize)
+        stmt.setLong(1, course.id)
+        Using.resource(stmt.executeQuery()) { rs =>
+          while rs.next() do
+            val user = rs.getLong(1)
+            val json = rs.getString(2)
+            val read = Using.resource(JacksonUtils.getMapper.getFactory.createParser(json))(builder.addJson(user, _))
+            if !read then builder.add(user, parseGrades(user, json))
+        }
+      }
+    }
+    builder.result
+  end queryGradebook
 
   override def loadUserIdsByCourse(course: ContextId): List[Long] =
     course
@@ -102,6 +128,7 @@ final class GradeDaoImpl(implicit
   def delete(user: UserId, course: ContextId): Unit =
     course.facade[LWGradeParentFacade].getLWGrade(user = user.id, course = course.id) foreach { facade =>
       facade.delete()
+      gradebookCache.onCommit(course.id)(_.removed(user))
     }
 
   def transferGrades(user: UserId, srcCourse: ContextId, tgtCourse: ContextId): Unit =
@@ -109,6 +136,7 @@ final class GradeDaoImpl(implicit
       val srcGrades = parseGrades(srcGradeFacade)
       save(user, tgtCourse, srcGrades)
       srcGradeFacade.delete()
+      gradebookCache.onCommit(srcCourse.id)(_.removed(user))
     }
 
   // JSON parse failures are fatal, like a dropped column would be
@@ -118,10 +146,25 @@ final class GradeDaoImpl(implicit
       .map(_.grades)
       .get
 
+  private def parseGrades(user: Long, json: String): RawGrades =
+    Parse
+      .parse(json)
+      .valueOr(err => throw new IllegalStateException(s"json parse failure on grade for user $user: $err"))
+      .as_![GradeJson](s"json parse failure on grade for user $user")
+      .map(_.grades)
+      .get
+
   private def fetchGradeFacade(user: UserId, course: ContextId): LWGradeFacade =
     course
       .facade[LWGradeParentFacade]
-      .getOrCreateLWGrade(user = user.id, course = course.id) {
-        _.setGradeGraph(GradeJson(Map.empty).asJson)
+      .getOrCreateLWGrade(user = user.id, course = course.id) { facade =>
+        facade.setGradeGraph(GradeJson(Map.empty).asJson)
+        gradebookCache.onCommit(course.id)(_.updated(user, Map.empty))
       }
 end GradeDaoImpl
+
+object GradeDaoImpl:
+  private final val GradebookQuery =
+    "SELECT user_id, graphjson FROM lwgradefinder WHERE course_id = ? AND del IS NULL"
+
+  private final val FetchSize = 512
@@ -119,16 +119,28 @@ class LightweightProgressServiceImpl(
   ): NonLeafProgressRequest \/ ProgressMap =
 
     assertLeafPaths(section.contents, changes.map(_.path).toSet).map(_ =>
-      val oldEntity = getOrInitEntity(user.id, section, gradebook)
-      val change    = changes.foldMap(applyChange)
-      val newNodes  = rollUp(section, gradebook, change(oldEntity.map))
-      val newEntity = dao.saveUserProgress(
-        userId = user.id,
-        courseId = section.id,
-        generation = section.generation,
-        map = newNodes,
-        lastModified = if changes.isEmpty then oldEntity.lastModified else Some(now.instant)
-      )
+      val stored       = dao.loadUserProgress(user.id, section.id, forUpdate = true)
+      val oldEntity    = stored.getOrElse {
+        UserProgressEntity(rollUp(section, gradebook, Map.empty), None, section.generation)
+      }
+      val change       = changes.foldMap(applyChange)
+      val newNodes     = rollUp(section, gradebook, change(oldEntity.map))
+      val lastModified = if changes.isEmpty then oldEntity.lastModified else Some(now.instant)
+      val newEntity    = stored match
+        // same generation, so just log the nodes that changed rather than rewrite the whole map
+        case Some(entity) if section.generation =&= entity.generation =>
+          val changed = newNodes.filter({ case (path, node) => !entity.map.get(path).contains(node) })
+          if changed.isEmpty && lastModified == entity.lastModified then entity
+          else dao.appendUserProgress(user.id, section.id, entity, changed, lastModified)
+        case _                                                        =>
+          dao.saveUserProgress(
+            userId = user.id,
+            courseId = section.id,
+            generation = section.generation,
+            map = newNodes,
+            lastModified = lastModified,
+            discardDeltas = stored.exists(_.deltas > 0)
+          )
 
       emitProgressPutEvent(section, user.id, oldEntity.map, newNodes)
       sendUpdate(section, user, newEntity)
@@ -199,11 +211,6 @@ class LightweightProgressServiceImpl(
   ): ProgressMap =
     ProgressMap(nodes.view.mapValues(_.toWebProgress).toMap.asJava, lastModified)
 
-  private def getOrInitEntity(userId: Long, section: CourseSection, gradebook: StudentGradebook): UserProgressEntity =
-    dao.loadUserProgress(userId, section.id, forUpdate = true).getOrElse {
-      UserProgressEntity(rollUp(section, gradebook, Map.empty), None, section.generation)
-    }
-
   override def deleteProgress(
     section: CourseSection,
     user: UserId,
@@ -49,13 +49,33 @@ class ProgressDao(
         if forUpdate then
           session.flush(); pf.refresh(pessi = true)
       })
-      .map(UserProgressEntity.fromFaçade)
+      .map(pf => UserProgressEntity.merge(UserProgressEntity.fromFaçade(pf), loadDeltas(userId, courseId)))
 
   def loadUserProgresses(userIds: List[Long], courseId: Long): Map[UserId, UserProgressEntity] =
 
     if userIds.isEmpty then Map.empty
     else
 
+      val deltas = session
+        .createQuery(
+          """
+        |FROM UserProgressDeltaFinder d
+        |WHERE d.parent.id IN :userIds
+        |  AND d.course.id = :courseId
+        |  AND d.del IS NULL
+        |  AND d.root.id = :rootId
+        |ORDER BY d.sequence
+      """.stripMargin,
+          classOf[UserProgressDeltaFinder]
+        )
+        .setParameter("userIds", userIds.boxInside().asJava)
+        .setParameter("courseId", courseId)
+        .setParameter("rootId", domain.id)
+        .getResultList
+        .asScala
+        .toSeq
+        .groupBy(_.parent.getId.longValue)
+
       session
         .createQuery(
           """
@@ -72,12 +92,38 @@ class ProgressDao(
         .setParameter("rootId", domain.id)
         .getResultList
         .asScala
-        .map(finder => UserId(finder.parent.getId) -> UserProgressEntity.fromFinder(finder))
+        .map(finder =>
+          val userId = finder.parent.getId.longValue
+          UserId(userId) -> UserProgressEntity.merge(
+            UserProgressEntity.fromFinder(finder),
+            deltas.getOrElse(userId, Nil)
+          )
+        )
         .toMap
 
   def loadUserProgresses(courseId: Long): Seq[(Long, UserProgressEntity)] =
+    val deltas = session
+      .createQuery(
+        """
+          |FROM UserProgressDeltaFinder d
+          |WHERE d.course.id = :courseId
+          |  AND d.del IS NULL
+          |  AND d.root.id = :rootId
+          |ORDER BY d.sequence
+          |""".stripMargin,
+        classOf[UserProgressDeltaFinder]
+      )
+      .setParameter("courseId", courseId)
+      .setParameter("rootId", domain.id)
+      .getResultList
+      .asScala
+      .toSeq
+      .groupBy(_.parent.getId.longValue)
     for façade <- courseId.facade[CourseProgressRelativeFacade].getProgresses(courseId)
-    yield façade.getParentId.longValue -> UserProgressEntity.fromFaçade(façade)
+    yield
+      val userId = façade.getParentId.longValue
+      userId -> UserProgressEntity.merge(UserProgressEntity.fromFaçade(façade), deltas.getOrElse(userId, Nil))
+  end loadUserProgresses
 
   /** Loads the user IDs of progress documents for `sectionId` whose generation is less than `generation.`
     */
@@ -105,12 +151,17 @@ class ProgressDao(
       .toList
       .map(_.longValue)
 
+  /** Saves a user's progress in full.
+    * @param discardDeltas
+    *   whether the user's progress may have deltas logged since it was last saved in full, which are now compacted
+    */
   def saveUserProgress(
     userId: Long,
     courseId: Long,
     generation: Option[Long],
     map: Map[EdgePath, UserProgressNode],
     lastModified: Option[Instant],
+    discardDeltas: Boolean,
   ): UserProgressEntity =
 
     def update(facade: UserProgressFacade): Unit =
@@ -133,9 +184,34 @@ class ProgressDao(
       .result
 
     generation foreach facade.setGeneration
+    // the whole map has been written so any deltas are now compacted
+    if discardDeltas then deleteDeltas(userId, courseId)
     UserProgressEntity.fromFaçade(facade)
   end saveUserProgress
 
+  /** Records changes to a user's progress, which must have been loaded for update, by appending just the changed nodes
+    * to their progress delta log. Once the log reaches [[ProgressDao.CompactionThreshold]] entries the merged progress
+    * is instead saved in full, which discards the log.
+    */
+  def appendUserProgress(
+    userId: Long,
+    courseId: Long,
+    progress: UserProgressEntity,
+    changes: Map[EdgePath, UserProgressNode],
+    lastModified: Option[Instant],
+  ): UserProgressEntity =
+    if progress.deltas >= ProgressDao.CompactionThreshold then
+      val map = progress.map ++ changes
+      saveUserProgress(userId, courseId, progress.generation, map, lastModified, discardDeltas = true)
+    else
+      userId.facade[UserProgressParentFacade].addProgressDelta { delta =>
+        delta.setCourse(courseId)
+        delta.setSequence(progress.deltas)
+        delta.setChanges(changes.asJson)
+        delta.setLastModified(lastModified)
+      }
+      progress.copy(map = progress.map ++ changes, lastModified = lastModified, deltas = progress.deltas + 1)
+
   def deleteUserProgress(
     userId: Long,
     sectionId: Long,
@@ -143,6 +219,42 @@ class ProgressDao(
     userId.facade[UserProgressParentFacade].getProgress(sectionId) foreach { facade =>
       facade.delete()
     }
+    deleteDeltas(userId, sectionId)
+
+  private def loadDeltas(userId: Long, courseId: Long): Seq[UserProgressDeltaFinder] =
+    session
+      .createQuery(
+        """
+          |FROM UserProgressDeltaFinder d
+          |WHERE d.parent.id = :userId
+          |  AND d.course.id = :courseId
+          |  AND d.del IS NULL
+          |  AND d.root.id = :rootId
+          |ORDER BY d.sequence
+          |""".stripMargin,
+        classOf[UserProgressDeltaFinder]
+      )
+      .setParameter("userId", userId)
+      .setParameter("courseId", courseId)
+      .setParameter("rootId", domain.id)
+      .getResultList
+      .asScala
+      .toSeq
+
+  private def deleteDeltas(userId: Long, courseId: Long): Unit =
+    session
+      .createMutationQuery(
+        """
+          |DELETE FROM UserProgressDeltaFinder d
+          |WHERE d.parent.id = :userId
+          |  AND d.course.id = :courseId
+          |  AND d.root.id = :rootId
+          |""".stripMargin
+      )
+      .setParameter("userId", userId)
+      .setParameter("courseId", courseId)
+      .setParameter("rootId", domain.id)
+      .executeUpdate()
 
   def transferUserProgress(
     userId: Long,
@@ -155,11 +267,25 @@ class ProgressDao(
     parent
       .getProgress(srcCrsId)
       .foreach(srcFacade =>
-        val srcEntity   = UserProgressEntity.fromFaçade(srcFacade)
+        val srcDeltas   = loadDeltas(userId, srcCrsId)
+        val srcEntity   = UserProgressEntity.merge(UserProgressEntity.fromFaçade(srcFacade), srcDeltas)
         val dstEntity   = adjust(srcEntity)
-        val dstProgress =
-          saveUserProgress(userId, dstCrsId, dstEntity.generation, dstEntity.map, srcEntity.lastModified)
+        // any existing progress in the destination is replaced, deltas and all
+        val dstProgress = saveUserProgress(
+          userId,
+          dstCrsId,
+          dstEntity.generation,
+          dstEntity.map,
+          srcEntity.lastModified,
+          discardDeltas = true
+        )
         srcFacade.delete()
+        deleteDeltas(userId, srcCrsId)
       )
   end transferUserProgress
 end ProgressDao
+
+object ProgressDao:
+
+  /** The number of progress deltas after which the next change compacts them into the progress map. */
+  final val CompactionThreshold = 32
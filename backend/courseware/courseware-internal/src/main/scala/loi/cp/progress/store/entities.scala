@@ -21,7 +21,7 @@ package store
 import argonaut.Json
 import com.learningobjects.cpxp.dto.*
 import com.learningobjects.cpxp.entity.LeafEntity
-import com.learningobjects.cpxp.entity.annotation.DataType
+import com.learningobjects.cpxp.entity.annotation.{DataType, SqlIndex}
 import com.learningobjects.cpxp.postgresql.ArgonautUserType
 import com.learningobjects.cpxp.service.group.GroupFinder
 import com.learningobjects.cpxp.service.user.{UserFacade, UserFinder}
@@ -64,6 +64,42 @@ object UserProgressFinder:
   final val DATA_TYPE_USER_PROGRESS_LAST_MODIFIED = "UserProgress.lastModified"
   final val DATA_TYPE_USER_PROGRESS_GENERATION    = "UserProgress.generation"
 
+/** An entry in the log of changes to a user's progress in a course since their [[UserProgressFinder]] was last
+  * written. Each entry holds just the progress nodes that changed, so recording a visit does not rewrite the whole
+  * progress map; the log is compacted into the progress map once it grows long. Deltas are only ever appended or hard
+  * deleted, so they are not cached.
+  */
+@Entity
+@SqlIndex(name = "userprogressdeltafinder_parent_course_idx", value = "(parent_id, course_id) WHERE del IS NULL")
+class UserProgressDeltaFinder extends LeafEntity:
+  import UserProgressDeltaFinder.*
+
+  @ManyToOne(optional = false)
+  @DataType(DATA_TYPE_USER_PROGRESS_DELTA_COURSE)
+  var course: GroupFinder = scala.compiletime.uninitialized
+
+  @Column(nullable = false)
+  @DataType(DATA_TYPE_USER_PROGRESS_DELTA_SEQUENCE)
+  var sequence: jl.Long = 0L
+
+  @Column(nullable = false, columnDefinition = "JSONB")
+  @Type(classOf[ArgonautUserType])
+  @JdbcType(classOf[PostgreSQLJsonPGObjectJsonbType])
+  @DataType(DATA_TYPE_USER_PROGRESS_DELTA_CHANGES)
+  var changes: Json = scala.compiletime.uninitialized
+
+  @Column
+  @DataType(DATA_TYPE_USER_PROGRESS_DELTA_LAST_MODIFIED)
+  var lastModified: Date = scala.compiletime.uninitialized
+end UserProgressDeltaFinder
+
+object UserProgressDeltaFinder:
+  final val ITEM_TYPE_USER_PROGRESS_DELTA               = "UserProgressDelta"
+  final val DATA_TYPE_USER_PROGRESS_DELTA_COURSE        = "UserProgressDelta.course"
+  final val DATA_TYPE_USER_PROGRESS_DELTA_SEQUENCE      = "UserProgressDelta.sequence"
+  final val DATA_TYPE_USER_PROGRESS_DELTA_CHANGES       = "UserProgressDelta.changes"
+  final val DATA_TYPE_USER_PROGRESS_DELTA_LAST_MODIFIED = "UserProgressDelta.lastModified"
+
 @FacadeItem(UserProgressFinder.ITEM_TYPE_USER_PROGRESS)
 trait UserProgressFacade extends Facade:
   @FacadeParent
@@ -85,6 +121,25 @@ trait UserProgressFacade extends Facade:
   def refresh(pessi: Boolean): Unit
 end UserProgressFacade
 
+@FacadeItem(UserProgressDeltaFinder.ITEM_TYPE_USER_PROGRESS_DELTA)
+trait UserProgressDeltaFacade extends Facade:
+  @FacadeData(UserProgressDeltaFinder.DATA_TYPE_USER_PROGRESS_DELTA_COURSE)
+  def getCourse: Long
+  def setCourse(id: Long): Unit
+
+  @FacadeData(UserProgressDeltaFinder.DATA_TYPE_USER_PROGRESS_DELTA_SEQUENCE)
+  def getSequence: Long
+  def setSequence(sequence: Long): Unit
+
+  @FacadeData(UserProgressDeltaFinder.DATA_TYPE_USER_PROGRESS_DELTA_CHANGES)
+  def getChanges: Json
+  def setChanges(json: Json): Unit
+
+  @FacadeData(UserProgressDeltaFinder.DATA_TYPE_USER_PROGRESS_DELTA_LAST_MODIFIED)
+  def getLastModified: Option[Instant]
+  def setLastModified(lm: Option[Instant]): Unit
+end UserProgressDeltaFacade
+
 @FacadeItem(UserFinder.ITEM_TYPE_USER)
 trait UserProgressParentFacade extends UserFacade:
   @FacadeChild
@@ -97,6 +152,8 @@ trait UserProgressParentFacade extends UserFacade:
     courseId: Long,
     init: UserProgressFacade => Unit
   ): GetOrCreate[UserProgressFacade]
+  @FacadeChild
+  def addProgressDelta(init: UserProgressDeltaFacade => Unit): UserProgressDeltaFacade
   def refresh(pessi: Boolean): Unit
   def jefresh(): Unit = refresh(pessi = true)
 end UserProgressParentFacade
@@ -95,11 +95,14 @@ end UserProgressNode
   *   timestamp when learner activity changed the visitation-based progress. Content-update recalculation can change
   *   visitation-based progress without changing lastModified because content-update recalculation is not learner
   *   activity. Grade-based progress changes do not change lastModified.
+  * @param deltas
+  *   the number of [[UserProgressDeltaFinder deltas]] that have been merged into this since it was last compacted
   */
 final case class UserProgressEntity(
   map: Map[EdgePath, UserProgressNode],
   lastModified: Option[Instant],
   generation: Option[Long],
+  deltas: Int = 0,
 ):
   def toWebProgress(user: UserId): report.ProgressReport = report.ProgressReport(
     user.id,
@@ -126,4 +129,17 @@ object UserProgressEntity:
       .get
 
     UserProgressEntity(map, Option(f.lastModified).map(_.toInstant), Option(f.generation))
+
+  /** Merge a user's progress deltas, in sequence order, into their progress. */
+  def merge(entity: UserProgressEntity, deltas: Seq[UserProgressDeltaFinder]): UserProgressEntity =
+    deltas.foldLeft(entity) { (acc, delta) =>
+      val changes = delta.changes
+        .as_![Map[EdgePath, UserProgressNode]](s"cannot decode userprogressdeltafinder ${delta.getId}")
+        .get
+      acc.copy(
+        map = acc.map ++ changes,
+        lastModified = Option(delta.lastModified).map(_.toInstant) orElse acc.lastModified,
+        deltas = acc.deltas + 1
+      )
+    }
 end UserProgressEntity
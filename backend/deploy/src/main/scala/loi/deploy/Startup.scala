@@ -142,7 +142,9 @@ object Startup:
         val fileCacheConfig = config.getConfig("com.learningobjects.cpxp.cache.file")
         val baseDir         = new File(fileCacheConfig.getString("basedir"))
         val attachmentSize  = fileCacheConfig.getLong("attachmentSize")
-        FileCache.getInstance().configure(baseDir, attachmentSize)
+        val maxSize         = fileCacheConfig.getLong("maxSize")
+        FileCache.getInstance().configure(baseDir, attachmentSize, maxSize)
+        CompressedVariants.getInstance().configure(config.getBoolean("com.learningobjects.cpxp.sendfile.gzip"))
         HttpUtils.configure(config)
         ThreadTerminator.configure(config.getLong("com.learningobjects.cpxp.util.threadTimeout"))
       }
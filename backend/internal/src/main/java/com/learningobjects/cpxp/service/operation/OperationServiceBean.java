@@ -22,6 +22,8 @@ import com.learningobjects.cpxp.operation.Executor;
 import com.learningobjects.cpxp.operation.ProxyOperation;
 import com.learningobjects.cpxp.schedule.Scheduled;
 import com.learningobjects.cpxp.service.BasicServiceBean;
+import com.learningobjects.cpxp.service.query.QueryStatementCache;
+import com.learningobjects.cpxp.util.FileCache;
 import com.learningobjects.cpxp.util.ManagedUtils;
 import com.learningobjects.cpxp.util.Operation;
 import com.learningobjects.cpxp.util.task.Priority;
@@ -91,5 +93,7 @@ public class OperationServiceBean extends BasicServiceBean implements OperationS
     public void logStuff() {
         Executor.getExecutor().logStuff();
         CacheInjector.logStuff();
+        QueryStatementCache.logStuff();
+        FileCache.getInstance().logStatistics();
     }
 }
@@ -166,6 +166,7 @@ public class StaticServlet extends AbstractServlet {
                 return null;
             }
             boolean stale = streamer.getLastModified() > handle.getFile().lastModified();
+            boolean created = false;
             if (stale || !handle.exists()) {
                 handle.recreate(); // may change handle File
                 try {
@@ -173,6 +174,7 @@ public class StaticServlet extends AbstractServlet {
                         streamer.stream(request, out);
                     }
                     handle.created();
+                    created = !handle.isTemporary();
                 } catch (Exception ex) {
                     handle.failed();
                     throw new RuntimeException("Compound error", ex);
@@ -193,6 +195,10 @@ public class StaticServlet extends AbstractServlet {
             fileInfo.setDisposition(HttpUtils.getDisposition(HttpUtils.DISPOSITION_INLINE, fileName)); // HACK: Because grizzly always sets a disposition otherwise
             fileInfo.setLastModified(new Date(streamer.getLastModified()));
             fileInfo.setContentType(getMimeType(fileName, streamer.isLocalized()));
+            if (created) {
+                // compress the new file now rather than on its first request
+                CompressedVariants.getInstance().precompress(fileInfo);
+            }
             return fileInfo;
         } finally {
             streamer.deref();
@@ -17,21 +17,22 @@
 
 package loi.cp.presence
 
-import java.io.PrintWriter
-
-import org.apache.pekko.actor.{Actor, ActorRef, ActorRefFactory, PoisonPill, Props, ReceiveTimeout, Terminated}
+import org.apache.pekko.actor.{Actor, ActorRef, ActorRefFactory, PoisonPill, Props, Terminated}
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.learningobjects.cpxp.component.web.HttpContext
 import com.learningobjects.cpxp.scala.actor.TaggedActors.*
 import com.learningobjects.cpxp.service.presence.EventType
 import loi.cp.presence.PresenceActor.Subscribe
-import loi.cp.sse.{SseEvent, SseWriter}
+import loi.cp.presence.SceneActor.ScenePresence
+import loi.cp.sse.{SseEvent, SseStream}
 
-import scala.concurrent.duration.*
 import scalaz.{@@, Tag}
 
 // TODO: This is basically the same as the StartupSseActor. Unify them.
 
-/** The SSE actor is responsible for streaming presence messages to a client over an SSE stream.
+/** The SSE actor is responsible for streaming presence messages to a client over an SSE stream. The stream is
+  * non-blocking, so this never waits on the client; a scene presence update supersedes any earlier update for the same
+  * scene that the client has not yet been sent. Heartbeats are sent by the stream.
   *
   * @param presence
   *   the presence actor
@@ -43,15 +44,15 @@ import scalaz.{@@, Tag}
 class SseActor(
   presence: PresenceActor.Ref,
   lastEventId: Option[Long],
-  out: PrintWriter,
+  out: SseStream,
   mapper: ObjectMapper
 ) extends Actor:
   import SseActor.*
 
-  /** Before startup, subscribe to the presence actor, schedule the heartbeat and send a start message.
+  /** Before startup, subscribe to the presence actor, stop when the stream closes and send a start message.
     */
   override def preStart(): Unit =
-    context setReceiveTimeout HeartbeatInterval
+    out.onClose(() => self ! PoisonPill)
     context `watch` presence
     presence ! Subscribe(lastEventId)
     stream(StartEvent)
@@ -59,14 +60,13 @@ class SseActor(
   /** After stop, send a close event.
     */
   override def postStop(): Unit =
-    stream(SseEvent.Close)
+    out.close()
 
   /** The actor message handler.
     */
   override val receive: Receive = {
     // TODO: refactor to accept any message that implements an SSE message trait?
     case PresenceActor.Event(id, event, body) => onEvent(id, event, body)
-    case ReceiveTimeout                       => onReceiveTimeout()
     case Terminated(_)                        => onTerminated()
   }
 
@@ -81,12 +81,10 @@ class SseActor(
     */
   private def onEvent(id: Long, event: String, body: Any): Unit =
     logger.debug(s"SseActor $self stream event $id / $event / $body")
-    stream(SseEvent(id.toString, event, mapper.writeValueAsString(body)))
-
-  /** Send a periodic heartbeat message.
-    */
-  private def onReceiveTimeout(): Unit =
-    stream(HeartbeatEvent)
+    val key = body match
+      case ScenePresence(scene, _) => Some(s"${ScenePresence.Type}:$scene")
+      case _                       => None
+    stream(SseEvent(id.toString, event, mapper.writeValueAsString(body)), key)
 
   /** Send a session-end message and terminate this actor if the associated presence actor dies.
     */
@@ -102,16 +100,17 @@ class SseActor(
     *   the event type
     */
   private def stream[A: EventType](event: A): Unit =
-    stream(SseEvent(EventType[A].eventType(event), mapper.writeValueAsString(event)))
+    stream(controlEvent(event, mapper), None)
 
-  /** Stream an event to the client and poison this actor if the connection has died.
+  /** Queue an event for the client and poison this actor if the connection has died or fallen too far behind.
     *
     * @param event
     *   the SSE event
+    * @param key
+    *   the coalescing key of the event
     */
-  private def stream(event: SseEvent): Unit =
-    if !out.checkError then out `stream` event
-    if out.checkError then self ! PoisonPill
+  private def stream(event: SseEvent, key: Option[String]): Unit =
+    if !out.offer(event, key) then self ! PoisonPill
 end SseActor
 
 /** The SSE actor companion.
@@ -124,14 +123,14 @@ object SseActor:
   /** A reference to an SSE actor. */
   type Ref = ActorRef @@ SseActor
 
-  /** Create a new SSE actor.
+  /** Open an SSE stream and create a new SSE actor to stream to it.
     *
     * @param presence
     *   the associated presence actor
     * @param lastEventId
     *   the last seen event ID
-    * @param out
-    *   the SSE stream
+    * @param http
+    *   the http context
     * @param factory
     *   the actor factory
     * @param mapper
@@ -139,14 +138,16 @@ object SseActor:
     * @return
     *   the new SSE actor reference
     */
-  def create(presence: PresenceActor.Ref, lastEventId: Option[Long], out: PrintWriter)(implicit
+  def create(presence: PresenceActor.Ref, lastEventId: Option[Long], http: HttpContext)(implicit
     factory: ActorRefFactory,
     mapper: ObjectMapper
   ): Ref =
+    val out = SseStream.open(http, controlEvent(HeartbeatEvent, mapper))
     Tag.of[SseActor] {
       factory.actorOf(Props(new SseActor(presence, lastEventId, out, mapper)))
     }
 
-  /** The interval at which to send heartbeats. */
-  private final val HeartbeatInterval = 45.seconds
+  /** Encode a control channel event. */
+  private def controlEvent[A: EventType](event: A, mapper: ObjectMapper): SseEvent =
+    SseEvent(EventType[A].eventType(event), mapper.writeValueAsString(event))
 end SseActor
@@ -40,7 +40,7 @@ import loi.cp.presence.PresenceActor.{DeliverMessage, Heartbeat}
 import loi.cp.presence.SceneActor.{InBranch, InContext, InContextWithEdgePath, SceneId}
 import loi.cp.presence.SessionActor.UserActorInfo
 import loi.cp.presence.SessionsActor.DomainMessage
-import loi.cp.sse.{SseEvent, SseResponse}
+import loi.cp.sse.SseEvent
 import loi.cp.web.HandleService
 import scalaz.\/
 import scalaz.std.list.*
@@ -246,8 +246,7 @@ class PresenceWebControllerImpl(val componentInstance: ComponentInstance, user:
     for presence <- presenceActor(http.session, presenceId) \/> ErrorResponse.notFound
     yield
       Apm.ignoreTransaction()
-      val stream = SseResponse.openAsyncStream(http)
-      SseActor.create(presence, lastEventId.flatMap(_.toLong_?), stream)
+      SseActor.create(presence, lastEventId.flatMap(_.toLong_?), http)
       NoResponse // The request will remain in async mode, owned by the actor
 
   /** Poll for events from a particular presence.
@@ -485,6 +485,17 @@ object Dependencies {
       val clientEsJava = "nl.gn0s1s" %% "elastic4s-client-esjava" % "9.0.0"
     }
 
+    /** Apache Lucene search library, for embedded search indices. https://lucene.apache.org/
+      *   - 9.x is the last release line that supports Java 17
+      */
+    object Lucene {
+      val luceneVersion  = "9.12.2"
+      val core           = "org.apache.lucene" % "lucene-core"            % luceneVersion
+      val analysisCommon = "org.apache.lucene" % "lucene-analysis-common" % luceneVersion
+      val queryParser    = "org.apache.lucene" % "lucene-queryparser"     % luceneVersion
+      val highlighter    = "org.apache.lucene" % "lucene-highlighter"     % luceneVersion
+    }
+
     /** https://github.com/acm19/aws-request-signing-apache-interceptor */
     val awsSigningRequestInterceptor = "io.github.acm19" % "aws-request-signing-apache-interceptor" % "3.0.0"
 
@@ -25,6 +25,11 @@ import java.io.File;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +43,18 @@ import java.util.logging.Logger;
 
 /**
  * A file cache. Used to cache objects on the filesystem.
+ *
+ * There is no global lock. Entries live in a concurrent map and each entry
+ * guards its own state transitions, so requests for different files never
+ * contend. Little filesystem work is done while holding an entry lock; in
+ * particular, verifying the digest of an already-present file is done by the
+ * first requester while any others for the same file wait on the result. The
+ * exception is removal: an entry's file is deleted, under its lock, before the
+ * entry leaves the map, so that the delete cannot hit a fresh file created at
+ * the same path by a requester that missed the map.
+ *
+ * Unused files are evicted, least recently used first, when the total size
+ * of the cache exceeds its budget.
  */
 public class FileCache  {
     private static final Logger logger = Logger.getLogger(FileCache.class.getName());
@@ -51,30 +68,41 @@ public class FileCache  {
         return __instance;
     }
 
-    private Map<String, CacheEntry> _cache;
-    private Set<CacheEntry> _lru;
-    private long _size;
-    private File _cacheDir;
-    private int _generation;
+    /** When over budget, evict down to this fraction of the budget. */
+    private static final double EVICTION_TARGET = 0.9;
+
+    private final Map<String, CacheEntry> _cache;
+    private final AtomicLong _size;
+    private final AtomicLong _clock;
+    private final AtomicBoolean _evicting;
+    private final LongAdder _hits, _misses, _restores, _evictions;
+    private volatile File _cacheDir;
+    private volatile int _generation;
     private boolean _persist = false;
     private long _cacheAttachmentSize;
+    private volatile long _maxSize = Long.MAX_VALUE;
 
     private FileCache() {
-        _cache = new HashMap<String, CacheEntry>();
-        _lru = new LinkedHashSet<CacheEntry>();
-        _size = 0;
+        _cache = new ConcurrentHashMap<>();
+        _size = new AtomicLong();
+        _clock = new AtomicLong();
+        _evicting = new AtomicBoolean();
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+        _restores = new LongAdder();
+        _evictions = new LongAdder();
     }
 
-    public synchronized void configure(File cacheDir, Long attachmentSize) {
+    public synchronized void configure(File cacheDir, Long attachmentSize, Long maxSize) {
         logger.log(Level.FINE, "Initializing file cache");
         ++ _generation;
         _cache.clear();
-        _lru.clear();
-        _size = 0;
+        _size.set(0);
         _cacheDir = cacheDir;
         logger.log(Level.FINE, "FileCache.directory, {0}", _cacheDir);
         _cacheDir.mkdirs(); // make it
         _cacheAttachmentSize = attachmentSize;
+        _maxSize = maxSize;
     }
 
     public long getCacheAttachmentSize() {
@@ -91,7 +119,35 @@ public class FileCache  {
         return _generation;
     }
 
-    // TODO: hit/miss statistics
+    /** The number of requests served by an existing file. */
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    /** The number of requests that required a file to be created. */
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    /** The number of already-present files reused after digest verification. */
+    public long getRestoreCount() {
+        return _restores.sum();
+    }
+
+    /** The number of files evicted because the cache exceeded its budget. */
+    public long getEvictionCount() {
+        return _evictions.sum();
+    }
+
+    /** The total size of the ready files in the cache. */
+    public long getSize() {
+        return _size.get();
+    }
+
+    public void logStatistics() {
+        logger.log(Level.INFO, "File cache statistics: Files: {0}, Size: {1}, Hits: {2}, Misses: {3}, Restores: {4}, Evictions: {5}",
+          new Object[]{_cache.size(), _size.get(), _hits.sumThenReset(), _misses.sumThenReset(), _restores.sumThenReset(), _evictions.sumThenReset()});
+    }
 
     /** Get a file from the cache. */
     public final FileHandle getFile(String path) {
@@ -100,54 +156,152 @@ public class FileCache  {
 
     /** Get a file from the cache, allowing reuse of existing filesystem files post restart
      * if the file digest matches an expected value. */
-    public synchronized FileHandle getFile(final String path, final Optional<String> md5, final Optional<String> version) {
-        if (_cacheDir == null) {
+    public FileHandle getFile(final String path, final Optional<String> md5, final Optional<String> version) {
+        final File cacheDir = _cacheDir;
+        if (cacheDir == null) {
             throw new RuntimeException("File cache uninitialized");
         }
         final String rawversion = version.orElse(null);
-        final File file = new File(_cacheDir, path);
-        CacheEntry entry = _cache.get(file.getPath());
-        logger.log(Level.FINE, "Get file, {0}, {1}, {2}", new Object[]{path, file, entry});
-        // the exists test is a workaround in case the cache is wiped
-        if ((entry != null)
-         && (entry.getState() == CacheState.ready)
-         && entry.getFile().exists()
-         && Objects.equals(entry.getVersion(), rawversion)
-        ) {
-            if (entry.ref() == 1) {
-                _lru.remove(entry);
+        final File file = new File(cacheDir, path);
+        final String key = file.getPath();
+        while (true) {
+            CacheEntry entry = _cache.get(key);
+            logger.log(Level.FINE, "Get file, {0}, {1}, {2}", new Object[]{path, file, entry});
+            if (entry == null) {
+                boolean present = file.exists();
+                CacheState state = !present ? CacheState.creating
+                  : md5.isPresent() ? CacheState.verifying
+                  : _persist ? CacheState.ready
+                  : CacheState.creating;
+                entry = new CacheEntry(path, file, state, rawversion);
+                if (_cache.putIfAbsent(key, entry) != null) {
+                    continue; // lost a race with another requester
+                }
+                if (state == CacheState.ready) {
+                    logger.log(Level.FINE, "Assuming already-present file is valid, {0}, {1}", new Object[]{path, file});
+                    restored(entry);
+                } else if (state == CacheState.verifying) {
+                    verify(entry, md5.get());
+                } else {
+                    created(entry);
+                }
+                return newHandle(entry, rawversion);
             }
-        } else if ((entry == null) && file.exists() && md5.map(digest -> digestMatches(file, digest)).orElse(_persist)) {
-            logger.log(Level.FINE, "Assuming already-present file is valid, {0}, {1}", new Object[]{path, file});
-            entry = new CacheEntry(path, file, CacheState.ready, rawversion);
-            _cache.put(file.getPath(), entry);
-
-        } else {
-            logger.log(Level.FINE, "Create file, {0}, {1}, {2}", new Object[]{path, file, entry});
-            if ((entry == null) || ((entry.getState() == CacheState.ready) && (!entry.getFile().exists() || !Objects.equals(entry.getVersion(), rawversion)))) {
-                if (entry != null) {
+
+            // the exists test is a workaround in case the cache is wiped
+            final boolean exists = entry.getFile().exists();
+            final CompletableFuture<Boolean> verification;
+            final boolean recreate;
+            synchronized (entry) {
+                CacheState state = entry.getState();
+                if (state == CacheState.removed) {
+                    continue;
+                } else if (state == CacheState.verifying) {
+                    verification = entry.getVerification();
+                    recreate = false;
+                } else if ((state == CacheState.ready) && exists && Objects.equals(entry.getVersion(), rawversion)) {
+                    entry.ref();
+                    entry.touch(_clock.incrementAndGet());
+                    _hits.increment();
+                    return newHandle(entry, rawversion);
+                } else if ((state == CacheState.ready) && (entry.getRefCount() == 0)) {
+                    // The file disappeared or is the wrong version, but no one is
+                    // using it so I can recreate it in place.
                     logger.log(Level.FINE, "Cache file disappeared, {0}", entry);
+                    _size.addAndGet(-entry.getSize());
+                    entry.setSize(0);
+                    entry.setState(CacheState.creating);
+                    entry.setVersion(rawversion);
+                    entry.ref();
+                    verification = null;
+                    recreate = true;
+                } else {
+                    verification = null;
+                    recreate = false;
                 }
-                entry = new CacheEntry(path, file, CacheState.creating, rawversion);
+            }
+            if (verification != null) {
+                verification.join();
+                continue;
+            } else if (recreate) {
+                logger.log(Level.FINE, "Create file, {0}, {1}, {2}", new Object[]{path, file, entry});
+                created(entry);
+                return newHandle(entry, rawversion);
             } else {
-                // The file was still being created; so I'll create it anew
-                // in a temporary file which will be purged when released.
-                entry = getTempCacheEntry(path);
+                // The file is still being created, or is in use at another
+                // version, so I'll create it anew in a temporary file which
+                // will be purged when released.
+                logger.log(Level.FINE, "Create temporary file, {0}, {1}, {2}", new Object[]{path, file, entry});
+                _misses.increment();
+                return newHandle(getTempCacheEntry(path), rawversion);
             }
-            // set up the file that we'll create (temporary or not)
-            final File entryFile = entry.getFile();
-            _cache.put(entryFile.getPath(), entry);
-            entryFile.getParentFile().mkdirs();
-            entryFile.delete();
         }
+    }
+
+    /**
+     * Whether a file is a ready file in the cache. Such a file is not deleted
+     * when it is released, only if it is later evicted or recreated.
+     */
+    public boolean isReady(File file) {
+        CacheEntry entry = _cache.get(file.getPath());
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            return entry.getState() == CacheState.ready;
+        }
+    }
+
+    private FileHandle newHandle(CacheEntry entry, String version) {
         return new FileHandle(
           entry.getFile(),
           this,
-          rawversion,
+          version,
           entry.getState() == CacheState.temporary
         );
     }
 
+    /** Set up a file that the requester will create. */
+    private void created(CacheEntry entry) {
+        _misses.increment();
+        final File entryFile = entry.getFile();
+        entryFile.getParentFile().mkdirs();
+        entryFile.delete();
+    }
+
+    /** Account for an already-present file that is being reused. */
+    private void restored(CacheEntry entry) {
+        long size = entry.getFile().length();
+        synchronized (entry) {
+            entry.setSize(size);
+            entry.touch(_clock.incrementAndGet());
+        }
+        _size.addAndGet(size);
+        _restores.increment();
+        evictIfNeeded();
+    }
+
+    /** Verify the digest of an already-present file, unblocking anyone else waiting on it. */
+    private void verify(CacheEntry entry, String md5) {
+        boolean valid = false;
+        try {
+            valid = digestMatches(entry.getFile(), md5);
+            logger.log(Level.FINE, "Verified already-present file, {0}, {1}", new Object[]{entry, valid});
+        } finally {
+            final CompletableFuture<Boolean> verification;
+            synchronized (entry) {
+                verification = entry.getVerification();
+                entry.setState(valid ? CacheState.ready : CacheState.creating);
+            }
+            if (valid) {
+                restored(entry);
+            } else {
+                created(entry);
+            }
+            verification.complete(valid);
+        }
+    }
+
     private static boolean digestMatches(File file, String md5) {
         try (InputStream in = FileUtils.openInputStream(file)) {
             return MessageDigest.isEqual(DigestUtils.md5(in), Hex.decodeHex(md5.toCharArray()));
@@ -159,32 +313,79 @@ public class FileCache  {
     private CacheEntry getTempCacheEntry(String path) {
         String base = "tmp/" + path + ".";
         int index = 0;
-        File file;
-        do {
-            path = base + index;
-            file = new File(_cacheDir, path);
+        while (true) {
+            String tmpPath = base + index;
+            File file = new File(_cacheDir, tmpPath);
+            CacheEntry entry = new CacheEntry(tmpPath, file, CacheState.temporary, null);
+            if (_cache.putIfAbsent(file.getPath(), entry) == null) {
+                file.getParentFile().mkdirs();
+                file.delete();
+                return entry;
+            }
             ++ index;
-        } while (_cache.containsKey(file.getPath()));
-        return new CacheEntry(path, file, CacheState.temporary, null);
+        }
     }
 
-    synchronized void releaseFile(File file) {
+    void releaseFile(File file) {
         CacheEntry entry = _cache.get(file.getPath());
         logger.log(Level.FINE, "Release file, {0}, {1}", new Object[]{file, entry});
         if (entry == null) {
             return;
         }
 
-        if (entry.deref() == 0) {
+        synchronized (entry) {
+            if (entry.deref() != 0) {
+                return;
+            }
             // Releasing a file that was still being created, or was
             // temporary, kills it
             if (entry.getState() != CacheState.ready) {
                 logger.log(Level.FINE, "Remove file, {0}, {1}", new Object[]{file, entry});
-                _cache.remove(file.getPath());
-                file.delete();
-            } else {
-                _lru.add(entry);
+                remove(entry);
+                return;
+            }
+            entry.touch(_clock.incrementAndGet());
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * If the cache is over budget, evict the least recently used files that
+     * are not in use until it is comfortably back within budget. Only one
+     * thread evicts at a time; others carry on regardless.
+     */
+    private void evictIfNeeded() {
+        final long maxSize = _maxSize;
+        if ((_size.get() <= maxSize) || !_evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<CacheEntry> idle = new ArrayList<>();
+            for (CacheEntry entry : _cache.values()) {
+                if (entry.isIdle()) {
+                    idle.add(entry);
+                }
+            }
+            idle.sort(Comparator.comparingLong(CacheEntry::getLastAccess));
+            final long target = (long) (maxSize * EVICTION_TARGET);
+            for (CacheEntry entry : idle) {
+                if (_size.get() <= target) {
+                    break;
+                }
+                final long size;
+                synchronized (entry) {
+                    if (!entry.isIdle()) {
+                        continue;
+                    }
+                    logger.log(Level.FINE, "Evict file, {0}", entry);
+                    size = entry.getSize();
+                    remove(entry);
+                }
+                _size.addAndGet(-size);
+                _evictions.increment();
             }
+        } finally {
+            _evicting.set(false);
         }
     }
 
@@ -194,71 +395,102 @@ public class FileCache  {
         }
     }
 
-    synchronized void recreateFile(FileHandle handle) {
+    void recreateFile(FileHandle handle) {
         checkGeneration(handle);
         File file = handle.getFile();
         CacheEntry entry = _cache.get(file.getPath());
         logger.log(Level.FINE, "Recreate file, {0}, {1}", new Object[]{file, entry});
-        if (entry.getState() == CacheState.ready) { // otherwise recreate is fine
-            if (entry.getRefCount() == 1) { // no one is using it so i can recreate in-place
-                _size -= entry.getSize();
-                entry.setSize(0);
-                entry.setState(CacheState.creating);
-                file.delete();
-            } else { // is busy so switch to temp file
-                entry.deref();
-                entry = getTempCacheEntry(entry.getName());
-                file = entry.getFile();
-                _cache.put(file.getPath(), entry);
-                handle.setFile(file);
-                handle.setTemporary(true);
+        final boolean inPlace, busy;
+        synchronized (entry) {
+            if (entry.getState() == CacheState.ready) { // otherwise recreate is fine
+                inPlace = entry.getRefCount() == 1; // no one is using it so i can recreate in-place
+                busy = !inPlace;
+                if (inPlace) {
+                    _size.addAndGet(-entry.getSize());
+                    entry.setSize(0);
+                    entry.setState(CacheState.creating);
+                } else { // is busy so switch to temp file
+                    entry.deref();
+                }
+            } else {
+                inPlace = busy = false;
             }
         }
+        if (inPlace) {
+            file.delete();
+        } else if (busy) {
+            entry = getTempCacheEntry(entry.getName());
+            handle.setFile(entry.getFile());
+            handle.setTemporary(true);
+        }
     }
 
-    synchronized void fileCreated(FileHandle handle) {
+    void fileCreated(FileHandle handle) {
         checkGeneration(handle);
         File file = handle.getFile();
         CacheEntry entry = _cache.get(file.getPath());
         logger.log(Level.FINE, "File created, {0}, {1}", new Object[]{file, entry});
-        if (entry.getState() == CacheState.creating) {
-            entry.setState(CacheState.ready);
-            long size = file.length();
-            entry.setSize(size);
-            _size += size;
-            logger.log(Level.FINE, "Cache statistics: Files: {0}, Size: {1}", new Object[]{_cache.size(), _size});
-        } else if (entry.getState() != CacheState.temporary) {
-            throw new RuntimeException("Invalid file created call: " + entry);
+        final long size = file.length();
+        synchronized (entry) {
+            if (entry.getState() == CacheState.creating) {
+                entry.setState(CacheState.ready);
+                entry.setSize(size);
+                entry.touch(_clock.incrementAndGet());
+            } else if (entry.getState() != CacheState.temporary) {
+                throw new RuntimeException("Invalid file created call: " + entry);
+            } else {
+                return;
+            }
         }
+        _size.addAndGet(size);
+        logger.log(Level.FINE, "Cache statistics: Files: {0}, Size: {1}", new Object[]{_cache.size(), _size.get()});
+        evictIfNeeded();
     }
 
     /**
      * There's no need to release the handle after calling this method.
      */
-    synchronized void fileFailed(FileHandle handle) {
+    void fileFailed(FileHandle handle) {
         checkGeneration(handle);
         File file = handle.getFile();
         CacheEntry entry = _cache.get(file.getPath());
         logger.log(Level.FINE, "File failed, {0}, {1}", new Object[]{file, entry});
-        if ((entry.getState() != CacheState.creating) &&
-                (entry.getState() != CacheState.temporary)) {
-            throw new RuntimeException("Invalid file failed call: " + entry);
+        synchronized (entry) {
+            if ((entry.getState() != CacheState.creating) &&
+                    (entry.getState() != CacheState.temporary)) {
+                throw new RuntimeException("Invalid file failed call: " + entry);
+            }
+            remove(entry);
         }
-        _cache.remove(file.getPath());
-        file.delete();
+    }
+
+    /**
+     * Remove an entry and delete its file. Called with the entry lock held;
+     * the file is deleted before the entry leaves the map, because once it
+     * has left, another requester may create a new file at the same path.
+     */
+    private void remove(CacheEntry entry) {
+        entry.setState(CacheState.removed);
+        entry.getFile().delete();
+        _cache.remove(entry.getFile().getPath(), entry);
     }
 
     private static enum CacheState {
-        creating, ready, temporary;
+        verifying, creating, ready, temporary, removed;
     }
 
+    /**
+     * A cache entry. The mutable state is guarded by the entry monitor.
+     */
     private static class CacheEntry {
-        private String _name;
-        private File _file;
+        private final String _name;
+        private final File _file;
         private CacheState _state;
         private int _refCount;
         private long _size;
         private String _version;
+        private volatile long _lastAccess;
+        private CompletableFuture<Boolean> _verification;
 
         public CacheEntry(String name, File file, CacheState state, String version) {
             _name = name;
@@ -267,6 +499,9 @@ public class FileCache  {
             _version = version;
             _refCount = 1;
             _size = -1L;
+            if (state == CacheState.verifying) {
+                _verification = new CompletableFuture<>();
+            }
         }
 
         public String getName() {
@@ -308,5 +543,31 @@ public class FileCache  {
         public String getVersion() {
             return _version;
         }
+
+        public void setVersion(String version) {
+            _version = version;
+        }
+
+        public long getLastAccess() {
+            return _lastAccess;
+        }
+
+        public void touch(long tick) {
+            _lastAccess = tick;
+        }
+
+        public CompletableFuture<Boolean> getVerification() {
+            return _verification;
+        }
+
+        /** Whether this is a ready file that no one is using. */
+        public synchronized boolean isIdle() {
+            return (_state == CacheState.ready) && (_refCount == 0);
+        }
+
+        @Override
+        public String toString() {
+            return "CacheEntry[" + _name + ", " + _state + ", refs = " + _refCount + "]";
+        }
     }
 }
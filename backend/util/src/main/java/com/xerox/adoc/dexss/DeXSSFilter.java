@@ -0,0 +1,352 @@
+/*
+ * LO Platform copyright (C) 2007–2025 LO Ventures LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.xerox.adoc.dexss;
+
+import com.learningobjects.tagsoup.AttributesImpl;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * DeXSSFilter applies the rules of {@link DeXSSFilterPipeline}, in body-only mode, as a single
+ * filter. Each event runs through the same stages in the same order as it would through the
+ * pipeline's chain of filters, but without a filter object and a dispatch per stage.
+ * <p>Unlike the pipeline, a DeXSSFilter can be reused for any number of parses, although
+ * not concurrently; its state is reset at the start of each parse.</p>
+ */
+public class DeXSSFilter extends XMLFilterImpl {
+  /** Elements removed along with their content, in pipeline order; style is filtered instead. */
+  private static final String[] ELEMENTS = {
+    "script", "applet", "embed", "object", "xml", "bgsound", "meta", "link", "style", "base"
+  };
+
+  private static final int STYLE = 8;
+
+  private static final String[] REMOVED_ATTRIBUTES = {
+    "dynsrc", "datasrc", "datafld", "dataformatas", "code", "usemap"
+  };
+
+  private static final Map<String, String> REPLACEMENTS = new HashMap<>();
+
+  static {
+    for (String name : new String[] { "html", "head", "body", "iframe", "frame", "frameset", "layer", "ilayer", "form" }) {
+      REPLACEMENTS.put(name, "div");
+    }
+    REPLACEMENTS.put("blink", "span");
+  }
+
+  /** Denied href values. Only the first of these is denied for src, lowsrc and param values. */
+  private static final Pattern[] URL_PATTERNS = {
+    Pattern.compile("^\\s*j\\s*a\\s*v\\s*a\\s*s\\s*c\\s*r\\s*i\\s*p\\s*t\\s*:", Pattern.CASE_INSENSITIVE), // javascript
+    Pattern.compile("^\\s*v\\s*i\\s*e\\s*w\\s*-s\\s*o\\s*u\\s*r\\s*c\\s*e\\s*:", Pattern.CASE_INSENSITIVE), // view-source
+    Pattern.compile("^\\s*d\\s*a\\s*t\\s*a\\s*:", Pattern.CASE_INSENSITIVE), // data
+    Pattern.compile("^\\s*v\\s*b\\s*s\\s*s\\s*r\\s*i\\s*p\\s*t\\s*:", Pattern.CASE_INSENSITIVE), // vbscript
+    Pattern.compile("^\\s*a\\s*b\\s*o\\s*u\\s*t\\s*:", Pattern.CASE_INSENSITIVE), // about
+    Pattern.compile("^\\s*s\\s*h\\s*e\\s*e\\s*l\\s*:", Pattern.CASE_INSENSITIVE) // shell
+  };
+
+  private static final String[] CSS_LITERALS = { "javascript", "behavior", "@import", "expression" };
+
+  /** Denied style element content, matched case sensitively as by the pipeline. */
+  private static final Pattern[] STYLE_CONTENT_PATTERNS = new Pattern[CSS_LITERALS.length];
+
+  /** Denied style attribute values. */
+  private static final Pattern[] STYLE_ATTRIBUTE_PATTERNS = new Pattern[CSS_LITERALS.length];
+
+  static {
+    for (int i = 0; i < CSS_LITERALS.length; i++) {
+      String regexp = cssContentsRegexp(CSS_LITERALS[i]);
+      STYLE_CONTENT_PATTERNS[i] = Pattern.compile(regexp);
+      STYLE_ATTRIBUTE_PATTERNS[i] = Pattern.compile(regexp, Pattern.CASE_INSENSITIVE);
+    }
+  }
+
+  private DeXSSChangeListener xssChangeListener;
+  private int inHead;
+  private int inBody;
+  private final int[] levels = new int[ELEMENTS.length];
+  private final StringBuilder styleContent = new StringBuilder();
+
+  public DeXSSFilter() {
+  }
+
+  public DeXSSFilter(XMLReader parent) {
+    super(parent);
+  }
+
+  public void setDeXSSChangeListener(DeXSSChangeListener xssChangeListener) {
+    this.xssChangeListener = xssChangeListener;
+  }
+
+  public DeXSSChangeListener getDeXSSChangeListener() {
+    return xssChangeListener;
+  }
+
+  /**
+   * Resets the filter state and then parses.
+   * @param input the input source
+   * @throws IOException, SAXException
+   */
+  public void parse(InputSource input) throws IOException, SAXException {
+    inHead = 0;
+    inBody = 0;
+    for (int i = 0; i < levels.length; i++) {
+      levels[i] = 0;
+    }
+    styleContent.setLength(0);
+    super.parse(input);
+  }
+
+  public void startElement(String namespaceURI, String localName, String qName, Attributes atts) throws SAXException {
+    if (localName.equalsIgnoreCase("body")) {
+      inBody++;
+      return;
+    } else if (localName.equalsIgnoreCase("head")) {
+      inHead++;
+      return;
+    } else if (!inBody()) {
+      return;
+    }
+    for (int i = 0; i < ELEMENTS.length; i++) {
+      if (i == STYLE) {
+        if (levels[i] > 0) {
+          levels[i]++;
+          return;
+        } else if (localName.equalsIgnoreCase(ELEMENTS[i])) {
+          levels[i] = 1;
+          styleContent.setLength(0);
+        }
+      } else if (localName.equalsIgnoreCase(ELEMENTS[i])) {
+        levels[i]++;
+        logXSSChange("Removing element", ELEMENTS[i]);
+        return;
+      } else if (levels[i] > 0) {
+        return;
+      }
+    }
+
+    atts = removeAttributes(localName, atts);
+
+    String replacement = REPLACEMENTS.get(localName.toLowerCase());
+    if (replacement != null) {
+      // the pipeline replaces the local name alone, not the qualified name
+      logXSSChange("Replacing element", localName, replacement);
+      localName = replacement;
+    }
+
+    atts = removeAttributeValues(localName, atts);
+
+    super.startElement(namespaceURI, localName, qName, atts);
+  }
+
+  public void endElement(String namespaceURI, String localName, String qName) throws SAXException {
+    if (localName.equalsIgnoreCase("body")) {
+      inBody--;
+      return;
+    } else if (localName.equalsIgnoreCase("head")) {
+      inHead--;
+      return;
+    } else if (!inBody()) {
+      return;
+    }
+    for (int i = 0; i < ELEMENTS.length; i++) {
+      if (i == STYLE) {
+        if (levels[i] > 1) {
+          levels[i]--;
+          return;
+        } else if (levels[i] == 1) {
+          levels[i] = 0;
+          endStyle(localName);
+        }
+      } else if (localName.equalsIgnoreCase(ELEMENTS[i])) {
+        levels[i]--;
+        return;
+      } else if (levels[i] > 0) {
+        return;
+      }
+    }
+
+    // the pipeline matches end elements case sensitively
+    String replacement = REPLACEMENTS.get(localName);
+    super.endElement(namespaceURI, (replacement != null) ? replacement : localName, qName);
+  }
+
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (acceptCharacters(ch, start, length)) {
+      super.characters(ch, start, length);
+    }
+  }
+
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    if (acceptCharacters(ch, start, length)) {
+      super.ignorableWhitespace(ch, start, length);
+    }
+  }
+
+  private boolean inBody() {
+    return inBody > 0 && inHead == 0;
+  }
+
+  /** Whether characters pass every stage, buffering them if they are style content. */
+  private boolean acceptCharacters(char[] ch, int start, int length) {
+    if (!inBody()) {
+      return false;
+    }
+    for (int i = 0; i < ELEMENTS.length; i++) {
+      if (i == STYLE && levels[i] == 1) {
+        styleContent.append(ch, start, length);
+        return false;
+      } else if (levels[i] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Emits the buffered style content, unless denied, through the stages that follow style. */
+  private void endStyle(String localName) throws SAXException {
+    String text = styleContent.toString();
+    boolean matched = false;
+    for (Pattern pattern : STYLE_CONTENT_PATTERNS) {
+      if (pattern.matcher(text).find()) {
+        matched = true;
+        break;
+      }
+    }
+    if (matched) {
+      logXSSChange("Removing element content", localName, text);
+      return;
+    }
+    for (int i = STYLE + 1; i < ELEMENTS.length; i++) {
+      if (levels[i] > 0) {
+        return;
+      }
+    }
+    super.characters(text.toCharArray(), 0, text.length());
+  }
+
+  /** Removes event handler and data binding attributes, and guards target attributes. */
+  private Attributes removeAttributes(String localName, Attributes atts) {
+    int nAttrs = atts.getLength();
+    for (int attNum = 0; attNum < nAttrs; attNum++) {
+      String attName = atts.getLocalName(attNum);
+      if (attName.startsWith("on")) {
+        atts = Utils.removeAttribute(atts, attNum);
+        logXSSChange("Removing attribute", localName, attName);
+        attNum--;
+        nAttrs--;
+      }
+    }
+    nAttrs = atts.getLength();
+    for (int attNum = 0; attNum < nAttrs; attNum++) {
+      String attName = atts.getLocalName(attNum);
+      if (isRemovedAttribute(attName) && atts instanceof AttributesImpl) {
+        atts = Utils.removeAttribute(atts, attNum);
+        logXSSChange("Removing attribute", localName, attName);
+        nAttrs--;
+        attNum--;
+      }
+      atts = Utils.handleTargetAttribute((AttributesImpl) atts, attName);
+    }
+    return atts;
+  }
+
+  /** Removes script URLs, script types and script style attributes. */
+  private Attributes removeAttributeValues(String localName, Attributes atts) {
+    int nAttrs = atts.getLength();
+    for (int attNum = 0; attNum < nAttrs; attNum++) {
+      String attName = atts.getLocalName(attNum);
+      if ((attName.equals("src") || attName.equals("lowsrc") || (attName.equals("value") && localName.equals("param")))
+            && URL_PATTERNS[0].matcher(atts.getValue(attNum)).find()) {
+        atts = Utils.removeAttribute(atts, attNum);
+        logXSSChange("Removing attribute", localName, attName);
+        attNum--;
+        nAttrs--;
+      }
+    }
+    atts = removeMatching(localName, atts, "href", URL_PATTERNS);
+    nAttrs = atts.getLength();
+    for (int attNum = 0; attNum < nAttrs; attNum++) {
+      String attName = atts.getLocalName(attNum);
+      if (attName.equals("type") && atts.getValue(attNum).startsWith("text/javascript")) {
+        atts = Utils.removeAttribute(atts, attNum);
+        logXSSChange("Removing attribute", localName, attName);
+        attNum--;
+        nAttrs--;
+      }
+    }
+    return removeMatching(localName, atts, "style", STYLE_ATTRIBUTE_PATTERNS);
+  }
+
+  private Attributes removeMatching(String localName, Attributes atts, String name, Pattern[] patterns) {
+    int nAttrs = atts.getLength();
+    for (int attNum = 0; attNum < nAttrs; attNum++) {
+      String attName = atts.getLocalName(attNum);
+      if (attName.equals(name)) {
+        String attValue = atts.getValue(attNum);
+        for (Pattern pattern : patterns) {
+          if (pattern.matcher(attValue).find()) {
+            atts = Utils.removeAttribute(atts, attNum);
+            logXSSChange("Removing attribute", localName, attName);
+            attNum--;
+            nAttrs--;
+            break;
+          }
+        }
+      }
+    }
+    return atts;
+  }
+
+  private static boolean isRemovedAttribute(String attName) {
+    for (String name : REMOVED_ATTRIBUTES) {
+      if (name.equals(attName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String cssContentsRegexp(String literal) {
+    final String cruft = "(\\s|(/\\*.*\\*/)+)*";
+    StringBuilder buf = new StringBuilder(literal.length() * (cruft.length() + 1));
+    for (int i = 0; i < literal.length(); i++) {
+      buf.append(literal.charAt(i));
+      if (i < literal.length()-1)
+        buf.append(cruft);       // whitespace or CSS /* */ comments between letters
+    }
+    return buf.toString();
+  }
+
+  private void logXSSChange(String message, String item1) {
+    if (xssChangeListener != null)
+      xssChangeListener.logXSSChange(message, item1);
+  }
+
+  private void logXSSChange(String message, String item1, String item2) {
+    if (xssChangeListener != null)
+      xssChangeListener.logXSSChange(message, item1, item2);
+  }
+}
@@ -29,6 +29,7 @@ import java.util.Properties;
 
 /**
  * DeXSSFilterPipeline sets up a pipeline of other filters.
+ * {@link DeXSSFilter} applies the same rules as a single, reusable filter.
  */
 public class DeXSSFilterPipeline extends XMLFilterImpl implements DeXSSChangeListener {
   /**